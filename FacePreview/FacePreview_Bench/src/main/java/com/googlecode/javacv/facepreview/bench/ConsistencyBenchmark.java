@@ -0,0 +1,67 @@
+package com.googlecode.javacv.facepreview.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.googlecode.javacv.facepreview.compute.BackgroundConsistencyAnalysis;
+
+// The analyze stage for one frame: the foreground map (the preview frame shrunk by
+// FaceViewWithAnalysis.CONSISTENCY_SUBSAMPLING_FACTOR) into the analysis, then the verdict.
+// Goes round a few different maps so the windows keep changing.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsistencyBenchmark {
+	private static final int SUBSAMPLING = 8;
+	private static final int MAPS = 16;
+
+	@Param({ "640x480", "1280x720" })
+	public String size;
+
+	private ByteBuffer[] maps;
+	private int width, height;
+	private int faceX, faceY, faceSize;
+	private int next;
+	private BackgroundConsistencyAnalysis analysis;
+
+	@Setup
+	public void setUp() {
+		width = SyntheticFrames.width(size) / SUBSAMPLING;
+		height = SyntheticFrames.height(size) / SUBSAMPLING;
+		maps = new ByteBuffer[MAPS];
+		for (int i = 0; i < MAPS; i++) {
+			byte[] map = SyntheticFrames.foreground(width, height, i);
+			maps[i] = ByteBuffer.allocateDirect(map.length);
+			maps[i].put(map);
+			maps[i].rewind();
+		}
+		// a face in the middle, a third of the frame high
+		faceSize = height / 3;
+		faceX = (width - faceSize) / 2;
+		faceY = (height - faceSize) / 2;
+		analysis = new BackgroundConsistencyAnalysis();
+	}
+
+	@Benchmark
+	public boolean processNewFrameAndPass() {
+		ByteBuffer map = maps[next];
+		next = (next + 1) % MAPS;
+		analysis.processNewFrame(map, height, width, width, faceX, faceY, faceSize, faceSize);
+		return analysis.pass();
+	}
+}
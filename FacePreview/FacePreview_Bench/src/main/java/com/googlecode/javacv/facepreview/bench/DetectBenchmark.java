@@ -0,0 +1,104 @@
+package com.googlecode.javacv.facepreview.bench;
+
+import static com.googlecode.javacv.cpp.opencv_core.IPL_DEPTH_8U;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.googlecode.javacv.cpp.opencv_core.CvRect;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.googlecode.javacv.facepreview.FaceNormalizer;
+import com.googlecode.javacv.facepreview.detection.Detection;
+import com.googlecode.javacv.facepreview.detection.LbpCascade;
+import com.googlecode.javacv.facepreview.detection.LbpDetector;
+
+// Finding the face: the Java LBP detector against opencv's cvHaarDetectObjects, the way
+// FaceNormalizer calls it (biggest face only, so it can stop early). On real pictures rather than
+// synthetic frames, since a cascade rejects noise in its first stage. shrink 8 is the size
+// FaceViewWithAnalysis detects at, 1 the full picture FacePredictor searches. haar calls into
+// opencv, so it needs the native libraries, see README.md; lbp doesn't.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DetectBenchmark {
+	@Param({ "a_02_05.jpg", "authorized_1.jpg" })
+	public String image;
+
+	@Param({ "1", "8" })
+	public int shrink;
+
+	private LbpDetector lbp;
+	byte[] gray;
+	int width, height;
+
+	@Setup
+	public void setUp() throws IOException {
+		lbp = new LbpDetector(LbpCascade.frontalFace());
+		InputStream in = DetectBenchmark.class.getResourceAsStream("/com/googlecode/javacv/facepreview/data/" + image);
+		BufferedImage picture;
+		try {
+			picture = ImageIO.read(in);
+		} finally {
+			in.close();
+		}
+		// nearest neighbour, like Downsampler
+		width = picture.getWidth() / shrink;
+		height = picture.getHeight() / shrink;
+		gray = new byte[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int rgb = picture.getRGB(x * shrink, y * shrink);
+				int r = (rgb >> 16) & 0xff, g = (rgb >> 8) & 0xff, b = rgb & 0xff;
+				gray[y * width + x] = (byte) ((299 * r + 587 * g + 114 * b + 500) / 1000);
+			}
+		}
+	}
+
+	// Kept apart so lbp runs without the native libraries
+	@State(Scope.Thread)
+	public static class Haar {
+		FaceNormalizer normalizer;
+		IplImage gray;
+
+		@Setup
+		public void setUp(DetectBenchmark frame) throws IOException {
+			normalizer = new FaceNormalizer(new File(System.getProperty("java.io.tmpdir")));
+			gray = IplImage.create(frame.width, frame.height, IPL_DEPTH_8U, 1);
+			for (int y = 0; y < frame.height; y++) {
+				gray.getByteBuffer().position(y * gray.widthStep());
+				gray.getByteBuffer().put(frame.gray, y * frame.width, frame.width);
+			}
+		}
+	}
+
+	@Benchmark
+	public List<Detection> lbp() {
+		return lbp.detect(gray, 0, width, height, width, 0, 0);
+	}
+
+	@Benchmark
+	public CvRect haar(Haar haar) {
+		return haar.normalizer.detectFace(haar.gray);
+	}
+}
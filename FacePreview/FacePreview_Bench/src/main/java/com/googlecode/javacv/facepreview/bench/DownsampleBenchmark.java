@@ -0,0 +1,58 @@
+package com.googlecode.javacv.facepreview.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.googlecode.javacv.facepreview.compute.Downsampler;
+
+// What the camera thread does with every preview frame before anything else
+// (this was createSubsampledImage in the views).
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DownsampleBenchmark {
+
+	@Param({ "640x480", "1280x720" })
+	public String size;
+
+	@Param({ "4", "8" })
+	public int factor;
+
+	@Param({ "POINT", "BOX" })
+	public Downsampler.Mode mode;
+
+	private byte[] frame;
+	private int width, height, outWidth, outHeight;
+	private ByteBuffer out;
+
+	@Setup
+	public void setUp() {
+		width = SyntheticFrames.width(size);
+		height = SyntheticFrames.height(size);
+		frame = SyntheticFrames.nv21(width, height, 1);
+		outWidth = width / factor;
+		outHeight = height / factor;
+		out = ByteBuffer.allocateDirect(outWidth * outHeight);
+	}
+
+	@Benchmark
+	public ByteBuffer downsample() {
+		Downsampler.downsample(frame, width, height, factor, mode, out, outWidth, outHeight, outWidth);
+		return out;
+	}
+}
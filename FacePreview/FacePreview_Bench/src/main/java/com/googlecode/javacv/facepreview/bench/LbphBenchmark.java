@@ -0,0 +1,77 @@
+package com.googlecode.javacv.facepreview.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.googlecode.javacv.facepreview.recognition.LbphExtractor;
+import com.googlecode.javacv.facepreview.recognition.LbphRecognizer;
+import com.googlecode.javacv.facepreview.recognition.Prediction;
+
+// Recognition after normalization: the LBPH histogram of a 400x400 face (what FaceNormalizer.toTiny
+// makes), then 1:N identification and 1:1 verification against galleries of a few sizes.
+// "templates" only matters for the matching benchmarks.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LbphBenchmark {
+	private static final int FACE_SIZE = 400;
+	// the gallery has this many people, the rest of the templates are more pictures of them
+	private static final int PEOPLE = 10;
+
+	@Param({ "30", "1000" })
+	public int templates;
+
+	private LbphExtractor extractor;
+	private LbphRecognizer recognizer;
+	private byte[] face;
+	private float[] histogram;
+	private final Prediction prediction = new Prediction();
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		extractor = new LbphExtractor(LbphRecognizer.DEFAULT_RADIUS, LbphRecognizer.DEFAULT_NEIGHBORS,
+				LbphRecognizer.DEFAULT_GRID_X, LbphRecognizer.DEFAULT_GRID_Y);
+		recognizer = new LbphRecognizer(LbphRecognizer.DEFAULT_RADIUS, LbphRecognizer.DEFAULT_NEIGHBORS,
+				LbphRecognizer.DEFAULT_GRID_X, LbphRecognizer.DEFAULT_GRID_Y, Double.MAX_VALUE / 2);
+		float[] template = new float[extractor.dimension()];
+		for (int i = 0; i < templates; i++) {
+			extractor.extract(SyntheticFrames.gray(FACE_SIZE, FACE_SIZE, 1000 + i), 0, FACE_SIZE, FACE_SIZE, FACE_SIZE, template, 0);
+			recognizer.add(template, 0, i % PEOPLE);
+		}
+		face = SyntheticFrames.gray(FACE_SIZE, FACE_SIZE, 1);
+		histogram = new float[extractor.dimension()];
+		extractor.extract(face, 0, FACE_SIZE, FACE_SIZE, FACE_SIZE, histogram, 0);
+	}
+
+	@Benchmark
+	public float[] histogram() {
+		extractor.extract(face, 0, FACE_SIZE, FACE_SIZE, FACE_SIZE, histogram, 0);
+		return histogram;
+	}
+
+	@Benchmark
+	public Prediction identify() {
+		recognizer.predict(histogram, 0, prediction);
+		return prediction;
+	}
+
+	@Benchmark
+	public boolean verify() {
+		return recognizer.verify(histogram, 0, 0, Double.MAX_VALUE / 2, prediction);
+	}
+}
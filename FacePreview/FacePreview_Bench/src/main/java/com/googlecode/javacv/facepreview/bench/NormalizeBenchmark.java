@@ -0,0 +1,103 @@
+package com.googlecode.javacv.facepreview.bench;
+
+import static com.googlecode.javacv.cpp.opencv_core.IPL_DEPTH_8U;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.googlecode.javacv.cpp.opencv_core.CvRect;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.googlecode.javacv.facepreview.FaceNormalizer;
+import com.googlecode.javacv.facepreview.compute.Downsampler;
+
+// Turning a face found in the frame shrunk by 8 into the 400x400 equalized image the recognizer
+// wants: the region around it cut out of the Y plane (FaceNormalizer.cropRegion), the face found
+// again there and scaled down, like FaceViewWithAnalysis and FacePredictor.identify(luma, ...) do;
+// against searching the whole gray picture, like FacePredictor.identify(image). On real pictures,
+// since a cascade rejects synthetic frames in its first stage. Calls into opencv, so this one
+// needs the native libraries, see README.md.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NormalizeBenchmark {
+	// the face is found in the frame shrunk by this much
+	private static final int SUBSAMPLING = 8;
+
+	@Param({ "a_02_05.jpg", "authorized_1.jpg" })
+	public String image;
+
+	private FaceNormalizer normalizer;
+	private byte[] luma;
+	private int width, height;
+	private IplImage gray;
+	private IplImage crop;
+	private final CvRect region = new CvRect();
+	// in the shrunk frame
+	private CvRect smallFace;
+
+	@Setup
+	public void setUp() throws IOException {
+		normalizer = new FaceNormalizer(new File(System.getProperty("java.io.tmpdir")));
+		InputStream in = NormalizeBenchmark.class.getResourceAsStream("/com/googlecode/javacv/facepreview/data/" + image);
+		BufferedImage picture;
+		try {
+			picture = ImageIO.read(in);
+		} finally {
+			in.close();
+		}
+		width = picture.getWidth();
+		height = picture.getHeight();
+		luma = new byte[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int rgb = picture.getRGB(x, y);
+				int r = (rgb >> 16) & 0xff, g = (rgb >> 8) & 0xff, b = rgb & 0xff;
+				luma[y * width + x] = (byte) ((299 * r + 587 * g + 114 * b + 500) / 1000);
+			}
+		}
+		gray = IplImage.create(width, height, IPL_DEPTH_8U, 1);
+		for (int y = 0; y < height; y++) {
+			gray.getByteBuffer().position(y * gray.widthStep());
+			gray.getByteBuffer().put(luma, y * width, width);
+		}
+		IplImage small = IplImage.create(width / SUBSAMPLING, height / SUBSAMPLING, IPL_DEPTH_8U, 1);
+		Downsampler.downsample(luma, width, height, SUBSAMPLING, Downsampler.Mode.POINT, small);
+		smallFace = normalizer.detectFace(small);
+		if (smallFace.isNull()) {
+			throw new IllegalStateException("No face in " + image + " shrunk by " + SUBSAMPLING);
+		}
+	}
+
+	@Benchmark
+	public IplImage regionOfFrame() {
+		crop = FaceNormalizer.cropRegion(luma, width, height, smallFace, SUBSAMPLING, crop, region);
+		CvRect face = normalizer.detectFace(crop, FaceNormalizer.inRegion(smallFace, SUBSAMPLING, region));
+		return face.isNull() ? null : normalizer.toTiny(crop, face);
+	}
+
+	@Benchmark
+	public IplImage wholeGrayImage() {
+		CvRect face = normalizer.detectFace(gray);
+		return face.isNull() ? null : normalizer.toTiny(gray, face);
+	}
+}
@@ -0,0 +1,63 @@
+package com.googlecode.javacv.facepreview.bench;
+
+import java.util.Random;
+
+// Made-up input that looks enough like the real thing for the code under test: smooth gradients
+// with some noise for camera frames and faces (so LBP codes aren't all the same), blobs of motion
+// for foreground maps. Everything comes from a seed, so every run measures the same pixels.
+final class SyntheticFrames {
+	private SyntheticFrames() {}
+
+	static int width(String size) {
+		return Integer.parseInt(size.substring(0, size.indexOf('x')));
+	}
+
+	static int height(String size) {
+		return Integer.parseInt(size.substring(size.indexOf('x') + 1));
+	}
+
+	// 8 bit gray image, rows width bytes apart
+	static byte[] gray(int width, int height, long seed) {
+		Random random = new Random(seed);
+		double fx1 = 0.01 + 0.05 * random.nextDouble(), fy1 = 0.01 + 0.05 * random.nextDouble();
+		double fx2 = 0.1 + 0.2 * random.nextDouble(), fy2 = 0.1 + 0.2 * random.nextDouble();
+		double phase = 2 * Math.PI * random.nextDouble();
+		byte[] gray = new byte[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				double value = 128 + 60 * Math.sin(x * fx1 + y * fy1 + phase) + 25 * Math.sin(x * fx2 - y * fy2)
+						+ 12 * random.nextGaussian();
+				gray[y * width + x] = (byte) Math.max(0, Math.min(255, (int) value));
+			}
+		}
+		return gray;
+	}
+
+	// A camera preview frame: the Y plane, then interleaved VU at quarter resolution
+	static byte[] nv21(int width, int height, long seed) {
+		byte[] frame = new byte[width * height * 3 / 2];
+		System.arraycopy(gray(width, height, seed), 0, frame, 0, width * height);
+		for (int i = width * height; i < frame.length; i++) {
+			frame[i] = (byte) 128;
+		}
+		return frame;
+	}
+
+	// What BackgroundSubtractorMOG2 gives: 0 for background, 255 for foreground, in a few
+	// rectangular blobs, some of them in the face
+	static byte[] foreground(int width, int height, long seed) {
+		Random random = new Random(seed);
+		byte[] map = new byte[width * height];
+		int blobs = 1 + random.nextInt(6);
+		for (int b = 0; b < blobs; b++) {
+			int w = 1 + random.nextInt(width / 3), h = 1 + random.nextInt(height / 3);
+			int x0 = random.nextInt(width - w), y0 = random.nextInt(height - h);
+			for (int y = y0; y < y0 + h; y++) {
+				for (int x = x0; x < x0 + w; x++) {
+					map[y * width + x] = (byte) 255;
+				}
+			}
+		}
+		return map;
+	}
+}
@@ -0,0 +1,126 @@
+package com.googlecode.javacv.facepreview.eval;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// The images an evaluation runs on and whose face each one is. Two layouts work:
+//   a folder per person:  <dir>/<person>/<image>
+//   a flat folder named like our bundled data (FacePreview/src/.../data): a_07_15.jpg and
+//   b_07_05.jpg are person 07, authorized_*.jpg is the phone's owner.
+// Images that don't belong to anybody (no_face.jpg, or loose files next to the person folders)
+// are probes of an unknown person, so they can only be impostors.
+// The first enroll images of every person (by file name) make the gallery, the rest are probes.
+final class Dataset {
+	static final String AUTHORIZED = "authorized";
+
+	private static final Pattern NUMBERED = Pattern.compile("^[a-z]+_(\\d+)_.*");
+
+	static final class Sample {
+		final File file;
+		// null if unknown
+		final String person;
+
+		Sample(File file, String person) {
+			this.file = file;
+			this.person = person;
+		}
+
+		@Override
+		public String toString() {
+			return file.getName();
+		}
+	}
+
+	final List<Sample> gallery = new ArrayList<Sample>();
+	final List<Sample> probes = new ArrayList<Sample>();
+	// everybody in the gallery, sorted; a person's label is their index here
+	final List<String> people = new ArrayList<String>();
+
+	private Dataset() {}
+
+	static Dataset scan(File dir, int enroll) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			throw new IOException("Can't list " + dir);
+		}
+		Arrays.sort(files);
+		Map<String, List<File>> byPerson = new TreeMap<String, List<File>>();
+		List<File> unknown = new ArrayList<File>();
+		boolean folders = false;
+		for (File file : files) {
+			if (file.isDirectory()) {
+				File[] images = file.listFiles();
+				Arrays.sort(images);
+				for (File image : images) {
+					if (isImage(image)) {
+						add(byPerson, file.getName(), image);
+					}
+				}
+				folders = true;
+			}
+		}
+		for (File file : files) {
+			if (!isImage(file)) {
+				continue;
+			}
+			String person = folders ? null : personOf(file.getName());
+			if (person == null) {
+				unknown.add(file);
+			} else {
+				add(byPerson, person, file);
+			}
+		}
+
+		Dataset dataset = new Dataset();
+		for (Map.Entry<String, List<File>> entry : byPerson.entrySet()) {
+			List<File> images = entry.getValue();
+			for (int i = 0; i < images.size(); i++) {
+				Sample sample = new Sample(images.get(i), entry.getKey());
+				(i < enroll ? dataset.gallery : dataset.probes).add(sample);
+			}
+			dataset.people.add(entry.getKey());
+		}
+		for (File file : unknown) {
+			dataset.probes.add(new Sample(file, null));
+		}
+		if (dataset.gallery.isEmpty()) {
+			throw new IOException("No images of known people in " + dir);
+		}
+		return dataset;
+	}
+
+	// person in a flat folder, null if the name doesn't say
+	static String personOf(String fileName) {
+		if (fileName.startsWith(AUTHORIZED)) {
+			return AUTHORIZED;
+		}
+		Matcher matcher = NUMBERED.matcher(fileName);
+		return matcher.matches() ? matcher.group(1) : null;
+	}
+
+	int label(String person) {
+		return person == null ? -1 : people.indexOf(person);
+	}
+
+	private static void add(Map<String, List<File>> byPerson, String person, File image) {
+		List<File> images = byPerson.get(person);
+		if (images == null) {
+			images = new ArrayList<File>();
+			byPerson.put(person, images);
+		}
+		images.add(image);
+	}
+
+	private static boolean isImage(File file) {
+		String name = file.getName().toLowerCase();
+		return file.isFile() && (name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png")
+				|| name.endsWith(".pgm") || name.endsWith(".bmp"));
+	}
+}
@@ -0,0 +1,99 @@
+package com.googlecode.javacv.facepreview.eval;
+
+import java.util.Arrays;
+
+// Verification error rates from a set of distances: genuine ones (probe against the gallery of
+// the person it really is) and impostor ones (against anybody else). A comparison is accepted
+// if its distance is under the threshold, like LbphRecognizer.verify().
+//   FAR: share of impostor comparisons that are accepted
+//   FRR: share of genuine attempts that are rejected. Attempts where no face was found count as
+//        rejected at every threshold, on the phone that user isn't let in either.
+final class ErrorRates {
+	private final double[] genuine;
+	private final int genuineFailures;
+	private final double[] impostor;
+
+	ErrorRates(double[] genuine, int genuineFailures, double[] impostor) {
+		this.genuine = genuine.clone();
+		this.genuineFailures = genuineFailures;
+		this.impostor = impostor.clone();
+		Arrays.sort(this.genuine);
+		Arrays.sort(this.impostor);
+	}
+
+	int genuineAttempts() {
+		return genuine.length + genuineFailures;
+	}
+
+	int impostorAttempts() {
+		return impostor.length;
+	}
+
+	double far(double threshold) {
+		return impostor.length == 0 ? 0 : (double) below(impostor, threshold) / impostor.length;
+	}
+
+	double frr(double threshold) {
+		int attempts = genuineAttempts();
+		return attempts == 0 ? 0 : (double) (attempts - below(genuine, threshold)) / attempts;
+	}
+
+	/**
+	 * steps + 1 thresholds spread evenly from the smallest distance to just past the biggest, so
+	 * the sweep goes from rejecting everything to accepting everything.
+	 */
+	double[] sweep(int steps) {
+		double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+		if (genuine.length > 0) {
+			min = Math.min(min, genuine[0]);
+			max = Math.max(max, genuine[genuine.length - 1]);
+		}
+		if (impostor.length > 0) {
+			min = Math.min(min, impostor[0]);
+			max = Math.max(max, impostor[impostor.length - 1]);
+		}
+		if (min > max) {
+			return new double[0];
+		}
+		max = Math.nextUp(max);
+		double[] thresholds = new double[steps + 1];
+		for (int i = 0; i <= steps; i++) {
+			thresholds[i] = min + (max - min) * i / steps;
+		}
+		return thresholds;
+	}
+
+	/**
+	 * The threshold where FAR and FRR are closest, out of every distance we have (past them is
+	 * where the rates change). NaN if there are no distances.
+	 */
+	double equalErrorThreshold() {
+		double best = Double.NaN;
+		double bestGap = Double.POSITIVE_INFINITY;
+		for (double[] distances : new double[][] { genuine, impostor }) {
+			for (double distance : distances) {
+				double threshold = Math.nextUp(distance);
+				double gap = Math.abs(far(threshold) - frr(threshold));
+				if (gap < bestGap || (gap == bestGap && threshold < best)) {
+					bestGap = gap;
+					best = threshold;
+				}
+			}
+		}
+		return best;
+	}
+
+	// how many of the sorted values are under threshold
+	private static int below(double[] sorted, double threshold) {
+		int low = 0, high = sorted.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (sorted[mid] < threshold) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+}
@@ -0,0 +1,402 @@
+package com.googlecode.javacv.facepreview.eval;
+
+import static com.googlecode.javacv.cpp.opencv_core.IPL_DEPTH_8U;
+import static com.googlecode.javacv.cpp.opencv_highgui.cvLoadImage;
+import static com.googlecode.javacv.cpp.opencv_imgproc.CV_BGR2GRAY;
+import static com.googlecode.javacv.cpp.opencv_imgproc.cvCvtColor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.googlecode.javacv.cpp.opencv_core.CvRect;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.googlecode.javacv.facepreview.FaceNormalizer;
+import com.googlecode.javacv.facepreview.recognition.BioHash;
+import com.googlecode.javacv.facepreview.recognition.BioHashIndex;
+import com.googlecode.javacv.facepreview.recognition.LbphRecognizer;
+import com.googlecode.javacv.facepreview.recognition.LshIndex;
+import com.googlecode.javacv.facepreview.recognition.Prediction;
+import com.googlecode.javacv.facepreview.recognition.ProjectedIndex;
+import com.googlecode.javacv.facepreview.recognition.RandomProjection;
+import com.googlecode.javacv.facepreview.recognition.TemplateIndex;
+
+// Runs what FacePredictor.identify() does (decode, grayscale, detect, normalize, LBPH histogram,
+// match) over a folder of images on a desktop JVM, and reports
+//   - throughput, in probe images per second over all threads
+//   - p50/p99 latency of every stage
+//   - rank-1 identification rate, and FAR/FRR over a sweep of verification thresholds
+// so a change that makes things faster can be checked for making them worse. Matching goes through
+// the same index FacePredictor uses for --template-mode and --search-mode (see FacePredictor.TemplateMode
+// and SearchMode), and the thresholds are in that index's distance. See Dataset for how the images
+// are split into gallery and probes; the bundled data is FacePreview/src/com/googlecode/javacv/facepreview/data.
+//
+//   java -jar facepreview-eval.jar [--enroll 3] [--threads <cores>] [--passes 1] [--steps 20]
+//       [--template-mode histogram|projected|biohash] [--search-mode scan|hashed] <image dir>
+public class EvaluateRecognition {
+	static final String[] STAGES = { "decode", "gray", "detect", "normalize", "histogram", "match" };
+	private static final int DECODE = 0, GRAY = 1, DETECT = 2, NORMALIZE = 3, HISTOGRAM = 4, MATCH = 5;
+	// same as FacePredictor
+	private static final double THRESHOLD = Double.MAX_VALUE / 2;
+	static final int PROJECTED_DIMENSION = 256;
+	static final long PROJECTION_SEED = 0x4C425048L;
+	static final int BIOHASH_BITS = 256;
+	static final long BIOHASH_SEED = 0x42494F48L;
+	static final int HASH_TABLES = 8, HASH_BITS = 12, HASH_PROBES = 1;
+
+	// FacePredictor.TemplateMode, which can't be used without Android
+	enum TemplateMode {
+		HISTOGRAM("chi-square"),
+		PROJECTED("squared euclidean"),
+		BIOHASH("Hamming bits");
+
+		final String distance;
+
+		TemplateMode(String distance) {
+			this.distance = distance;
+		}
+	}
+
+	// FacePredictor.SearchMode
+	enum SearchMode {
+		SCAN, HASHED
+	}
+
+	private final FaceNormalizer normalizer;
+	private final LbphRecognizer recognizer;
+	private final TemplateMode templateMode;
+	private final SearchMode searchMode;
+	// built from recognizer once the gallery is enrolled, see buildIndex()
+	private TemplateIndex index;
+	private LshIndex lsh;
+
+	// One image's way through the pipeline
+	static final class Result {
+		// per stage, -1 for stages it didn't get to
+		final long[] nanos = new long[STAGES.length];
+		boolean unreadable;
+		// null if no face was found
+		float[] histogram;
+		// probes only
+		Prediction prediction;
+		// templates compared by a hashed search, -1 for the others
+		int candidates = -1;
+
+		Result() {
+			Arrays.fill(nanos, -1);
+		}
+	}
+
+	EvaluateRecognition(File cacheDir, TemplateMode templateMode, SearchMode searchMode) throws IOException {
+		normalizer = new FaceNormalizer(cacheDir);
+		recognizer = newRecognizer();
+		this.templateMode = templateMode;
+		this.searchMode = searchMode;
+	}
+
+	static LbphRecognizer newRecognizer() {
+		return new LbphRecognizer(LbphRecognizer.DEFAULT_RADIUS, LbphRecognizer.DEFAULT_NEIGHBORS,
+				LbphRecognizer.DEFAULT_GRID_X, LbphRecognizer.DEFAULT_GRID_Y, THRESHOLD);
+	}
+
+	// Like FacePredictor, hashing is only worth it for full histograms
+	static boolean supported(TemplateMode templateMode, SearchMode searchMode) {
+		return searchMode != SearchMode.HASHED || templateMode == TemplateMode.HISTOGRAM;
+	}
+
+	// What FacePredictor.rebuildIndex() builds from its gallery
+	static TemplateIndex newIndex(LbphRecognizer gallery, TemplateMode templateMode, SearchMode searchMode) {
+		TemplateIndex index;
+		switch (templateMode) {
+		case PROJECTED:
+			index = new ProjectedIndex(new RandomProjection(gallery.dimension(), PROJECTED_DIMENSION, PROJECTION_SEED), THRESHOLD);
+			break;
+		case BIOHASH:
+			RandomProjection projection = new RandomProjection(gallery.dimension(), PROJECTED_DIMENSION, PROJECTION_SEED);
+			index = new BioHashIndex(new BioHash(projection, BIOHASH_BITS, BIOHASH_SEED, BioHash.mean(projection, gallery)), THRESHOLD);
+			break;
+		default:
+			return gallery;
+		}
+		float[] histogram = new float[gallery.dimension()];
+		for (int i = 0; i < gallery.size(); i++) {
+			if (!gallery.isRemoved(i)) {
+				gallery.template(i, histogram, 0);
+				index.add(histogram, 0, gallery.label(i));
+			}
+		}
+		return index;
+	}
+
+	static LshIndex newLshIndex(LbphRecognizer gallery) {
+		return new LshIndex(gallery, PROJECTED_DIMENSION, HASH_TABLES, HASH_BITS, HASH_PROBES, PROJECTION_SEED);
+	}
+
+	// Call once the gallery is enrolled, before matching any probes
+	void buildIndex() {
+		index = newIndex(recognizer, templateMode, searchMode);
+		lsh = searchMode == SearchMode.HASHED ? newLshIndex(recognizer) : null;
+	}
+
+	Result process(File file, boolean match) {
+		Result result = new Result();
+		long time = System.nanoTime();
+		IplImage image = cvLoadImage(file.getAbsolutePath());
+		time = lap(result, DECODE, time);
+		if (image == null || image.isNull()) {
+			result.unreadable = true;
+			return result;
+		}
+
+		IplImage gray = image;
+		if (image.nChannels() != 1) {
+			gray = IplImage.create(image.width(), image.height(), IPL_DEPTH_8U, 1);
+			cvCvtColor(image, gray, CV_BGR2GRAY);
+		}
+		time = lap(result, GRAY, time);
+
+		CvRect face = normalizer.detectFace(gray);
+		time = lap(result, DETECT, time);
+		if (face.isNull()) {
+			return result;
+		}
+
+		IplImage tiny = normalizer.toTiny(gray, face);
+		time = lap(result, NORMALIZE, time);
+
+		float[] histogram = new float[recognizer.dimension()];
+		recognizer.histogram(tiny.getByteBuffer(), tiny.width(), tiny.height(), tiny.widthStep(), histogram, 0);
+		result.histogram = histogram;
+		time = lap(result, HISTOGRAM, time);
+
+		if (match) {
+			result.prediction = new Prediction();
+			if (lsh != null) {
+				result.candidates = lsh.predict(histogram, 0, result.prediction);
+			} else {
+				index.predict(histogram, 0, result.prediction);
+			}
+			lap(result, MATCH, time);
+		}
+		return result;
+	}
+
+	private static long lap(Result result, int stage, long start) {
+		long now = System.nanoTime();
+		result.nanos[stage] = now - start;
+		return now;
+	}
+
+	// Every sample through process(), on threads threads. Results are in the order of samples.
+	Result[] processAll(final List<Dataset.Sample> samples, final boolean match, int threads) throws InterruptedException {
+		final Result[] results = new Result[samples.size()];
+		final AtomicInteger next = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		for (int t = 0; t < threads; t++) {
+			pool.execute(new Runnable() {
+				public void run() {
+					int i;
+					while ((i = next.getAndIncrement()) < samples.size()) {
+						try {
+							results[i] = process(samples.get(i).file, match);
+						} catch (RuntimeException e) {
+							System.err.println(samples.get(i) + ": " + e);
+							results[i] = new Result();
+							results[i].unreadable = true;
+						}
+					}
+				}
+			});
+		}
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		return results;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int enroll = 3;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int passes = 1;
+		int steps = 20;
+		TemplateMode templateMode = TemplateMode.HISTOGRAM;
+		SearchMode searchMode = SearchMode.SCAN;
+		File dir = null;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("--enroll")) {
+					enroll = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--threads")) {
+					threads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--passes")) {
+					passes = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--steps")) {
+					steps = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("--template-mode")) {
+					templateMode = TemplateMode.valueOf(args[++i].toUpperCase(Locale.US));
+				} else if (args[i].equals("--search-mode")) {
+					searchMode = SearchMode.valueOf(args[++i].toUpperCase(Locale.US));
+				} else if (dir == null && !args[i].startsWith("--")) {
+					dir = new File(args[i]);
+				} else {
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+		} catch (RuntimeException e) {
+			dir = null;
+		}
+		if (dir == null || enroll < 1 || threads < 1 || passes < 1 || steps < 1) {
+			System.err.println("usage: EvaluateRecognition [--enroll 3] [--threads <cores>] [--passes 1] [--steps 20]");
+			System.err.println("           [--template-mode histogram|projected|biohash] [--search-mode scan|hashed] <image dir>");
+			System.exit(1);
+		}
+		if (!supported(templateMode, searchMode)) {
+			System.err.println("--search-mode hashed needs --template-mode histogram");
+			System.exit(1);
+		}
+
+		Dataset data = Dataset.scan(dir, enroll);
+		EvaluateRecognition evaluation = new EvaluateRecognition(new File(System.getProperty("java.io.tmpdir")), templateMode, searchMode);
+		List<Result> all = new ArrayList<Result>();
+
+		Result[] gallery = evaluation.processAll(data.gallery, false, threads);
+		for (int i = 0; i < gallery.length; i++) {
+			if (gallery[i].histogram == null) {
+				System.err.println("No face in gallery image " + data.gallery.get(i) + ", not enrolled");
+				continue;
+			}
+			evaluation.recognizer.add(gallery[i].histogram, 0, data.label(data.gallery.get(i).person));
+		}
+		all.addAll(Arrays.asList(gallery));
+		evaluation.buildIndex();
+
+		Result[] probes = null;
+		long probeNanos = 0;
+		for (int pass = 0; pass < passes; pass++) {
+			long start = System.nanoTime();
+			probes = evaluation.processAll(data.probes, true, threads);
+			probeNanos += System.nanoTime() - start;
+			all.addAll(Arrays.asList(probes));
+		}
+
+		System.out.println(String.format("%d people, %d gallery images (%d enrolled), %d probes, %d threads, %d passes",
+				data.people.size(), data.gallery.size(), evaluation.recognizer.size(), data.probes.size(), threads, passes));
+		System.out.println(String.format("Template mode %s, search mode %s", templateMode.name().toLowerCase(Locale.US),
+				searchMode.name().toLowerCase(Locale.US)));
+		if (data.probes.isEmpty()) {
+			System.out.println("No probes, use a smaller --enroll");
+			return;
+		}
+		System.out.println(String.format("Throughput: %.1f images/s", passes * data.probes.size() / (probeNanos / 1e9)));
+		System.out.println();
+		printStages(all);
+		System.out.println();
+		evaluation.printAccuracy(data, probes, steps);
+	}
+
+	private static void printStages(List<Result> results) {
+		System.out.println(String.format("%-10s %8s %8s %8s %6s", "stage", "p50 ms", "p99 ms", "mean ms", "n"));
+		for (int stage = 0; stage < STAGES.length; stage++) {
+			long[] nanos = new long[results.size()];
+			int count = 0;
+			long total = 0;
+			for (Result result : results) {
+				if (result.nanos[stage] >= 0) {
+					nanos[count++] = result.nanos[stage];
+					total += result.nanos[stage];
+				}
+			}
+			if (count == 0) {
+				continue;
+			}
+			Arrays.sort(nanos, 0, count);
+			System.out.println(String.format("%-10s %8.2f %8.2f %8.2f %6d", STAGES[stage], percentile(nanos, count, 0.50) / 1e6,
+					percentile(nanos, count, 0.99) / 1e6, total / 1e6 / count, count));
+		}
+	}
+
+	// nearest rank
+	static long percentile(long[] sorted, int count, double p) {
+		int rank = (int) Math.ceil(p * count);
+		return sorted[Math.max(0, Math.min(count, rank) - 1)];
+	}
+
+	private void printAccuracy(Dataset data, Result[] probes, int steps) {
+		int known = 0, identified = 0, noFace = 0, unreadable = 0;
+		int genuineFailures = 0;
+		long candidates = 0;
+		int hashed = 0;
+		List<Double> genuine = new ArrayList<Double>();
+		List<Double> impostor = new ArrayList<Double>();
+		Prediction prediction = new Prediction();
+		for (int i = 0; i < probes.length; i++) {
+			Result result = probes[i];
+			int label = data.label(data.probes.get(i).person);
+			if (label >= 0) {
+				known++;
+			}
+			if (result.unreadable) {
+				unreadable++;
+			} else if (result.histogram == null) {
+				noFace++;
+			}
+			if (result.histogram == null) {
+				if (label >= 0) {
+					genuineFailures++;
+				}
+				continue;
+			}
+			if (label >= 0 && result.prediction.label == label) {
+				identified++;
+			}
+			if (result.candidates >= 0) {
+				candidates += result.candidates;
+				hashed++;
+			}
+			// this probe against everybody's templates, as if it claimed to be them
+			for (int claimed = 0; claimed < data.people.size(); claimed++) {
+				index.verify(result.histogram, 0, claimed, THRESHOLD, prediction);
+				if (Double.isInfinite(prediction.distance)) {
+					// nobody enrolled under that name
+					continue;
+				}
+				(claimed == label ? genuine : impostor).add(prediction.distance);
+			}
+		}
+
+		System.out.println(String.format("No face found in %d of %d probes, %d unreadable", noFace, probes.length, unreadable));
+		System.out.println(String.format("Rank-1 identification: %d of %d known probes (%.1f%%)", identified, known,
+				known == 0 ? 0 : 100.0 * identified / known));
+		if (hashed > 0) {
+			System.out.println(String.format("Hashed search compared %.1f of %d templates per probe", (double) candidates / hashed,
+					recognizer.size()));
+		}
+
+		ErrorRates rates = new ErrorRates(toArray(genuine), genuineFailures, toArray(impostor));
+		System.out.println(String.format("Verification: %d genuine attempts, %d impostor comparisons, thresholds in %s distance",
+				rates.genuineAttempts(), rates.impostorAttempts(), templateMode.distance));
+		System.out.println(String.format("%12s %8s %8s", "threshold", "FAR %", "FRR %"));
+		for (double threshold : rates.sweep(steps)) {
+			System.out.println(String.format("%12.2f %8.2f %8.2f", threshold, 100 * rates.far(threshold), 100 * rates.frr(threshold)));
+		}
+		double eer = rates.equalErrorThreshold();
+		if (!Double.isNaN(eer)) {
+			System.out.println(String.format("Closest to equal error at %.2f: FAR %.2f%%, FRR %.2f%%", eer,
+					100 * rates.far(eer), 100 * rates.frr(eer)));
+		}
+	}
+
+	private static double[] toArray(List<Double> values) {
+		double[] array = new double[values.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = values.get(i);
+		}
+		return array;
+	}
+}
@@ -0,0 +1,58 @@
+package com.googlecode.javacv.facepreview.tools;
+
+import static com.googlecode.javacv.cpp.opencv_highgui.cvLoadImage;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.googlecode.javacv.facepreview.BackgroundGallery;
+import com.googlecode.javacv.facepreview.FaceNormalizer;
+import com.googlecode.javacv.facepreview.recognition.GalleryFile;
+import com.googlecode.javacv.facepreview.recognition.LbphRecognizer;
+
+// Build time step: computes the templates of BackgroundGallery and packs them into a GalleryFile,
+// so the phone doesn't have to decode and face-detect 24 JPEGs on first run. The
+// background-gallery profile runs it in process-classes, see README.md:
+//
+//   mvn -Pbackground-gallery -Djavacv.natives=<javacv-linux-x86_64.jar> process-classes
+//
+// <source dir> is FacePreview/src, the output normally goes to
+// FacePreview/src/com/googlecode/javacv/facepreview/data/background_gallery.bin, which is not
+// checked in: only this step may produce it, so build it before packaging the app.
+public class BuildBackgroundGallery {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: BuildBackgroundGallery <source dir> <output file>");
+            System.exit(1);
+        }
+        LbphRecognizer recognizer = build(new File(args[0]));
+        GalleryFile.write(recognizer, args[1]);
+        System.out.println("Wrote " + recognizer.size() + " templates to " + args[1]);
+    }
+
+    // What FacePredictor computes when the file isn't there: normalizeColorImage on every image, in order
+    static LbphRecognizer build(File sourceDir) throws IOException {
+        FaceNormalizer normalizer = new FaceNormalizer(new File(sourceDir, FaceNormalizer.CLASSIFIER_RESOURCE).getAbsolutePath());
+        LbphRecognizer recognizer = new LbphRecognizer(LbphRecognizer.DEFAULT_RADIUS, LbphRecognizer.DEFAULT_NEIGHBORS,
+                LbphRecognizer.DEFAULT_GRID_X, LbphRecognizer.DEFAULT_GRID_Y, Double.MAX_VALUE/2);
+
+        for (int person = BackgroundGallery.FIRST_PERSON; person <= BackgroundGallery.LAST_PERSON; person++) {
+            for (String resource : BackgroundGallery.imageResources(person)) {
+                File imageFile = new File(sourceDir, resource);
+                IplImage image = cvLoadImage(imageFile.getAbsolutePath());
+                if (image == null || image.isNull()) {
+                    throw new IOException("Could not load " + imageFile);
+                }
+                IplImage tiny = normalizer.normalizeColorImage(image);
+                if (tiny == null) {
+                    throw new IOException("No face found in " + imageFile);
+                }
+                recognizer.update(tiny.getByteBuffer(), tiny.width(), tiny.height(), tiny.widthStep(), person);
+                System.out.println(resource + " -> " + person);
+            }
+        }
+        return recognizer;
+    }
+}
@@ -0,0 +1,92 @@
+package com.googlecode.javacv.facepreview.detection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+// Reading cascades, on a plain JVM (see Test_LbpDetector for the device)
+public class LbpCascadeTest {
+	private static final File SOURCES = new File(System.getProperty("app.src", "../src"));
+
+	private static LbpCascade load(String resource) throws IOException {
+		InputStream in = new FileInputStream(new File(SOURCES, resource));
+		try {
+			return LbpCascade.load(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void assertRejected(String xml) {
+		try {
+			LbpCascade.load(new ByteArrayInputStream(xml.getBytes()));
+			fail("loaded " + xml);
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void frontalFace() throws IOException {
+		LbpCascade cascade = load(LbpCascade.RESOURCE);
+		assertEquals(24, cascade.width());
+		assertEquals(24, cascade.height());
+		assertEquals(20, cascade.stages());
+		assertTrue(cascade.featureCount() > 0);
+		// every weak classifier of the last stage has been read
+		assertEquals(cascade.weakFeatures.length, cascade.stageEnds[cascade.stages() - 1]);
+		assertEquals(2 * cascade.weakFeatures.length, cascade.leaves.length);
+	}
+
+	@Test
+	public void sameAsTheResource() throws IOException {
+		LbpCascade file = load(LbpCascade.RESOURCE);
+		LbpCascade resource = LbpCascade.frontalFace();
+		assertEquals(file.stages(), resource.stages());
+		assertEquals(file.featureCount(), resource.featureCount());
+	}
+
+	@Test(expected = IOException.class)
+	public void haarCascadeIsNotLbp() throws IOException {
+		load("/com/googlecode/javacv/facepreview/data/haarcascade_frontalface_alt.xml");
+	}
+
+	@Test
+	public void malformed() {
+		assertRejected("<opencv_storage><cascade>");
+		assertRejected("<opencv_storage><cascade><featureType>LBP</featureType><width>24</width><height>24</height>"
+				+ "<stages/><features/></cascade></opencv_storage>");
+		// a tree instead of a stump
+		assertRejected("<opencv_storage><cascade><featureType>LBP</featureType><width>24</width><height>24</height>"
+				+ "<stages><_><stageThreshold>-1</stageThreshold><weakClassifiers><_>"
+				+ "<internalNodes>1 -1 0 0 0 0 0 0 0 0 0</internalNodes><leafValues>-1 1</leafValues>"
+				+ "</_></weakClassifiers></_></stages><features><_><rect>0 0 8 8</rect></_></features>"
+				+ "</cascade></opencv_storage>");
+		// a feature that doesn't fit in the window
+		assertRejected("<opencv_storage><cascade><featureType>LBP</featureType><width>24</width><height>24</height>"
+				+ "<stages><_><stageThreshold>-1</stageThreshold><weakClassifiers><_>"
+				+ "<internalNodes>0 -1 0 0 0 0 0 0 0 0 0</internalNodes><leafValues>-1 1</leafValues>"
+				+ "</_></weakClassifiers></_></stages><features><_><rect>0 0 9 8</rect></_></features>"
+				+ "</cascade></opencv_storage>");
+	}
+
+	@Test
+	public void smallestValidCascade() throws IOException {
+		LbpCascade cascade = LbpCascade.load(new ByteArrayInputStream(("<opencv_storage><cascade>"
+				+ "<featureType>LBP</featureType><width>24</width><height>24</height>"
+				+ "<stages><_><stageThreshold>-1</stageThreshold><weakClassifiers><_>"
+				+ "<internalNodes>0 -1 0 0 0 0 0 0 0 0 0</internalNodes><leafValues>-1 1</leafValues>"
+				+ "</_></weakClassifiers></_></stages><features><_><rect>0 0 8 8</rect></_></features>"
+				+ "</cascade></opencv_storage>").getBytes()));
+		assertEquals(1, cascade.stages());
+		assertEquals(1, cascade.featureCount());
+	}
+}
@@ -0,0 +1,81 @@
+package com.googlecode.javacv.facepreview.detection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+// The Java LBP detector on a plain JVM: images are decoded with ImageIO, no opencv anywhere.
+// The expected faces are where the Haar cascade (FaceNormalizer.detectFace) finds them;
+// Test_LbpDetector compares against it directly on the device.
+public class LbpDetectorTest {
+	private static final File DATA = new File(System.getProperty("app.src", "../src"), "com/googlecode/javacv/facepreview/data");
+
+	private static LbpDetector detector;
+
+	@BeforeClass
+	public static void loadCascade() throws IOException {
+		detector = new LbpDetector(LbpCascade.frontalFace());
+	}
+
+	// 8 bit gray, rows width bytes apart
+	static byte[] gray(BufferedImage image) {
+		int width = image.getWidth(), height = image.getHeight();
+		byte[] gray = new byte[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int rgb = image.getRGB(x, y);
+				int r = (rgb >> 16) & 0xff, g = (rgb >> 8) & 0xff, b = rgb & 0xff;
+				gray[y * width + x] = (byte) ((299 * r + 587 * g + 114 * b + 500) / 1000);
+			}
+		}
+		return gray;
+	}
+
+	private static List<Detection> detect(String name, int minSize, int maxSize) throws IOException {
+		BufferedImage image = ImageIO.read(new File(DATA, name));
+		return detector.detect(gray(image), 0, image.getWidth(), image.getHeight(), image.getWidth(), minSize, maxSize);
+	}
+
+	private static void assertFace(String name, int x, int y, int size) throws IOException {
+		List<Detection> faces = detect(name, 0, 0);
+		assertFalse(name, faces.isEmpty());
+		// the biggest one is the face, the two cascades frame it a little differently
+		Detection face = faces.get(0);
+		int tolerance = size / 4;
+		assertEquals(name, x + size / 2, face.x + face.width / 2, tolerance);
+		assertEquals(name, y + size / 2, face.y + face.height / 2, tolerance);
+		assertEquals(name, size, face.width, tolerance);
+	}
+
+	@Test
+	public void sameFaceAsHaar() throws IOException {
+		assertFace("authorized_1.jpg", 421, 171, 558);
+		assertFace("authorized_2.jpg", 488, 245, 507);
+		assertFace("authorized_test.jpg", 325, 228, 540);
+		assertFace("a_02_05.jpg", 142, 112, 263);
+		assertFace("b_10_10.jpg", 160, 85, 297);
+	}
+
+	@Test
+	public void noFace() throws IOException {
+		assertTrue(detect("no_face.jpg", 0, 0).isEmpty());
+	}
+
+	@Test
+	public void minAndMaxSize() throws IOException {
+		assertFalse(detect("a_02_05.jpg", 0, 0).isEmpty());
+		// the face is about 260 pixels wide
+		assertTrue(detect("a_02_05.jpg", 0, 100).isEmpty());
+		assertFalse(detect("a_02_05.jpg", 200, 0).isEmpty());
+	}
+}
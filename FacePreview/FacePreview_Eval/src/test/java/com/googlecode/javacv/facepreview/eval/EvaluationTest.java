@@ -0,0 +1,160 @@
+package com.googlecode.javacv.facepreview.eval;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.googlecode.javacv.facepreview.eval.EvaluateRecognition.SearchMode;
+import com.googlecode.javacv.facepreview.eval.EvaluateRecognition.TemplateMode;
+import com.googlecode.javacv.facepreview.recognition.LbphRecognizer;
+import com.googlecode.javacv.facepreview.recognition.Prediction;
+import com.googlecode.javacv.facepreview.recognition.TemplateIndex;
+
+// The report is only worth something if the bookkeeping is right. None of this needs opencv.
+public class EvaluationTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void ratesAtThresholds() {
+		// one genuine attempt found no face
+		ErrorRates rates = new ErrorRates(new double[] { 1, 2, 3 }, 1, new double[] { 2.5, 4, 5, 6 });
+		assertEquals(4, rates.genuineAttempts());
+		assertEquals(4, rates.impostorAttempts());
+		// nothing accepted
+		assertEquals(0, rates.far(1), 0);
+		assertEquals(1, rates.frr(1), 0);
+		assertEquals(0.25, rates.far(3), 0);
+		assertEquals(0.5, rates.frr(3), 0);
+		// everything accepted, except the attempt without a face
+		assertEquals(1, rates.far(100), 0);
+		assertEquals(0.25, rates.frr(100), 0);
+	}
+
+	@Test
+	public void sweepCoversAllDistances() {
+		ErrorRates rates = new ErrorRates(new double[] { 1, 2 }, 0, new double[] { 3, 5 });
+		double[] thresholds = rates.sweep(4);
+		assertEquals(5, thresholds.length);
+		assertEquals(1, thresholds[0], 0);
+		assertEquals(1, rates.frr(thresholds[0]), 0);
+		assertEquals(0, rates.frr(thresholds[4]), 0);
+		assertEquals(1, rates.far(thresholds[4]), 0);
+	}
+
+	@Test
+	public void equalErrorThreshold() {
+		// separable: everything under 3 is genuine
+		ErrorRates rates = new ErrorRates(new double[] { 1, 2 }, 0, new double[] { 3, 5 });
+		double threshold = rates.equalErrorThreshold();
+		assertEquals(0, rates.far(threshold), 0);
+		assertEquals(0, rates.frr(threshold), 0);
+		assertEquals(Double.NaN, new ErrorRates(new double[0], 0, new double[0]).equalErrorThreshold(), 0);
+	}
+
+	@Test
+	public void percentile() {
+		long[] sorted = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+		assertEquals(5, EvaluateRecognition.percentile(sorted, 10, 0.5));
+		assertEquals(10, EvaluateRecognition.percentile(sorted, 10, 0.99));
+		assertEquals(1, EvaluateRecognition.percentile(sorted, 1, 0.99));
+	}
+
+	@Test
+	public void peopleFromFileNames() {
+		assertEquals("07", Dataset.personOf("a_07_15.jpg"));
+		assertEquals("07", Dataset.personOf("b_07_05.jpg"));
+		assertEquals(Dataset.AUTHORIZED, Dataset.personOf("authorized_test_2.jpg"));
+		assertNull(Dataset.personOf("no_face.jpg"));
+	}
+
+	@Test
+	public void splitsFlatFolder() throws IOException {
+		File dir = folder.getRoot();
+		for (String name : new String[] { "a_02_05.jpg", "a_02_15.jpg", "b_02_05.jpg", "b_02_15.jpg",
+				"authorized_1.jpg", "authorized_2.jpg", "authorized_test.jpg", "no_face.jpg", "notes.txt" }) {
+			new File(dir, name).createNewFile();
+		}
+		Dataset data = Dataset.scan(dir, 2);
+		assertEquals(Arrays.asList("02", Dataset.AUTHORIZED), data.people);
+		assertEquals("[a_02_05.jpg, a_02_15.jpg, authorized_1.jpg, authorized_2.jpg]", data.gallery.toString());
+		assertEquals("[b_02_05.jpg, b_02_15.jpg, authorized_test.jpg, no_face.jpg]", data.probes.toString());
+		assertEquals(-1, data.label(data.probes.get(3).person));
+	}
+
+	@Test
+	public void splitsFolderPerPerson() throws IOException {
+		for (String name : new String[] { "ann/1.png", "ann/2.png", "bob/1.png", "stranger.png" }) {
+			File file = new File(folder.getRoot(), name);
+			file.getParentFile().mkdirs();
+			file.createNewFile();
+		}
+		Dataset data = Dataset.scan(folder.getRoot(), 1);
+		assertEquals(Arrays.asList("ann", "bob"), data.people);
+		assertEquals(2, data.gallery.size());
+		assertEquals(1, data.label(data.gallery.get(1).person));
+		// ann's second picture, and somebody we don't know
+		assertEquals(2, data.probes.size());
+		assertNull(data.probes.get(1).person);
+	}
+
+	@Test
+	public void searchModesForTemplateModes() {
+		assertTrue(EvaluateRecognition.supported(TemplateMode.HISTOGRAM, SearchMode.HASHED));
+		assertTrue(EvaluateRecognition.supported(TemplateMode.BIOHASH, SearchMode.SCAN));
+		assertFalse(EvaluateRecognition.supported(TemplateMode.PROJECTED, SearchMode.HASHED));
+	}
+
+	// Every mode finds a template again, and verifies in its own units: Hamming distances are whole bits
+	@Test
+	public void everyModeMatchesItsTemplates() {
+		LbphRecognizer gallery = EvaluateRecognition.newRecognizer();
+		int dimension = gallery.dimension();
+		float[][] faces = new float[6][dimension];
+		Random random = new Random(7);
+		for (int i = 0; i < faces.length; i++) {
+			for (int j = 0; j < dimension; j++) {
+				faces[i][j] = random.nextInt(20);
+			}
+			gallery.add(faces[i], 0, i / 2);
+		}
+		Prediction prediction = new Prediction();
+		for (TemplateMode templateMode : TemplateMode.values()) {
+			for (SearchMode searchMode : SearchMode.values()) {
+				if (!EvaluateRecognition.supported(templateMode, searchMode)) {
+					continue;
+				}
+				TemplateIndex index = EvaluateRecognition.newIndex(gallery, templateMode, searchMode);
+				assertEquals(templateMode.name(), gallery.size(), index.size());
+				for (int i = 0; i < faces.length; i++) {
+					String what = templateMode + "/" + searchMode + " face " + i;
+					if (searchMode == SearchMode.HASHED) {
+						EvaluateRecognition.newLshIndex(gallery).predict(faces[i], 0, prediction);
+					} else {
+						index.predict(faces[i], 0, prediction);
+					}
+					assertEquals(what, i / 2, prediction.label);
+					assertEquals(what, 0, prediction.distance, 1e-6);
+
+					index.verify(faces[i], 0, (i / 2 + 1) % 3, Double.MAX_VALUE, prediction);
+					assertTrue(what, prediction.distance > 0);
+					if (templateMode == TemplateMode.BIOHASH) {
+						assertEquals(what, Math.rint(prediction.distance), prediction.distance, 0);
+						assertTrue(what, prediction.distance <= EvaluateRecognition.BIOHASH_BITS);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package com.googlecode.javacv.facepreview.tools;
+
+import static com.googlecode.javacv.cpp.opencv_highgui.cvLoadImage;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assume.assumeNoException;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.googlecode.javacv.facepreview.BackgroundGallery;
+import com.googlecode.javacv.facepreview.FaceNormalizer;
+import com.googlecode.javacv.facepreview.recognition.GalleryFile;
+import com.googlecode.javacv.facepreview.recognition.LbphRecognizer;
+
+// background_gallery.bin has to hold exactly the templates FacePredictor would compute without it,
+// since calibrateThreshold sets the unlock threshold from them. It isn't checked in; the tests on
+// the file are skipped until the background-gallery profile has built it, and the ones that
+// compute templates need the opencv natives.
+public class BackgroundGalleryTest {
+	private static final File SOURCES = new File(System.getProperty("app.src", "../src"));
+	private static final File BUILT = new File(SOURCES, BackgroundGallery.RESOURCE);
+
+	private static LbphRecognizer newRecognizer() {
+		return new LbphRecognizer(LbphRecognizer.DEFAULT_RADIUS, LbphRecognizer.DEFAULT_NEIGHBORS,
+				LbphRecognizer.DEFAULT_GRID_X, LbphRecognizer.DEFAULT_GRID_Y, Double.MAX_VALUE / 2);
+	}
+
+	private static LbphRecognizer read(File file) throws IOException {
+		LbphRecognizer recognizer = newRecognizer();
+		InputStream in = new FileInputStream(file);
+		try {
+			// throws unless the header matches the default LBPH parameters and the checksum is right
+			GalleryFile.read(in, file.length(), recognizer);
+		} finally {
+			in.close();
+		}
+		return recognizer;
+	}
+
+	// The slow path of FacePredictor(context, images): normalizeColorImage on every image
+	private static LbphRecognizer slowPath() {
+		FaceNormalizer normalizer;
+		try {
+			normalizer = new FaceNormalizer(new File(SOURCES, FaceNormalizer.CLASSIFIER_RESOURCE).getAbsolutePath());
+		} catch (Throwable e) {
+			assumeNoException("no opencv natives", e);
+			return null;
+		}
+		LbphRecognizer slow = newRecognizer();
+		for (int person = BackgroundGallery.FIRST_PERSON; person <= BackgroundGallery.LAST_PERSON; person++) {
+			for (String resource : BackgroundGallery.imageResources(person)) {
+				IplImage image = cvLoadImage(new File(SOURCES, resource).getAbsolutePath());
+				IplImage tiny = normalizer.normalizeColorImage(image);
+				assertNotNull(resource, tiny);
+				slow.update(tiny.getByteBuffer(), tiny.width(), tiny.height(), tiny.widthStep(), person);
+			}
+		}
+		return slow;
+	}
+
+	private static void assertSameTemplates(LbphRecognizer expected, LbphRecognizer actual) {
+		assertEquals(expected.size(), actual.size());
+		int dimension = expected.dimension();
+		float[] a = new float[dimension];
+		float[] b = new float[dimension];
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals("template " + i, expected.label(i), actual.label(i));
+			expected.template(i, a, 0);
+			actual.template(i, b, 0);
+			assertArrayEquals("template " + i, a, b, 0);
+		}
+	}
+
+	@Test
+	public void everyImageInOrder() throws IOException {
+		assumeTrue(BUILT.exists());
+		LbphRecognizer gallery = read(BUILT);
+		int i = 0;
+		for (int person = BackgroundGallery.FIRST_PERSON; person <= BackgroundGallery.LAST_PERSON; person++) {
+			for (int image = 0; image < BackgroundGallery.imageResources(person).length; image++) {
+				assertEquals("template " + i, person, gallery.label(i++));
+			}
+		}
+		assertEquals(i, gallery.size());
+	}
+
+	@Test
+	public void builderWritesTheSlowPath() throws IOException {
+		LbphRecognizer slow = slowPath();
+		File file = File.createTempFile("background_gallery", ".bin");
+		try {
+			GalleryFile.write(BuildBackgroundGallery.build(SOURCES), file.getAbsolutePath());
+			assertSameTemplates(slow, read(file));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void builtFileIsTheSlowPath() throws IOException {
+		assumeTrue(BUILT.exists());
+		assertSameTemplates(slowPath(), read(BUILT));
+	}
+}
@@ -0,0 +1,60 @@
+package com.googlecode.javacv.facepreview;
+
+import static com.googlecode.javacv.cpp.opencv_highgui.cvLoadImage;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.test.AndroidTestCase;
+
+import com.googlecode.javacpp.Loader;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.googlecode.javacv.facepreview.recognition.GalleryFile;
+import com.googlecode.javacv.facepreview.recognition.LbphRecognizer;
+
+// The packaged background_gallery.bin against what FacePredictor computes without it, with the
+// phone's own opencv. calibrateThreshold sets the unlock threshold from these templates, so a file
+// built on a desktop is only good to ship if the phone would have computed the very same ones.
+public class Test_BackgroundGallery extends AndroidTestCase {
+
+	private static LbphRecognizer newRecognizer() {
+		return new LbphRecognizer(LbphRecognizer.DEFAULT_RADIUS, LbphRecognizer.DEFAULT_NEIGHBORS,
+				LbphRecognizer.DEFAULT_GRID_X, LbphRecognizer.DEFAULT_GRID_Y, Double.MAX_VALUE / 2);
+	}
+
+	public void testSameAsSlowPath() throws IOException {
+		InputStream in = getClass().getResourceAsStream(BackgroundGallery.RESOURCE);
+		if (in == null) {
+			// not built, FacePredictor takes the slow path itself
+			return;
+		}
+		LbphRecognizer gallery = newRecognizer();
+		try {
+			GalleryFile.read(in, gallery);
+		} finally {
+			in.close();
+		}
+
+		FaceNormalizer normalizer = new FaceNormalizer(getContext().getCacheDir());
+		int dimension = gallery.dimension();
+		float[] computed = new float[dimension];
+		float[] stored = new float[dimension];
+		int i = 0;
+		for (int person = BackgroundGallery.FIRST_PERSON; person <= BackgroundGallery.LAST_PERSON; person++) {
+			for (String resource : BackgroundGallery.imageResources(person)) {
+				IplImage image = cvLoadImage(Loader.extractResource(getClass(), resource, getContext().getCacheDir(), "image", ".jpg").getAbsolutePath());
+				IplImage tiny = normalizer.normalizeColorImage(image);
+				assertNotNull(resource, tiny);
+				gallery.histogram(tiny.getByteBuffer(), tiny.width(), tiny.height(), tiny.widthStep(), computed, 0);
+
+				assertEquals(resource, person, gallery.label(i));
+				gallery.template(i, stored, 0);
+				for (int k = 0; k < dimension; k++) {
+					assertEquals(resource + " bin " + k, computed[k], stored[k], 0);
+				}
+				i++;
+			}
+		}
+		assertEquals(gallery.size(), i);
+	}
+}
@@ -0,0 +1,116 @@
+package com.googlecode.javacv.facepreview;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+
+import com.googlecode.javacv.facepreview.recognition.ChiSquare;
+
+// Checks the distance kernel against the plain compareHist loop, and times both
+// (look for "ChiSquare" in the test output).
+public class Test_ChiSquare extends AndroidTestCase {
+
+	private static final int DIMENSION = 8 * 8 * 256;
+	private static final int TEMPLATES = 64;
+	private final Random random = new Random(7);
+
+	// normalized like an LBPH histogram, with plenty of empty bins
+	private float[] randomHistograms(int count) {
+		float[] histograms = new float[count * DIMENSION];
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = random.nextInt(4) == 0 ? 0 : random.nextFloat() / 128;
+		}
+		return histograms;
+	}
+
+	// what the recognizer used to do, one bin at a time
+	private static double reference(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		double result = 0;
+		for (int i = 0; i < length; i++) {
+			double x = a[aOffset + i];
+			if (Math.abs(x) > 2.220446049250313e-16) {
+				double d = x - b[bOffset + i];
+				result += d * d / x;
+			}
+		}
+		return result;
+	}
+
+	public void testMatchesReference() {
+		float[] templates = randomHistograms(TEMPLATES);
+		float[] query = randomHistograms(1);
+		for (int i = 0; i < TEMPLATES; i++) {
+			double expected = reference(templates, i * DIMENSION, query, 0, DIMENSION);
+			assertEquals(expected, ChiSquare.distance(templates, i * DIMENSION, query, 0, DIMENSION), expected * 1e-12);
+		}
+		// odd lengths go through the tail loop
+		assertEquals(reference(templates, 3, query, 5, 1001), ChiSquare.distance(templates, 3, query, 5, 1001), 1e-9);
+	}
+
+	public void testBufferMatchesArray() {
+		float[] templates = randomHistograms(4);
+		float[] query = randomHistograms(1);
+		FloatBuffer buffer = ByteBuffer.allocateDirect(4 * templates.length).asFloatBuffer();
+		buffer.put(templates);
+		float[] scratch = new float[256];
+		for (int i = 0; i < 4; i++) {
+			assertEquals(ChiSquare.distance(templates, i * DIMENSION, query, 0, DIMENSION),
+					ChiSquare.distance(buffer, i * DIMENSION, query, 0, DIMENSION, Double.POSITIVE_INFINITY, scratch), 0);
+		}
+	}
+
+	public void testBoundOnlyStopsLosers() {
+		float[] templates = randomHistograms(2);
+		float[] query = randomHistograms(1);
+		double full = ChiSquare.distance(templates, 0, query, 0, DIMENSION);
+		assertEquals(full, ChiSquare.distance(templates, 0, query, 0, DIMENSION, full * 2), 0);
+		assertTrue(ChiSquare.distance(templates, 0, query, 0, DIMENSION, full / 2) >= full / 2);
+	}
+
+	public void testBenchmark() {
+		float[] templates = randomHistograms(TEMPLATES);
+		float[] query = randomHistograms(1);
+		int rounds = 20;
+		double sink = 0;
+
+		// warm up both
+		for (int i = 0; i < TEMPLATES; i++) {
+			sink += reference(templates, i * DIMENSION, query, 0, DIMENSION);
+			sink += ChiSquare.distance(templates, i * DIMENSION, query, 0, DIMENSION);
+		}
+
+		long start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			for (int i = 0; i < TEMPLATES; i++) {
+				sink += reference(templates, i * DIMENSION, query, 0, DIMENSION);
+			}
+		}
+		long referenceTime = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			for (int i = 0; i < TEMPLATES; i++) {
+				sink += ChiSquare.distance(templates, i * DIMENSION, query, 0, DIMENSION);
+			}
+		}
+		long kernelTime = System.nanoTime() - start;
+
+		// a nearest neighbour scan, which can abandon most comparisons
+		start = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			double best = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < TEMPLATES; i++) {
+				best = Math.min(best, ChiSquare.distance(templates, i * DIMENSION, query, 0, DIMENSION, best));
+			}
+			sink += best;
+		}
+		long boundedTime = System.nanoTime() - start;
+
+		int comparisons = rounds * TEMPLATES;
+		System.out.println("ChiSquare per comparison: reference " + referenceTime / comparisons + " ns, kernel "
+				+ kernelTime / comparisons + " ns (" + String.format("%.2f", (double) referenceTime / kernelTime)
+				+ "x), bounded scan " + boundedTime / comparisons + " ns [" + sink + "]");
+	}
+}
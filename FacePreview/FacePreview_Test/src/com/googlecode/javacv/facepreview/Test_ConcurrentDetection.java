@@ -0,0 +1,134 @@
+package com.googlecode.javacv.facepreview;
+
+import static com.googlecode.javacv.cpp.opencv_highgui.cvLoadImage;
+import static com.googlecode.javacv.cpp.opencv_imgproc.CV_BGR2GRAY;
+import static com.googlecode.javacv.cpp.opencv_imgproc.cvCvtColor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.test.AndroidTestCase;
+
+import com.googlecode.javacpp.Loader;
+import com.googlecode.javacv.cpp.opencv_core.CvRect;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+// Several threads detecting and identifying at once have to get exactly what one thread gets.
+// Look for "ConcurrentDetection" in the test output for the speedup.
+public class Test_ConcurrentDetection extends AndroidTestCase {
+
+	private static final String[] IMAGES = { "a_02_05.jpg", "b_03_05.jpg", "b_04_05.jpg", "b_06_05.jpg",
+			"b_08_05.jpg", "authorized_test.jpg", "no_face.jpg" };
+	private static final int THREADS = 4;
+	private static final int ROUNDS = 3;
+
+	static FacePredictor facePredictor = null;
+
+	private IplImage[] images;
+
+	public void setUp() throws Exception {
+		images = new IplImage[IMAGES.length];
+		for (int i = 0; i < IMAGES.length; i++) {
+			images[i] = load(IMAGES[i]);
+		}
+		if (facePredictor == null) {
+			IplImage[] authorizedImages = { load("authorized_1.jpg"), load("authorized_2.jpg"), load("authorized_3.jpg") };
+			facePredictor = new FacePredictor(getContext(), authorizedImages);
+		}
+	}
+
+	private IplImage load(String name) throws IOException {
+		File imageFile = Loader.extractResource(getClass(), "/com/googlecode/javacv/facepreview/data/" + name,
+				getContext().getCacheDir(), "image", ".jpg");
+		return cvLoadImage(imageFile.getAbsolutePath());
+	}
+
+	private interface Work {
+		void run(int image) throws Exception;
+	}
+
+	// Every thread goes over all the images ROUNDS times, starting at a different one. Returns the time taken.
+	private long runConcurrently(final Work work) throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(THREADS);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		for (int t = 0; t < THREADS; t++) {
+			final int first = t;
+			new Thread() {
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < ROUNDS * IMAGES.length; i++) {
+							work.run((first + i) % IMAGES.length);
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long time = System.nanoTime() - begin;
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+		return time;
+	}
+
+	public void testDetectionUnchanged() throws Exception {
+		final FaceNormalizer normalizer = new FaceNormalizer(getContext().getCacheDir());
+		final List<IplImage> grays = new ArrayList<IplImage>();
+		final int[][] expected = new int[IMAGES.length][];
+		long serial = System.nanoTime();
+		for (int i = 0; i < IMAGES.length; i++) {
+			IplImage gray = IplImage.create(images[i].width(), images[i].height(), images[i].depth(), 1);
+			cvCvtColor(images[i], gray, CV_BGR2GRAY);
+			grays.add(gray);
+			expected[i] = rect(normalizer.detectFace(gray));
+		}
+		serial = (System.nanoTime() - serial) * THREADS * ROUNDS;
+
+		long concurrent = runConcurrently(new Work() {
+			public void run(int image) {
+				int[] actual = rect(normalizer.detectFace(grays.get(image)));
+				if (!Arrays.equals(expected[image], actual)) {
+					throw new AssertionError(IMAGES[image] + ": " + Arrays.toString(actual)
+							+ " instead of " + Arrays.toString(expected[image]));
+				}
+			}
+		});
+		assertTrue(normalizer.detectionContexts() <= THREADS);
+		System.out.println("ConcurrentDetection detectFace, " + THREADS + " threads on "
+				+ Runtime.getRuntime().availableProcessors() + " cores: " + (double) serial / concurrent + "x");
+	}
+
+	public void testIdentifyUnchanged() throws Exception {
+		final String[] expected = new String[IMAGES.length];
+		for (int i = 0; i < IMAGES.length; i++) {
+			expected[i] = facePredictor.identify(images[i]).first;
+		}
+		assertNull(expected[IMAGES.length - 1]);
+
+		runConcurrently(new Work() {
+			public void run(int image) {
+				String name = facePredictor.identify(images[image]).first;
+				if (expected[image] == null ? name != null : !expected[image].equals(name)) {
+					throw new AssertionError(IMAGES[image] + ": " + name + " instead of " + expected[image]);
+				}
+			}
+		});
+	}
+
+	private static int[] rect(CvRect r) {
+		return r.isNull() ? null : new int[] { r.x(), r.y(), r.width(), r.height() };
+	}
+}
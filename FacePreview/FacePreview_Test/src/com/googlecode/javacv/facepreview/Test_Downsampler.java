@@ -0,0 +1,121 @@
+package com.googlecode.javacv.facepreview;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+
+import com.googlecode.javacv.facepreview.compute.Downsampler;
+
+// Downsampler has to give what the old per-pixel loop gave, and should be faster.
+// Look for "Downsampler" in the test output for the timings.
+public class Test_Downsampler extends AndroidTestCase {
+
+	private static final int WIDTH = 640;
+	private static final int HEIGHT = 480;
+	private static final int RUNS = 200;
+
+	private final Random random = new Random(3);
+
+	// NV21: luma plane followed by half as much chroma
+	private byte[] frame() {
+		byte[] data = new byte[WIDTH * HEIGHT * 3 / 2];
+		random.nextBytes(data);
+		return data;
+	}
+
+	// what FaceView and FaceViewWithAnalysis used to do (createSubsampledImage)
+	private static void reference(byte[] data, int width, int f, ByteBuffer imageBuffer, int imageWidth, int imageHeight, int imageStride) {
+		int dataStride = f*width;
+		for (int y = 0; y < imageHeight; y++) {
+			int dataLine = y*dataStride;
+			int imageLine = y*imageStride;
+			for (int x = 0; x < imageWidth; x++) {
+				imageBuffer.put(imageLine + x, data[dataLine + f*x]);
+			}
+		}
+	}
+
+	// IplImage rows are padded to a multiple of 4 bytes
+	private static int stride(int width) {
+		return (width + 3) & ~3;
+	}
+
+	private void checkPoint(int f) {
+		byte[] data = frame();
+		int w = WIDTH / f, h = HEIGHT / f;
+		ByteBuffer expected = ByteBuffer.allocateDirect(stride(w) * h);
+		ByteBuffer actual = ByteBuffer.allocateDirect(stride(w) * h);
+		reference(data, WIDTH, f, expected, w, h, stride(w));
+		Downsampler.downsample(data, WIDTH, HEIGHT, f, Downsampler.Mode.POINT, actual, w, h, stride(w));
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				assertEquals(expected.get(y * stride(w) + x), actual.get(y * stride(w) + x));
+			}
+		}
+	}
+
+	public void testPointMatchesOldLoop() {
+		checkPoint(4);
+		checkPoint(8);
+		// odd factor, and a width that needs row padding
+		checkPoint(3);
+	}
+
+	public void testBoxAverages() {
+		byte[] data = frame();
+		int f = 4;
+		int w = WIDTH / f, h = HEIGHT / f;
+		ByteBuffer actual = ByteBuffer.allocateDirect(stride(w) * h);
+		Downsampler.downsample(data, WIDTH, HEIGHT, f, Downsampler.Mode.BOX, actual, w, h, stride(w));
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				int sum = 0;
+				for (int dy = 0; dy < f; dy++) {
+					for (int dx = 0; dx < f; dx++) {
+						sum += data[(y * f + dy) * WIDTH + x * f + dx] & 0xFF;
+					}
+				}
+				assertEquals(Math.round(sum / (double) (f * f)), actual.get(y * stride(w) + x) & 0xFF);
+			}
+		}
+	}
+
+	private void benchmark(int f) {
+		byte[] data = frame();
+		int w = WIDTH / f, h = HEIGHT / f;
+		ByteBuffer image = ByteBuffer.allocateDirect(stride(w) * h);
+		// warm up
+		for (int i = 0; i < RUNS; i++) {
+			reference(data, WIDTH, f, image, w, h, stride(w));
+			Downsampler.downsample(data, WIDTH, HEIGHT, f, Downsampler.Mode.POINT, image, w, h, stride(w));
+			Downsampler.downsample(data, WIDTH, HEIGHT, f, Downsampler.Mode.BOX, image, w, h, stride(w));
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < RUNS; i++) {
+			reference(data, WIDTH, f, image, w, h, stride(w));
+		}
+		long old = (System.nanoTime() - start) / RUNS;
+		start = System.nanoTime();
+		for (int i = 0; i < RUNS; i++) {
+			Downsampler.downsample(data, WIDTH, HEIGHT, f, Downsampler.Mode.POINT, image, w, h, stride(w));
+		}
+		long point = (System.nanoTime() - start) / RUNS;
+		start = System.nanoTime();
+		for (int i = 0; i < RUNS; i++) {
+			Downsampler.downsample(data, WIDTH, HEIGHT, f, Downsampler.Mode.BOX, image, w, h, stride(w));
+		}
+		long box = (System.nanoTime() - start) / RUNS;
+		System.out.println("Downsampler " + WIDTH + "x" + HEIGHT + " / " + f + ": old loop " + old / 1000 + " us, point "
+				+ point / 1000 + " us, box " + box / 1000 + " us");
+	}
+
+	public void testBenchmark4x() {
+		benchmark(4);
+	}
+
+	public void testBenchmark8x() {
+		benchmark(8);
+	}
+}
@@ -7,11 +7,18 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.googlecode.javacpp.Loader;
+import com.googlecode.javacv.cpp.opencv_core.CvRect;
 import com.googlecode.javacv.cpp.opencv_core.IplImage;
 import com.googlecode.javacv.facepreview.FacePredictor;
+import com.googlecode.javacv.facepreview.compute.Downsampler;
 
+import static com.googlecode.javacv.cpp.opencv_core.IPL_DEPTH_8U;
 import static com.googlecode.javacv.cpp.opencv_highgui.*;
 
 import android.os.Debug;
@@ -167,6 +174,29 @@ public class Test_FacePredictor extends AndroidTestCase {
 		*/
 	}
 
+	// A damaged model has to fail to load with an IOException that isn't FileNotFoundException, so
+	// FacePredictorFactory keeps it instead of training a new one over it. Loading only looks at
+	// the header and the length (save() checked the payload), so cut the last histogram short.
+	public void testDamagedModelIsNotLoaded() throws Exception {
+		facePredictor.save(getContext(), "damaged.bin");
+		File file = new File(getContext().getExternalFilesDir(null), "damaged.bin");
+		RandomAccessFile model = new RandomAccessFile(file, "rw");
+		try {
+			model.setLength(model.length() - 1);
+		} finally {
+			model.close();
+		}
+		try {
+			new FacePredictor(getContext(), "damaged.bin");
+			fail("loaded a damaged model");
+		} catch (FileNotFoundException e) {
+			fail(e.toString());
+		} catch (IOException e) {
+			// expected
+		}
+		assertTrue(file.exists());
+	}
+
 	// This is allowed to fail
 	public void testCurrentRecognizer() throws Exception {
 		// Due to changes, this is now expected to fail. Can't load things from the test context's application directory
@@ -178,6 +208,123 @@ public class Test_FacePredictor extends AndroidTestCase {
 		*/
 	}
 	
+	// The Y plane of a camera frame is just the gray image without row padding
+	private static byte[] luma(IplImage gray) {
+		byte[] luma = new byte[gray.width() * gray.height()];
+		ByteBuffer buffer = gray.getByteBuffer();
+		for (int y = 0; y < gray.height(); y++) {
+			buffer.position(y * gray.widthStep());
+			buffer.get(luma, y * gray.width(), gray.width());
+		}
+		return luma;
+	}
+
+	private IplImage loadGray(String name) throws IOException {
+		File imageFile = Loader.extractResource(getClass(), "/com/googlecode/javacv/facepreview/data/" + name,
+				getContext().getCacheDir(), "image", ".jpg");
+		return cvLoadImage(imageFile.getAbsolutePath(), CV_LOAD_IMAGE_GRAYSCALE);
+	}
+
+	// The region is the frame's own pixels, so a box found in it cuts the same face as in the frame
+	public void testCropRegionSameAsRoi() throws IOException {
+		FaceNormalizer normalizer = new FaceNormalizer(getContext().getCacheDir());
+		IplImage gray = loadGray("b_04_05.jpg");
+		byte[] luma = luma(gray);
+		int scale = 8;
+		IplImage small = IplImage.create(gray.width() / scale, gray.height() / scale, IPL_DEPTH_8U, 1);
+		Downsampler.downsample(luma, gray.width(), gray.height(), scale, Downsampler.Mode.POINT, small);
+		CvRect face = normalizer.detectFace(small);
+		assertFalse(face.isNull());
+
+		CvRect region = new CvRect();
+		IplImage crop = FaceNormalizer.cropRegion(luma, gray.width(), gray.height(), face, scale, null, region);
+		CvRect found = normalizer.detectFace(crop, FaceNormalizer.inRegion(face, scale, region));
+		assertFalse(found.isNull());
+		IplImage actual = normalizer.toTiny(crop, found);
+		CvRect inFrame = new CvRect(found.x() + region.x(), found.y() + region.y(), found.width(), found.height());
+		IplImage expected = normalizer.toTiny(gray, inFrame);
+		assertEquals(expected.getByteBuffer(), actual.getByteBuffer());
+
+		// clipped at the border: margin of (int) (SEARCH_MARGIN * 100) on every side of the box
+		int margin = (int) (FaceTracker.SEARCH_MARGIN * 100);
+		CvRect edge = new CvRect(-20, 100, 100, 60);
+		crop = FaceNormalizer.cropRegion(luma, gray.width(), gray.height(), edge, 1, crop, region);
+		assertEquals(0, region.x());
+		assertEquals(100 - margin, region.y());
+		assertEquals(80 + margin, crop.width());
+		assertEquals(60 + 2 * margin, crop.height());
+		assertNull(FaceNormalizer.cropRegion(luma, gray.width(), gray.height(), new CvRect(-400, 0, 100, 100), 1, null, region));
+	}
+
+	public void testIdentifyFromLuma() throws IOException {
+		// what FaceViewWithAnalysis does: find the face in a small copy, recognize it in the full frame
+		FaceNormalizer normalizer = new FaceNormalizer(getContext().getCacheDir());
+		IplImage gray = loadGray("b_04_05.jpg");
+		byte[] luma = luma(gray);
+		int scale = 8;
+		IplImage small = IplImage.create(gray.width() / scale, gray.height() / scale, IPL_DEPTH_8U, 1);
+		Downsampler.downsample(luma, gray.width(), gray.height(), scale, Downsampler.Mode.POINT, small);
+		CvRect face = normalizer.detectFace(small);
+		assertFalse(face.isNull());
+		assertEquals("4", facePredictor.identify(luma, gray.width(), gray.height(), face, scale).first);
+	}
+
+	// What FaceViewWithAnalysis does: find the face in a copy shrunk by 8, cut the region around it
+	// out of the full frame, and find it again there. Has to decide like the whole picture does.
+	public void testRegionSameAsFullFrame() throws IOException {
+		FaceNormalizer normalizer = new FaceNormalizer(getContext().getCacheDir());
+		int scale = 8;
+		String[] files = { "authorized_test.jpg", "authorized_1_2.jpg", "authorized_2_2.jpg", "b_02_05.jpg", "b_03_05.jpg",
+				"b_04_05.jpg", "b_05_05.jpg", "b_06_05.jpg", "b_07_05.jpg", "b_08_05.jpg", "b_09_05.jpg" };
+		for (String name : files) {
+			IplImage gray = loadGray(name);
+			byte[] luma = luma(gray);
+			IplImage small = IplImage.create(gray.width() / scale, gray.height() / scale, IPL_DEPTH_8U, 1);
+			Downsampler.downsample(luma, gray.width(), gray.height(), scale, Downsampler.Mode.POINT, small);
+			CvRect face = normalizer.detectFace(small);
+			assertFalse(name, face.isNull());
+
+			CvRect region = new CvRect();
+			IplImage crop = FaceNormalizer.cropRegion(luma, gray.width(), gray.height(), face, scale, null, region);
+			CvRect near = FaceNormalizer.inRegion(face, scale, region);
+			assertEquals(name, facePredictor.authenticate(gray), facePredictor.authenticate(crop, near));
+			assertEquals(name, facePredictor.identify(gray).first, facePredictor.identify(luma, gray.width(), gray.height(), face, scale).first);
+		}
+		// not just the same because everything is rejected
+		assertTrue(facePredictor.authenticate(loadGray("authorized_test.jpg")));
+	}
+
+	public void testIdentifyAll() throws Exception {
+		String[] files = { "b_03_05.jpg", "b_08_05.jpg", "no_face.jpg", "b_04_05.jpg", null, "b_06_05.jpg", "authorized_test.jpg" };
+		String[] names = { "3", "8", null, "4", null, "6", "11" };
+		List<IplImage> images = new ArrayList<IplImage>();
+		for (String file : files) {
+			images.add(file == null ? null : cvLoadImage(Loader.extractResource(getClass(),
+					"/com/googlecode/javacv/facepreview/data/" + file, getContext().getCacheDir(), "image", ".jpg").getAbsolutePath()));
+		}
+
+		long start = System.nanoTime();
+		for (IplImage image : images) {
+			if (image != null) {
+				facePredictor.identify(image);
+			}
+		}
+		long serial = System.nanoTime() - start;
+		start = System.nanoTime();
+		List<FacePredictor.Identification> results = facePredictor.identifyAll(images);
+		long batch = System.nanoTime() - start;
+
+		assertEquals(files.length, results.size());
+		for (int i = 0; i < files.length; i++) {
+			FacePredictor.Identification result = results.get(i);
+			// the null image fails on its own, the rest are unaffected
+			assertEquals(files[i] == null, result.failed());
+			assertEquals(String.valueOf(files[i]), names[i], result.name);
+		}
+		System.out.println("identifyAll " + files.length + " images on " + Runtime.getRuntime().availableProcessors()
+				+ " cores: " + serial / 1000000 + " ms one by one, " + batch / 1000000 + " ms in a batch");
+	}
+
 	public void testNoFace() throws Exception {
 		File imageFile = Loader.extractResource(getClass(),
 				"/com/googlecode/javacv/facepreview/data/no_face.jpg",
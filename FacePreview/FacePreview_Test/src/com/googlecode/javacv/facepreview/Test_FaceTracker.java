@@ -0,0 +1,82 @@
+package com.googlecode.javacv.facepreview;
+
+import static com.googlecode.javacv.cpp.opencv_core.cvLoad;
+import static com.googlecode.javacv.cpp.opencv_highgui.CV_LOAD_IMAGE_GRAYSCALE;
+import static com.googlecode.javacv.cpp.opencv_highgui.cvLoadImage;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.test.AndroidTestCase;
+
+import com.googlecode.javacpp.Loader;
+import com.googlecode.javacv.cpp.opencv_core.CvMemStorage;
+import com.googlecode.javacv.cpp.opencv_core.CvRect;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.googlecode.javacv.cpp.opencv_objdetect;
+import com.googlecode.javacv.cpp.opencv_objdetect.CvHaarClassifierCascade;
+
+// Someone standing still in front of the camera: the tracker has to keep finding the same face
+// as a full detection, for less. Look for "FaceTracker" in the test output for the timings.
+public class Test_FaceTracker extends AndroidTestCase {
+
+	private static final int FRAMES = 60;
+
+	private CvHaarClassifierCascade classifier;
+
+	public void setUp() throws Exception {
+		File classifierFile = Loader.extractResource(getClass(), FaceNormalizer.CLASSIFIER_RESOURCE,
+				getContext().getCacheDir(), "classifier", ".xml");
+		Loader.load(opencv_objdetect.class);
+		classifier = new CvHaarClassifierCascade(cvLoad(classifierFile.getAbsolutePath()));
+		assertFalse(classifier.isNull());
+	}
+
+	private IplImage load(String name) throws IOException {
+		File imageFile = Loader.extractResource(getClass(), "/com/googlecode/javacv/facepreview/data/" + name,
+				getContext().getCacheDir(), "image", ".jpg");
+		return cvLoadImage(imageFile.getAbsolutePath(), CV_LOAD_IMAGE_GRAYSCALE);
+	}
+
+	public void testTracksStillFace() throws IOException {
+		IplImage image = load("authorized_1.jpg");
+		CvMemStorage storage = CvMemStorage.create();
+
+		CvRect full = new CvRect();
+		long start = System.nanoTime();
+		for (int i = 0; i < FRAMES; i++) {
+			assertTrue(FaceTracker.detect(image, classifier, storage, null, full));
+		}
+		long fullTime = (System.nanoTime() - start) / FRAMES;
+
+		FaceTracker tracker = new FaceTracker(classifier, 15);
+		start = System.nanoTime();
+		for (int i = 0; i < FRAMES; i++) {
+			CvRect tracked = tracker.track(image);
+			assertNotNull(tracked);
+			// the same face, give or take the cascade's scale steps
+			int tolerance = full.width() / 5;
+			assertEquals(full.x() + full.width() / 2, tracked.x() + tracked.width() / 2, tolerance);
+			assertEquals(full.y() + full.height() / 2, tracked.y() + tracked.height() / 2, tolerance);
+			assertEquals(full.width(), tracked.width(), tolerance);
+		}
+		long trackTime = (System.nanoTime() - start) / FRAMES;
+
+		// one full detection to start with, then one every 15 frames
+		assertEquals(4, tracker.fullDetections());
+		assertEquals(0, tracker.losses());
+		System.out.println("FaceTracker " + image.width() + "x" + image.height() + ": full detection " + fullTime / 1000
+				+ " us, tracked " + trackTime / 1000 + " us per frame");
+		assertTrue(trackTime < fullTime);
+	}
+
+	public void testNoFace() throws IOException {
+		IplImage image = load("no_face.jpg");
+		FaceTracker tracker = new FaceTracker(classifier);
+		for (int i = 0; i < 5; i++) {
+			assertNull(tracker.track(image));
+		}
+		// nothing to track, so every frame is a full search
+		assertEquals(5, tracker.fullDetections());
+	}
+}
@@ -0,0 +1,124 @@
+package com.googlecode.javacv.facepreview;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.test.AndroidTestCase;
+
+import com.googlecode.javacv.facepreview.compute.FramePipeline;
+
+public class Test_FramePipeline extends AndroidTestCase {
+
+	private static final int STAGE_MILLIS = 20;
+
+	private static class Frame {
+		int number;
+		int stagesSeen;
+	}
+
+	private static FramePipeline.Stage<Frame> sleeping(final int millis) {
+		return new FramePipeline.Stage<Frame>() {
+			public boolean process(Frame frame) {
+				frame.stagesSeen++;
+				try {
+					Thread.sleep(millis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return true;
+			}
+		};
+	}
+
+	// Three stages of 20ms each: serially a frame takes 60ms, pipelined one should come out
+	// about every 20ms. Frames arriving faster than that are dropped instead of queueing up.
+	public void testThroughputIsSlowestStage() throws InterruptedException {
+		final ConcurrentLinkedQueue<Frame> recycled = new ConcurrentLinkedQueue<Frame>();
+		FramePipeline<Frame> pipeline = new FramePipeline<Frame>("test", new FramePipeline.Recycler<Frame>() {
+			public void recycle(Frame frame) {
+				recycled.add(frame);
+			}
+		});
+		for (int i = 0; i < 3; i++) {
+			pipeline.addStage(sleeping(STAGE_MILLIS));
+		}
+		pipeline.start();
+
+		final int frames = 200;
+		long start = System.nanoTime();
+		for (int i = 0; i < frames; i++) {
+			Frame frame = new Frame();
+			frame.number = i;
+			pipeline.submit(frame);
+			// a 200fps camera
+			Thread.sleep(5);
+		}
+		long elapsedMillis = (System.nanoTime() - start) / 1000000;
+		// let the last frames drain
+		Thread.sleep(4 * STAGE_MILLIS);
+		pipeline.shutdown();
+		Thread.sleep(2 * STAGE_MILLIS);
+
+		System.out.println("FramePipeline: " + pipeline.completed() + " of " + pipeline.submitted() + " frames in "
+				+ elapsedMillis + " ms, " + pipeline.dropped() + " dropped");
+		assertEquals(frames, pipeline.submitted());
+		// every frame comes back exactly once
+		assertEquals(frames, recycled.size());
+		assertEquals(frames, pipeline.completed() + pipeline.dropped());
+		assertTrue(pipeline.dropped() > 0);
+		// more than serial processing would manage (elapsed / 60ms)
+		assertTrue(pipeline.completed() > elapsedMillis / (3 * STAGE_MILLIS));
+		for (Frame frame : recycled) {
+			assertTrue(frame.stagesSeen <= 3);
+		}
+	}
+
+	// An idle pipeline has to pass the frame it was given, not hold it back for a newer one
+	public void testSingleFrameGetsThrough() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		final Frame[] result = new Frame[1];
+		FramePipeline<Frame> pipeline = new FramePipeline<Frame>("test", new FramePipeline.Recycler<Frame>() {
+			public void recycle(Frame frame) {
+				result[0] = frame;
+				done.countDown();
+			}
+		});
+		pipeline.addStage(sleeping(1));
+		pipeline.addStage(sleeping(1));
+		pipeline.start();
+
+		Frame frame = new Frame();
+		pipeline.submit(frame);
+		assertTrue(done.await(1, TimeUnit.SECONDS));
+		assertSame(frame, result[0]);
+		assertEquals(2, frame.stagesSeen);
+		assertEquals(1, pipeline.completed());
+		pipeline.shutdown();
+	}
+
+	// A stage returning false stops the frame there
+	public void testRejectedFrameSkipsLaterStages() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		FramePipeline<Frame> pipeline = new FramePipeline<Frame>("test", new FramePipeline.Recycler<Frame>() {
+			public void recycle(Frame frame) {
+				done.countDown();
+			}
+		});
+		pipeline.addStage(new FramePipeline.Stage<Frame>() {
+			public boolean process(Frame frame) {
+				frame.stagesSeen++;
+				return false;
+			}
+		});
+		pipeline.addStage(sleeping(1));
+		pipeline.start();
+
+		Frame frame = new Frame();
+		pipeline.submit(frame);
+		assertTrue(done.await(1, TimeUnit.SECONDS));
+		assertEquals(1, frame.stagesSeen);
+		assertEquals(0, pipeline.completed());
+		pipeline.shutdown();
+	}
+}
@@ -0,0 +1,95 @@
+package com.googlecode.javacv.facepreview;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+
+import com.googlecode.javacv.facepreview.compute.IntegralImage;
+
+// IntegralImage against counting pixel by pixel, on random masks and blobs like a foreground map.
+public class Test_IntegralImage extends AndroidTestCase {
+
+	private final Random random = new Random(13);
+
+	// width x height mask with rows stride bytes apart; the padding is set, it must not be counted
+	private ByteBuffer mask(int width, int height, int stride, double density, boolean blobs) {
+		ByteBuffer mask = ByteBuffer.allocateDirect(stride * height);
+		for (int i = 0; i < stride * height; i++) {
+			mask.put(i, (byte) 0xFF);
+		}
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				mask.put(y * stride + x, random.nextDouble() < density ? (byte) 255 : 0);
+			}
+		}
+		if (blobs) {
+			for (int b = 0; b < 4; b++) {
+				int cx = random.nextInt(width), cy = random.nextInt(height), r = 3 + random.nextInt(10);
+				for (int y = Math.max(0, cy - r); y < Math.min(height, cy + r); y++) {
+					for (int x = Math.max(0, cx - r); x < Math.min(width, cx + r); x++) {
+						mask.put(y * stride + x, (byte) 127);
+					}
+				}
+			}
+		}
+		return mask;
+	}
+
+	private static int bruteForce(ByteBuffer mask, int width, int height, int stride, int x, int y, int w, int h) {
+		int count = 0;
+		for (int j = Math.max(0, y); j < Math.min(height, y + h); j++) {
+			for (int i = Math.max(0, x); i < Math.min(width, x + w); i++) {
+				if (mask.get(j * stride + i) != 0) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	private void check(int width, int height, int stride, double density, boolean blobs) {
+		ByteBuffer mask = mask(width, height, stride, density, blobs);
+		IntegralImage integral = new IntegralImage();
+		integral.compute(mask, width, height, stride);
+		assertEquals(bruteForce(mask, width, height, stride, 0, 0, width, height), integral.total());
+		for (int n = 0; n < 500; n++) {
+			// partly outside the mask now and then, like a face at the edge of the picture
+			int x = random.nextInt(width + 10) - 5;
+			int y = random.nextInt(height + 10) - 5;
+			int w = random.nextInt(width / 2 + 1);
+			int h = random.nextInt(height / 2 + 1);
+			assertEquals(bruteForce(mask, width, height, stride, x, y, w, h), integral.count(x, y, w, h));
+
+			int margin = 1 + random.nextInt(6);
+			int ring = bruteForce(mask, width, height, stride, x - margin, y - margin, w + 2 * margin, h + 2 * margin)
+					- bruteForce(mask, width, height, stride, x, y, w, h);
+			assertEquals(ring, integral.ring(x, y, w, h, margin));
+
+			int quadrants = 0;
+			for (int q = 0; q < 4; q++) {
+				quadrants += integral.quadrant(x, y, w, h, q);
+			}
+			assertEquals(integral.count(x, y, w, h), quadrants);
+		}
+	}
+
+	public void testMatchesBruteForce() {
+		// the sizes FaceViewWithAnalysis uses, 640x480 and 1280x720 by 8
+		check(80, 60, 80, 0.2, true);
+		check(160, 90, 160, 0.05, true);
+		// padded rows, and a map that isn't square (the old code stepped rows by the height)
+		check(77, 31, 80, 0.5, false);
+		check(5, 3, 8, 0.5, false);
+	}
+
+	public void testEmptyAndFull() {
+		IntegralImage integral = new IntegralImage();
+		integral.compute(mask(40, 30, 40, 0, false), 40, 30, 40);
+		assertEquals(0, integral.total());
+		integral.compute(mask(40, 30, 40, 1, false), 40, 30, 40);
+		assertEquals(1200, integral.total());
+		assertEquals(100, integral.count(10, 10, 10, 10));
+		assertEquals(0, integral.count(50, 10, 10, 10));
+	}
+}
@@ -0,0 +1,88 @@
+package com.googlecode.javacv.facepreview;
+
+import java.util.concurrent.CountDownLatch;
+
+import android.test.AndroidTestCase;
+
+import com.googlecode.javacv.facepreview.compute.LatencyHistogram;
+import com.googlecode.javacv.facepreview.compute.PipelineMetrics;
+import com.googlecode.javacv.facepreview.compute.PipelineMetrics.Stage;
+
+public class Test_LatencyHistogram extends AndroidTestCase {
+
+	public void testEmpty() {
+		LatencyHistogram.Snapshot s = new LatencyHistogram().snapshot();
+		assertEquals(0, s.count());
+		assertEquals(0.0, s.meanMillis());
+		assertEquals(0.0, s.percentileMillis(0.95));
+		assertEquals(0.0, s.maxMillis());
+	}
+
+	// 1..10000 microseconds once each: every percentile within a bucket (1/16th) of the real one
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int micros = 10000; micros >= 1; micros--) {
+			histogram.record(micros * 1000L);
+		}
+		LatencyHistogram.Snapshot s = histogram.snapshot();
+		assertEquals(10000, s.count());
+		assertEquals(5.0005, s.meanMillis(), 1e-9);
+		assertEquals(10.0, s.maxMillis());
+		double[] ps = { 0.01, 0.25, 0.5, 0.9, 0.95, 0.99, 1.0 };
+		for (double p : ps) {
+			double expected = p * 10.0;
+			assertEquals("p" + p, expected, s.percentileMillis(p), expected / 16 + 0.001);
+		}
+	}
+
+	public void testReset() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(5000000);
+		histogram.reset();
+		assertEquals(0, histogram.snapshot().count());
+		assertEquals(0.0, histogram.snapshot().maxMillis());
+	}
+
+	// nothing gets lost with several threads recording at once
+	public void testConcurrentRecording() throws InterruptedException {
+		final int threads = 4;
+		final int perThread = 100000;
+		final LatencyHistogram histogram = new LatencyHistogram();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final int offset = t;
+			new Thread() {
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < perThread; i++) {
+							histogram.record(((i + offset) % 1000) * 1000L);
+						}
+					} catch (InterruptedException e) {
+						// counts come out short and the test fails
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		start.countDown();
+		done.await();
+		LatencyHistogram.Snapshot s = histogram.snapshot();
+		assertEquals(threads * perThread, s.count());
+		assertEquals(999 / 1000.0, s.maxMillis());
+		assertEquals(499.5 / 1000.0, s.meanMillis(), 1e-9);
+	}
+
+	public void testPipelineExport() {
+		PipelineMetrics metrics = new PipelineMetrics();
+		metrics.stage(Stage.DETECT).record(2000000);
+		String table = metrics.export();
+		System.out.print(table);
+		for (Stage stage : Stage.values()) {
+			assertTrue(stage.name(), table.contains(stage.name().toLowerCase()));
+		}
+		assertEquals(1, metrics.snapshot()[Stage.DETECT.ordinal()].count());
+		assertEquals(0, metrics.snapshot()[Stage.PREDICT.ordinal()].count());
+	}
+}
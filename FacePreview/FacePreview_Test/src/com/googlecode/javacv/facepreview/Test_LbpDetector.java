@@ -0,0 +1,93 @@
+package com.googlecode.javacv.facepreview;
+
+import static com.googlecode.javacv.cpp.opencv_highgui.CV_LOAD_IMAGE_GRAYSCALE;
+import static com.googlecode.javacv.cpp.opencv_highgui.cvLoadImage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+
+import com.googlecode.javacpp.Loader;
+import com.googlecode.javacv.cpp.opencv_core.CvRect;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.googlecode.javacv.facepreview.detection.Detection;
+import com.googlecode.javacv.facepreview.detection.LbpCascade;
+import com.googlecode.javacv.facepreview.detection.LbpDetector;
+
+// The Java LBP detector has to find the same faces as the Haar cascade we use everywhere else.
+// Look for "LbpDetector" in the test output for the timings.
+public class Test_LbpDetector extends AndroidTestCase {
+
+	private static final int RUNS = 5;
+
+	private LbpDetector detector;
+	private FaceNormalizer normalizer;
+
+	public void setUp() throws Exception {
+		detector = new LbpDetector(LbpCascade.frontalFace());
+		normalizer = new FaceNormalizer(getContext().getCacheDir());
+	}
+
+	private IplImage load(String name) throws IOException {
+		File imageFile = Loader.extractResource(getClass(), "/com/googlecode/javacv/facepreview/data/" + name,
+				getContext().getCacheDir(), "image", ".jpg");
+		return cvLoadImage(imageFile.getAbsolutePath(), CV_LOAD_IMAGE_GRAYSCALE);
+	}
+
+	private List<Detection> detect(IplImage image) {
+		return detector.detect(image.getByteBuffer(), image.width(), image.height(), image.widthStep(), 0, 0);
+	}
+
+	public void testLoadsCascade() throws IOException {
+		LbpCascade cascade = LbpCascade.frontalFace();
+		assertEquals(24, cascade.width());
+		assertEquals(24, cascade.height());
+		assertEquals(20, cascade.stages());
+	}
+
+	public void testSameFaceAsHaar() throws IOException {
+		for (String name : new String[] { "authorized_1.jpg", "authorized_2.jpg", "authorized_test.jpg", "a_02_05.jpg", "b_10_10.jpg" }) {
+			IplImage image = load(name);
+
+			long start = System.nanoTime();
+			CvRect haar = null;
+			for (int i = 0; i < RUNS; i++) {
+				haar = normalizer.detectFace(image);
+			}
+			long haarTime = (System.nanoTime() - start) / RUNS;
+			assertFalse(name, haar.isNull());
+
+			start = System.nanoTime();
+			List<Detection> lbp = null;
+			for (int i = 0; i < RUNS; i++) {
+				lbp = detect(image);
+			}
+			long lbpTime = (System.nanoTime() - start) / RUNS;
+			assertFalse(name, lbp.isEmpty());
+
+			// the biggest one is the face, the two cascades frame it a little differently
+			Detection face = lbp.get(0);
+			int tolerance = haar.width() / 4;
+			assertEquals(name, haar.x() + haar.width() / 2, face.x + face.width / 2, tolerance);
+			assertEquals(name, haar.y() + haar.height() / 2, face.y + face.height / 2, tolerance);
+			assertEquals(name, haar.width(), face.width, tolerance);
+			System.out.println("LbpDetector " + name + " " + image.width() + "x" + image.height() + ": haar " + haarTime / 1000
+					+ " us, lbp " + lbpTime / 1000 + " us");
+		}
+	}
+
+	public void testNoFace() throws IOException {
+		assertTrue(detect(load("no_face.jpg")).isEmpty());
+	}
+
+	public void testMinSize() throws IOException {
+		IplImage image = load("a_02_05.jpg");
+		List<Detection> all = detect(image);
+		assertFalse(all.isEmpty());
+		// the face is about 300 pixels wide, nothing that big is looked for
+		assertTrue(detector.detect(image.getByteBuffer(), image.width(), image.height(), image.widthStep(), 0, 100).isEmpty());
+		assertFalse(detector.detect(image.getByteBuffer(), image.width(), image.height(), image.widthStep(), 200, 0).isEmpty());
+	}
+}
@@ -0,0 +1,328 @@
+package com.googlecode.javacv.facepreview;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+
+import com.googlecode.javacv.facepreview.recognition.BioHash;
+import com.googlecode.javacv.facepreview.recognition.BioHashIndex;
+import com.googlecode.javacv.facepreview.recognition.GalleryFile;
+import com.googlecode.javacv.facepreview.recognition.GalleryJournal;
+import com.googlecode.javacv.facepreview.recognition.LbphExtractor;
+import com.googlecode.javacv.facepreview.recognition.LbphRecognizer;
+import com.googlecode.javacv.facepreview.recognition.PackedIndex;
+import com.googlecode.javacv.facepreview.recognition.Prediction;
+import com.googlecode.javacv.facepreview.recognition.ProjectedIndex;
+import com.googlecode.javacv.facepreview.recognition.RandomProjection;
+import com.googlecode.javacv.facepreview.recognition.TemplateFile;
+
+// The Java LBPH engine doesn't need opencv, so these tests use synthetic images only.
+public class Test_LbphRecognizer extends AndroidTestCase {
+
+	private static final int SIZE = 400;
+	private final Random random = new Random(42);
+
+	private byte[] randomImage() {
+		byte[] image = new byte[SIZE * SIZE];
+		random.nextBytes(image);
+		return image;
+	}
+
+	// a copy of the image with some pixels changed, i.e. another picture of the "same person"
+	private byte[] noisyCopy(byte[] image) {
+		byte[] copy = image.clone();
+		for (int i = 0; i < 2000; i++) {
+			copy[random.nextInt(copy.length)] = (byte) random.nextInt(256);
+		}
+		return copy;
+	}
+
+	public void testHistogramsAreNormalizedPerCell() {
+		LbphExtractor extractor = new LbphExtractor(1, 8, 8, 8);
+		float[] histogram = new float[extractor.dimension()];
+		extractor.extract(randomImage(), 0, SIZE, SIZE, SIZE, histogram, 0);
+
+		for (int cell = 0; cell < 64; cell++) {
+			double sum = 0;
+			for (int bin = 0; bin < 256; bin++) {
+				sum += histogram[cell * 256 + bin];
+			}
+			assertEquals(1.0, sum, 1e-4);
+		}
+	}
+
+	public void testPredictsClosestLabel() {
+		LbphRecognizer recognizer = new LbphRecognizer(1, 8, 8, 8, Double.MAX_VALUE / 2);
+		byte[][] faces = new byte[5][];
+		for (int label = 0; label < faces.length; label++) {
+			faces[label] = randomImage();
+			recognizer.update(faces[label], 0, SIZE, SIZE, SIZE, label + 1);
+		}
+
+		Prediction prediction = new Prediction();
+		for (int label = 0; label < faces.length; label++) {
+			recognizer.predict(noisyCopy(faces[label]), 0, SIZE, SIZE, SIZE, prediction);
+			assertEquals(label + 1, prediction.label);
+		}
+	}
+
+	public void testThresholdRejects() {
+		LbphRecognizer recognizer = new LbphRecognizer(1, 8, 8, 8, 1e-9);
+		recognizer.update(randomImage(), 0, SIZE, SIZE, SIZE, 1);
+
+		Prediction prediction = new Prediction();
+		recognizer.predict(randomImage(), 0, SIZE, SIZE, SIZE, prediction);
+		assertEquals(Prediction.UNKNOWN, prediction.label);
+	}
+
+	public void testVerifyOnlyScoresClaimedLabel() {
+		LbphRecognizer recognizer = new LbphRecognizer(1, 8, 8, 8, Double.MAX_VALUE / 2);
+		byte[] owner = randomImage();
+		byte[] other = randomImage();
+		recognizer.update(owner, 0, SIZE, SIZE, SIZE, 11);
+		recognizer.update(other, 0, SIZE, SIZE, SIZE, 3);
+
+		Prediction identified = new Prediction();
+		Prediction verified = new Prediction();
+		byte[] probe = noisyCopy(owner);
+		recognizer.predict(probe, 0, SIZE, SIZE, SIZE, identified);
+		assertTrue(recognizer.verify(probe, 0, SIZE, SIZE, SIZE, 11, Double.MAX_VALUE, verified));
+		assertEquals(11, verified.label);
+		assertEquals(identified.distance, verified.distance, 0);
+
+		// the other person isn't considered, even though they'd be closer
+		assertFalse(recognizer.verify(noisyCopy(other), 0, SIZE, SIZE, SIZE, 11, verified.distance, verified));
+		assertEquals(Prediction.UNKNOWN, verified.label);
+		assertFalse(recognizer.verify(probe, 0, SIZE, SIZE, SIZE, 42, Double.MAX_VALUE, verified));
+	}
+
+	public void testBioHashIsRevocable() {
+		LbphExtractor extractor = new LbphExtractor(1, 8, 8, 8);
+		float[] histogram = new float[extractor.dimension()];
+		float[] noisy = new float[extractor.dimension()];
+		byte[] face = randomImage();
+		extractor.extract(face, 0, SIZE, SIZE, SIZE, histogram, 0);
+		extractor.extract(noisyCopy(face), 0, SIZE, SIZE, SIZE, noisy, 0);
+
+		RandomProjection projection = new RandomProjection(extractor.dimension(), 256, 1);
+		BioHash hash = new BioHash(projection, 256, 1);
+		BioHash reissued = new BioHash(projection, 256, 2);
+		float[] projected = new float[256];
+		long[] a = new long[4];
+		long[] b = new long[4];
+		long[] c = new long[4];
+		hash.hash(histogram, 0, projected, a, 0);
+		hash.hash(noisy, 0, projected, b, 0);
+		reissued.hash(histogram, 0, projected, c, 0);
+
+		// the same face stays close under one token, another token gives unrelated bits
+		assertTrue(BioHash.hamming(a, 0, b, 0, 4) < 64);
+		assertTrue(BioHash.hamming(a, 0, c, 0, 4) > 96);
+	}
+
+	public void testXmlRoundTrip() throws IOException {
+		LbphRecognizer recognizer = new LbphRecognizer(1, 8, 8, 8, Double.MAX_VALUE / 2);
+		byte[] face = randomImage();
+		recognizer.update(randomImage(), 0, SIZE, SIZE, SIZE, 3);
+		recognizer.update(face, 0, SIZE, SIZE, SIZE, 11);
+
+		File file = new File(getContext().getFilesDir(), "lbph-roundtrip.xml");
+		recognizer.save(file.getAbsolutePath());
+		LbphRecognizer loaded = LbphRecognizer.load(file.getAbsolutePath(), Double.MAX_VALUE / 2);
+
+		assertEquals(2, loaded.size());
+		Prediction expected = new Prediction();
+		Prediction actual = new Prediction();
+		byte[] probe = noisyCopy(face);
+		recognizer.predict(probe, 0, SIZE, SIZE, SIZE, expected);
+		loaded.predict(probe, 0, SIZE, SIZE, SIZE, actual);
+		assertEquals(11, actual.label);
+		assertEquals(expected.distance, actual.distance, 1e-6);
+	}
+
+	public void testMappedGalleryFile() throws IOException {
+		LbphRecognizer recognizer = new LbphRecognizer(1, 8, 8, 8, Double.MAX_VALUE / 2);
+		byte[] face = randomImage();
+		recognizer.update(randomImage(), 0, SIZE, SIZE, SIZE, 3);
+		recognizer.update(face, 0, SIZE, SIZE, SIZE, 11);
+
+		File file = new File(getContext().getFilesDir(), "lbph-roundtrip.bin");
+		GalleryFile.write(recognizer, file);
+		assertTrue(GalleryFile.verify(file));
+		LbphRecognizer mapped = GalleryFile.open(file, Double.MAX_VALUE / 2);
+		assertEquals(2, mapped.size());
+		assertEquals(3, mapped.label(0));
+
+		// templates added after opening go after the mapped ones
+		byte[] otherFace = randomImage();
+		mapped.update(otherFace, 0, SIZE, SIZE, SIZE, 5);
+		assertEquals(3, mapped.size());
+
+		Prediction expected = new Prediction();
+		Prediction actual = new Prediction();
+		byte[] probe = noisyCopy(face);
+		recognizer.predict(probe, 0, SIZE, SIZE, SIZE, expected);
+		mapped.predict(probe, 0, SIZE, SIZE, SIZE, actual);
+		assertEquals(11, actual.label);
+		assertEquals(expected.distance, actual.distance, 0);
+
+		mapped.predict(noisyCopy(otherFace), 0, SIZE, SIZE, SIZE, actual);
+		assertEquals(5, actual.label);
+	}
+
+	// The header's count is only trusted once it adds up to the stream's length
+	public void testReadChecksTheCount() throws IOException {
+		LbphRecognizer recognizer = new LbphRecognizer(1, 8, 8, 8, Double.MAX_VALUE / 2);
+		recognizer.update(randomImage(), 0, SIZE, SIZE, SIZE, 3);
+		recognizer.update(randomImage(), 0, SIZE, SIZE, SIZE, 4);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GalleryFile.write(recognizer, out);
+		byte[] bytes = out.toByteArray();
+
+		LbphRecognizer copy = new LbphRecognizer(1, 8, 8, 8, Double.MAX_VALUE / 2);
+		assertEquals(2, GalleryFile.read(new ByteArrayInputStream(bytes), bytes.length, copy));
+		assertEquals(2, GalleryFile.read(new ByteArrayInputStream(bytes), copy));
+		assertEquals(4, copy.size());
+
+		// count at offset 24: a million templates would be 64 GB
+		ByteBuffer.wrap(bytes).putInt(24, 1000000);
+		for (long length : new long[] { bytes.length, -1 }) {
+			try {
+				GalleryFile.read(new ByteArrayInputStream(bytes), length, copy);
+				fail("read a gallery with a damaged count");
+			} catch (IOException e) {
+				// expected, without allocating a million templates first
+			}
+		}
+		assertEquals(4, copy.size());
+	}
+
+	public void testJournalReplaysEnrollment() throws IOException {
+		LbphRecognizer recognizer = new LbphRecognizer(1, 8, 8, 8, Double.MAX_VALUE / 2);
+		recognizer.update(randomImage(), 0, SIZE, SIZE, SIZE, 3);
+		recognizer.update(randomImage(), 0, SIZE, SIZE, SIZE, 4);
+		File file = new File(getContext().getFilesDir(), "lbph-journal.bin");
+		GalleryFile.write(recognizer, file);
+
+		LbphRecognizer mapped = GalleryFile.open(file, Double.MAX_VALUE / 2);
+		GalleryJournal journal = new GalleryJournal(new File(file.getAbsolutePath() + ".journal"), mapped.dimension());
+		journal.reset();
+		byte[] face = randomImage();
+		mapped.update(face, 0, SIZE, SIZE, SIZE, 11);
+		float[] histogram = new float[mapped.dimension()];
+		mapped.template(2, histogram, 0);
+		journal.appendAdd(11, histogram, 0);
+		assertEquals(1, mapped.count(3));
+		journal.appendRemove(3);
+		assertEquals(1, mapped.remove(3));
+		assertEquals(0, mapped.count(3));
+		assertEquals(1, mapped.count(4));
+
+		// what a restart sees: the unchanged file plus the journal
+		LbphRecognizer reopened = GalleryFile.open(file, Double.MAX_VALUE / 2);
+		assertEquals(2, journal.replay(reopened));
+		Prediction prediction = new Prediction();
+		reopened.predict(noisyCopy(face), 0, SIZE, SIZE, SIZE, prediction);
+		assertEquals(11, prediction.label);
+		assertTrue(reopened.isRemoved(0));
+
+		// compacting leaves out the removed template
+		GalleryFile.write(reopened, file);
+		journal.reset();
+		assertEquals(2, GalleryFile.open(file, Double.MAX_VALUE / 2).size());
+	}
+
+	// What PROJECTED mode saves: the projections, and enrollments journaled as projections
+	public void testProjectedTemplateFile() throws IOException {
+		LbphRecognizer lbph = new LbphRecognizer(1, 8, 8, 8, Double.MAX_VALUE / 2);
+		ProjectedIndex index = new ProjectedIndex(new RandomProjection(lbph.dimension(), 256, 7), Double.MAX_VALUE / 2);
+		roundTrip(lbph, index, Double.MAX_VALUE / 2, "projected.bin");
+		assertEquals(TemplateFile.HEADER_BYTES + 4 * (4 + 4 * 256), new File(getContext().getFilesDir(), "projected.bin").length());
+	}
+
+	// What BIOHASH mode saves: the codes and the token, and enrollments journaled as codes
+	public void testBioHashTemplateFile() throws IOException {
+		LbphRecognizer lbph = new LbphRecognizer(1, 8, 8, 8, Double.MAX_VALUE / 2);
+		RandomProjection projection = new RandomProjection(lbph.dimension(), 256, 7);
+		float[] center = new float[256];
+		Arrays.fill(center, 0.5f);
+		BioHashIndex index = new BioHashIndex(new BioHash(projection, 256, 5, center), 256);
+		BioHashIndex loaded = (BioHashIndex) roundTrip(lbph, index, 256, "biohash.bin");
+		assertEquals(TemplateFile.HEADER_BYTES + 4 + 8 + 4 * 256 + 4 * (4 + 32), new File(getContext().getFilesDir(), "biohash.bin").length());
+		// the token and the center come back with the codes
+		assertEquals(5, loaded.hash().seed());
+		assertEquals(0.5f, loaded.hash().center()[255]);
+	}
+
+	// Four templates through a TemplateFile and a journal, returns what was read back
+	private PackedIndex roundTrip(LbphRecognizer lbph, PackedIndex index, double threshold, String filename) throws IOException {
+		float[] histogram = new float[lbph.dimension()];
+		byte[] face = randomImage();
+		for (int label = 3; label <= 5; label++) {
+			lbph.histogram(ByteBuffer.wrap(randomImage()), SIZE, SIZE, SIZE, histogram, 0);
+			index.add(histogram, 0, label);
+		}
+		lbph.histogram(ByteBuffer.wrap(face), SIZE, SIZE, SIZE, histogram, 0);
+		index.add(histogram, 0, 11);
+
+		File file = new File(getContext().getFilesDir(), filename);
+		TemplateFile.write(index, lbph, file);
+		assertTrue(TemplateFile.isTemplateFile(file));
+		PackedIndex loaded = TemplateFile.read(file, lbph, threshold);
+		assertEquals(index.getClass(), loaded.getClass());
+		assertEquals(4, loaded.size());
+		assertEquals(11, loaded.label(3));
+
+		Prediction expected = new Prediction();
+		Prediction actual = new Prediction();
+		lbph.histogram(ByteBuffer.wrap(noisyCopy(face)), SIZE, SIZE, SIZE, histogram, 0);
+		index.predict(histogram, 0, expected);
+		loaded.predict(histogram, 0, actual);
+		assertEquals(11, actual.label);
+		assertEquals(expected.distance, actual.distance, 0);
+
+		// the journal gets the packed template, not the histogram
+		GalleryJournal journal = new GalleryJournal(new File(file.getAbsolutePath() + ".journal"), loaded.templateBytes() / 4);
+		journal.reset();
+		byte[] otherFace = randomImage();
+		lbph.histogram(ByteBuffer.wrap(otherFace), SIZE, SIZE, SIZE, histogram, 0);
+		ByteBuffer template = ByteBuffer.allocate(loaded.templateBytes());
+		loaded.pack(histogram, 0, template);
+		template.flip();
+		journal.appendAdd(12, template);
+		journal.appendRemove(3);
+		assertEquals(3 * 4 + (1 + 4 + loaded.templateBytes() + 8) + (1 + 4 + 8), journal.file().length());
+
+		PackedIndex reopened = TemplateFile.read(file, lbph, threshold);
+		assertEquals(2, journal.replay(reopened));
+		assertEquals(0, reopened.count(3));
+		lbph.histogram(ByteBuffer.wrap(noisyCopy(otherFace)), SIZE, SIZE, SIZE, histogram, 0);
+		reopened.predict(histogram, 0, actual);
+		assertEquals(12, actual.label);
+
+		// a damaged template doesn't load
+		RandomAccessFile damaged = new RandomAccessFile(file, "rw");
+		try {
+			damaged.seek(file.length() - 1);
+			int last = damaged.read();
+			damaged.seek(file.length() - 1);
+			damaged.write(last ^ 1);
+		} finally {
+			damaged.close();
+		}
+		try {
+			TemplateFile.read(file, lbph, threshold);
+			fail("read a damaged template file");
+		} catch (IOException e) {
+			// expected
+		}
+		return loaded;
+	}
+}
@@ -0,0 +1,99 @@
+package com.googlecode.javacv.facepreview;
+
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+
+import com.googlecode.javacv.facepreview.recognition.LbphExtractor;
+import com.googlecode.javacv.facepreview.recognition.LbphRecognizer;
+import com.googlecode.javacv.facepreview.recognition.LshIndex;
+import com.googlecode.javacv.facepreview.recognition.Prediction;
+
+// Recall@1 of LshIndex against the brute force scan (how often both find the same template),
+// with the number of templates compared and the time per query. Look for "LshIndex" in the test output.
+public class Test_LshIndex extends AndroidTestCase {
+
+	private static final int SIZE = 64;
+	private static final int PEOPLE = 200;
+	private static final int SAMPLES_PER_PERSON = 2;
+	private static final int QUERIES = 100;
+
+	private final Random random = new Random(1);
+
+	// A synthetic face: a few random gratings, so every person has their own texture.
+	// Every call adds new pixel noise, i.e. is another picture of the same person.
+	private byte[] picture(double[] person) {
+		byte[] image = new byte[SIZE * SIZE];
+		for (int y = 0; y < SIZE; y++) {
+			for (int x = 0; x < SIZE; x++) {
+				double value = 128 + 6 * random.nextGaussian();
+				for (int k = 0; k < person.length; k += 4) {
+					value += person[k] * Math.sin(person[k + 1] * x + person[k + 2] * y + person[k + 3]);
+				}
+				image[y * SIZE + x] = (byte) Math.max(0, Math.min(255, value));
+			}
+		}
+		return image;
+	}
+
+	public void testRecallAgainstScan() {
+		double[][] people = new double[PEOPLE][24];
+		for (double[] person : people) {
+			for (int k = 0; k < person.length; k += 4) {
+				person[k] = 20 + random.nextDouble() * 40;
+				person[k + 1] = random.nextDouble() * 0.5;
+				person[k + 2] = random.nextDouble() * 0.5;
+				person[k + 3] = random.nextDouble() * 6;
+			}
+		}
+		LbphRecognizer gallery = new LbphRecognizer(1, 8, 8, 8, Double.MAX_VALUE / 2);
+		for (int i = 0; i < PEOPLE * SAMPLES_PER_PERSON; i++) {
+			gallery.update(picture(people[i / SAMPLES_PER_PERSON]), 0, SIZE, SIZE, SIZE, i / SAMPLES_PER_PERSON);
+		}
+
+		LbphExtractor extractor = new LbphExtractor(1, 8, 8, 8);
+		float[][] queries = new float[QUERIES][extractor.dimension()];
+		int[] expected = new int[QUERIES];
+		Prediction prediction = new Prediction();
+		for (int q = 0; q < QUERIES; q++) {
+			extractor.extract(picture(people[random.nextInt(PEOPLE)]), 0, SIZE, SIZE, SIZE, queries[q], 0);
+		}
+		long start = System.nanoTime();
+		for (int q = 0; q < QUERIES; q++) {
+			gallery.predict(queries[q], 0, prediction);
+			expected[q] = prediction.label;
+		}
+		long scanTime = System.nanoTime() - start;
+		System.out.println("LshIndex scan: " + gallery.size() + " templates, " + scanTime / QUERIES / 1000 + " us per query");
+
+		int[][] settings = {
+				{ FacePredictor.DEFAULT_HASH_TABLES, FacePredictor.DEFAULT_HASH_BITS, FacePredictor.DEFAULT_HASH_PROBES },
+				{ 8, 12, 0 },
+				{ 16, 14, 1 },
+				{ 4, 10, 1 },
+		};
+		for (int[] setting : settings) {
+			LshIndex index = new LshIndex(gallery, FacePredictor.PROJECTED_DIMENSION, setting[0], setting[1], setting[2], 7);
+			// the first query builds the tables
+			index.predict(queries[0], 0, prediction);
+
+			int found = 0;
+			long candidates = 0;
+			start = System.nanoTime();
+			for (int q = 0; q < QUERIES; q++) {
+				candidates += index.predict(queries[q], 0, prediction);
+				if (prediction.label == expected[q]) {
+					found++;
+				}
+			}
+			long time = System.nanoTime() - start;
+			double recall = (double) found / QUERIES;
+			System.out.println("LshIndex tables=" + setting[0] + " bits=" + setting[1] + " probes=" + setting[2]
+					+ ": recall@1 " + recall + ", " + candidates / QUERIES + " templates compared, "
+					+ time / QUERIES / 1000 + " us per query");
+			if (setting == settings[0]) {
+				assertTrue(recall >= 0.75);
+			}
+		}
+	}
+}
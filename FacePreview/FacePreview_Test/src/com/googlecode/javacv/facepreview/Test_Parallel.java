@@ -0,0 +1,76 @@
+package com.googlecode.javacv.facepreview;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.test.AndroidTestCase;
+
+import com.googlecode.javacv.facepreview.compute.Parallel;
+
+public class Test_Parallel extends AndroidTestCase {
+
+	public void testEveryIndexRunsOnce() {
+		final int size = 100003;
+		final AtomicLongArray counts = new AtomicLongArray(size);
+		Parallel.For(0, size, 16, null, new Parallel.Range() {
+			public void run(int start, int end) {
+				for (int i = start; i < end; i++) {
+					counts.incrementAndGet(i);
+				}
+			}
+		});
+		for (int i = 0; i < size; i++) {
+			assertEquals(1, counts.get(i));
+		}
+	}
+
+	public void testExceptionReachesCaller() {
+		try {
+			Parallel.For(0, 1000, 1, null, new Parallel.Range() {
+				public void run(int start, int end) {
+					if (start <= 500 && 500 < end) {
+						throw new IllegalStateException("index 500");
+					}
+				}
+			});
+			fail();
+		} catch (IllegalStateException e) {
+			assertEquals("index 500", e.getMessage());
+		}
+	}
+
+	public void testCancellation() {
+		final Parallel.Cancellation cancellation = new Parallel.Cancellation();
+		final AtomicInteger ran = new AtomicInteger();
+		try {
+			Parallel.For(0, 1000000, 1, cancellation, new Parallel.Range() {
+				public void run(int start, int end) {
+					if (ran.addAndGet(end - start) > 1000) {
+						cancellation.cancel();
+					}
+				}
+			});
+			fail();
+		} catch (CancellationException e) {
+			assertTrue(ran.get() < 1000000);
+		}
+	}
+
+	// a body that uses For() itself must not deadlock, even with every pool thread busy
+	public void testNested() {
+		final AtomicInteger total = new AtomicInteger();
+		Parallel.For(0, 64, new Parallel.Range() {
+			public void run(int start, int end) {
+				for (int i = start; i < end; i++) {
+					Parallel.For(0, 100, new Parallel.Range() {
+						public void run(int start, int end) {
+							total.addAndGet(end - start);
+						}
+					});
+				}
+			}
+		});
+		assertEquals(6400, total.get());
+	}
+}
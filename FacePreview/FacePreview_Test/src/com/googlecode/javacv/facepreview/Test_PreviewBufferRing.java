@@ -0,0 +1,126 @@
+package com.googlecode.javacv.facepreview;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import android.test.AndroidTestCase;
+
+import com.googlecode.javacv.facepreview.views.PreviewBufferRing;
+
+public class Test_PreviewBufferRing extends AndroidTestCase {
+
+	// 30fps
+	private static final long FRAME = 1000000000L / 30;
+
+	public void testOwnership() {
+		PreviewBufferRing ring = new PreviewBufferRing(3, 16, FRAME);
+		byte[][] buffers = ring.buffers();
+		assertEquals(3, buffers.length);
+		assertEquals(3, ring.withCamera());
+
+		assertTrue(ring.claim(buffers[0], 0));
+		// already ours
+		assertFalse(ring.claim(buffers[0], 0));
+		// never was ours
+		assertFalse(ring.claim(new byte[16], 0));
+		assertFalse(ring.release(buffers[1]));
+		assertEquals(2, ring.withCamera());
+
+		assertTrue(ring.release(buffers[0]));
+		// giving it back twice would queue it with the camera twice
+		assertFalse(ring.release(buffers[0]));
+		assertEquals(3, ring.withCamera());
+		assertEquals(1, ring.processed());
+	}
+
+	// A camera that captures a frame every FRAME into the first buffer it has (or throws the frame
+	// away if it has none), and one callback thread that takes the filled buffers in order and runs
+	// Preview's claim -> callback -> release on each, the callback taking work[i % work.length].
+	// Returns the number of frames the camera really threw away.
+	private static int runCamera(PreviewBufferRing ring, int frames, long... work) {
+		byte[][] buffers = ring.buffers();
+		// with the camera, and when each one got back to it
+		Deque<byte[]> empty = new ArrayDeque<byte[]>(Arrays.asList(buffers));
+		long[] returned = new long[buffers.length];
+		// filled, waiting for the callback thread, and when each was filled
+		Deque<byte[]> filled = new ArrayDeque<byte[]>();
+		Deque<Long> filledAt = new ArrayDeque<Long>();
+		long busyUntil = Long.MIN_VALUE;
+		int delivered = 0;
+		int thrownAway = 0;
+		for (int frame = 0; frame <= frames; frame++) {
+			long capture = frame * FRAME;
+			// the callback thread delivers whatever it gets to before this capture (all of it at the end)
+			while (!filled.isEmpty() && (frame == frames || Math.max(busyUntil, filledAt.peek()) < capture)) {
+				byte[] data = filled.poll();
+				long start = Math.max(busyUntil, filledAt.poll());
+				assertTrue(ring.claim(data, start));
+				busyUntil = start + work[delivered++ % work.length];
+				assertTrue(ring.release(data));
+				returned[indexOf(buffers, data)] = busyUntil;
+				empty.add(data);
+			}
+			if (frame == frames) {
+				break;
+			}
+			byte[] buffer = null;
+			for (byte[] candidate : empty) {
+				if (returned[indexOf(buffers, candidate)] <= capture) {
+					buffer = candidate;
+					break;
+				}
+			}
+			if (buffer == null) {
+				thrownAway++;
+			} else {
+				empty.remove(buffer);
+				filled.add(buffer);
+				filledAt.add(capture);
+			}
+		}
+		assertEquals(frames - thrownAway, ring.processed());
+		return thrownAway;
+	}
+
+	private static int indexOf(byte[][] buffers, byte[] buffer) {
+		for (int i = 0; i < buffers.length; i++) {
+			if (buffers[i] == buffer) {
+				return i;
+			}
+		}
+		throw new AssertionError();
+	}
+
+	// Callbacks well within a frame: nothing is lost and nothing is counted
+	public void testFastCallbackDropsNothing() {
+		PreviewBufferRing ring = new PreviewBufferRing(3, 16, FRAME);
+		assertEquals(0, runCamera(ring, 90, FRAME / 2));
+		assertEquals(0, ring.dropped());
+	}
+
+	// One buffer and a callback that takes 3.5 frames: the camera loses 3 frames each time
+	public void testSingleBufferDropsFrames() {
+		PreviewBufferRing ring = new PreviewBufferRing(1, 16, FRAME);
+		int thrownAway = runCamera(ring, 41, 7 * FRAME / 2);
+		assertEquals(30, thrownAway);
+		assertEquals(thrownAway, ring.dropped());
+	}
+
+	// The ring hides an occasional slow frame: the camera fills the other buffers meanwhile
+	public void testRingAbsorbsSlowFrame() {
+		PreviewBufferRing ring = new PreviewBufferRing(3, 16, FRAME);
+		assertEquals(0, runCamera(ring, 90, FRAME / 2, FRAME / 2, FRAME / 2, 2 * FRAME, FRAME / 2, FRAME / 2, FRAME / 2, FRAME / 2));
+		// the late deliveries after each slow frame aren't mistaken for drops
+		assertEquals(0, ring.dropped());
+	}
+
+	// A callback that is always too slow runs out of buffers whatever their number. Frames that
+	// sat in a buffer look just as late as lost ones, so the count is off by up to the ring's size.
+	public void testRingRunsOutWithSlowCallback() {
+		PreviewBufferRing ring = new PreviewBufferRing(3, 16, FRAME);
+		int thrownAway = runCamera(ring, 100, 5 * FRAME / 2);
+		assertTrue(thrownAway > 50);
+		assertTrue(thrownAway + " thrown away, " + ring.dropped() + " counted", Math.abs(ring.dropped() - thrownAway) <= ring.size());
+	}
+}
@@ -0,0 +1,93 @@
+package com.googlecode.javacv.facepreview;
+
+import android.test.AndroidTestCase;
+
+import com.googlecode.javacv.facepreview.compute.RecognitionScheduler;
+
+// Time is made up here, in milliseconds turned into nanoseconds
+public class Test_RecognitionScheduler extends AndroidTestCase {
+	private static final long MS = 1000000L;
+
+	private RecognitionScheduler scheduler;
+
+	public void setUp() {
+		scheduler = new RecognitionScheduler(0.5, 100 * MS, 4000 * MS, 500 * MS);
+	}
+
+	public void testFirstFrameStraightAway() {
+		long ticket = scheduler.claim(0);
+		assertTrue(ticket != 0);
+		assertTrue(scheduler.begin(ticket, 10 * MS));
+		assertTrue(scheduler.inFlight());
+	}
+
+	// System.nanoTime() can be anywhere, including far below 0
+	public void testFirstFrameAtAnyTime() {
+		assertTrue(scheduler.claim(Long.MIN_VALUE / 2) != 0);
+		RecognitionScheduler other = new RecognitionScheduler(0.5, 100 * MS, 4000 * MS, 500 * MS);
+		long ticket = other.claim(-1);
+		assertTrue(ticket != 0);
+		other.begin(ticket, -1);
+		other.finish(300 * MS - 1);
+		assertEquals(0, other.claim(599 * MS - 1));
+		assertTrue(other.claim(600 * MS - 1) != 0);
+	}
+
+	public void testOneAtATime() {
+		long ticket = scheduler.claim(0);
+		// waiting for begin, and then running
+		assertEquals(0, scheduler.claim(1 * MS));
+		assertTrue(scheduler.begin(ticket, 2 * MS));
+		assertEquals(0, scheduler.claim(3 * MS));
+		assertFalse(scheduler.begin(ticket, 4 * MS));
+	}
+
+	public void testIntervalFollowsLatency() {
+		// 300 ms recognitions at half a CPU: 300 ms gaps
+		long ticket = scheduler.claim(0);
+		scheduler.begin(ticket, 0);
+		scheduler.finish(300 * MS);
+		assertEquals(300 * MS, scheduler.interval());
+		assertEquals(0, scheduler.claim(599 * MS));
+		assertTrue(scheduler.claim(600 * MS) != 0);
+	}
+
+	public void testIntervalClamped() {
+		RecognitionScheduler quarter = new RecognitionScheduler(0.25, 100 * MS, 1000 * MS, 500 * MS);
+		long ticket = quarter.claim(0);
+		quarter.begin(ticket, 0);
+		quarter.finish(10 * MS);
+		assertEquals(100 * MS, quarter.interval());
+		ticket = quarter.claim(200 * MS);
+		quarter.begin(ticket, 200 * MS);
+		quarter.finish(5200 * MS);
+		assertEquals(1000 * MS, quarter.interval());
+	}
+
+	public void testCancelFreesTheWay() {
+		long ticket = scheduler.claim(0);
+		scheduler.cancel(ticket);
+		assertFalse(scheduler.begin(ticket, 1 * MS));
+		long next = scheduler.claim(1 * MS);
+		assertTrue(next != 0 && next != ticket);
+		assertEquals(1, scheduler.stale());
+		// cancelling one that is running does nothing
+		assertTrue(scheduler.begin(next, 2 * MS));
+		scheduler.cancel(next);
+		assertTrue(scheduler.inFlight());
+	}
+
+	public void testStaleTickets() {
+		long ticket = scheduler.claim(0);
+		assertFalse(scheduler.begin(ticket, 501 * MS));
+		assertFalse(scheduler.inFlight());
+		// lost without begin or cancel: replaced once it's too old
+		ticket = scheduler.claim(600 * MS);
+		assertEquals(0, scheduler.claim(1000 * MS));
+		long next = scheduler.claim(1101 * MS);
+		assertTrue(next != 0);
+		assertFalse(scheduler.begin(ticket, 1102 * MS));
+		assertTrue(scheduler.begin(next, 1102 * MS));
+		assertEquals(2, scheduler.stale());
+	}
+}
@@ -0,0 +1,46 @@
+package com.googlecode.javacv.facepreview;
+
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+
+import com.googlecode.javacv.facepreview.compute.SlidingWindow;
+
+public class Test_SlidingWindow extends AndroidTestCase {
+
+	// the running sum and the order of the values have to match re-summing the last values by hand
+	public void testMatchesBruteForce() {
+		Random random = new Random(11);
+		int capacity = 39;
+		SlidingWindow window = new SlidingWindow(capacity);
+		double[] all = new double[1000];
+		for (int n = 0; n < all.length; n++) {
+			all[n] = random.nextInt(5000) - 1000 + random.nextDouble();
+			window.add(all[n]);
+
+			int size = Math.min(n + 1, capacity);
+			assertEquals(size, window.size());
+			assertEquals(size == capacity, window.isFull());
+			double expected = 0;
+			for (int i = 0; i < size; i++) {
+				double value = all[n + 1 - size + i];
+				assertEquals(value, window.get(i), 0);
+				expected += value;
+			}
+			assertEquals(expected, window.sum(), 1e-6);
+		}
+	}
+
+	public void testClear() {
+		SlidingWindow window = new SlidingWindow(3);
+		for (int i = 0; i < 5; i++) {
+			window.add(i);
+		}
+		assertEquals(2 + 3 + 4, window.sum(), 0);
+		window.clear();
+		assertEquals(0, window.size());
+		assertEquals(0, window.sum(), 0);
+		window.add(7);
+		assertEquals(7, window.get(0), 0);
+	}
+}
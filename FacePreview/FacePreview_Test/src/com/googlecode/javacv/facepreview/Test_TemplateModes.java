@@ -0,0 +1,190 @@
+package com.googlecode.javacv.facepreview;
+
+import static com.googlecode.javacv.cpp.opencv_highgui.cvLoadImage;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.test.AndroidTestCase;
+
+import com.googlecode.javacpp.Loader;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.googlecode.javacv.facepreview.FacePredictor.TemplateMode;
+import com.googlecode.javacv.facepreview.recognition.TemplateFile;
+
+// Accuracy of each FacePredictor.TemplateMode on the a_/b_ images: the gallery has a_XX_05, a_XX_15
+// and b_XX_15 of every person (see BackgroundGallery), the probes are the b_XX_05 pictures it doesn't
+// contain, plus the authorized person's test picture. Look for "TemplateMode" in the test output.
+// facePredictor stays in HISTOGRAM mode; the other modes drop the histograms, so they get a copy.
+public class Test_TemplateModes extends AndroidTestCase {
+
+	static FacePredictor facePredictor = null;
+	static IplImage[] probes;
+	static String[] expected;
+
+	public void setUp() throws Exception {
+		if (facePredictor == null) {
+			IplImage [] authorizedImages = {
+					load("authorized_1.jpg"),
+					load("authorized_2.jpg"),
+					load("authorized_3.jpg")
+			};
+			facePredictor = new FacePredictor(getContext(), authorizedImages);
+
+			int people = BackgroundGallery.LAST_PERSON - BackgroundGallery.FIRST_PERSON + 1;
+			probes = new IplImage[people + 1];
+			expected = new String[people + 1];
+			for (int i = 0; i < people; i++) {
+				int person = BackgroundGallery.FIRST_PERSON + i;
+				probes[i] = load(String.format("b_%02d_05.jpg", person));
+				expected[i] = Integer.toString(person);
+			}
+			probes[people] = load("authorized_test.jpg");
+			expected[people] = Integer.toString(FacePredictor.AUTHORIZED_LABEL);
+		}
+	}
+
+	private IplImage load(String name) throws IOException {
+		File imageFile = Loader.extractResource(getClass(), "/com/googlecode/javacv/facepreview/data/" + name,
+				getContext().getCacheDir(), "image", ".jpg");
+		return cvLoadImage(imageFile.getAbsolutePath());
+	}
+
+	// facePredictor's gallery, saved as filename and loaded from there
+	private FacePredictor copy(String filename) throws IOException {
+		facePredictor.save(getContext(), filename);
+		return new FacePredictor(getContext(), filename);
+	}
+
+	private FacePredictor inMode(TemplateMode mode) throws IOException {
+		if (mode == TemplateMode.HISTOGRAM) {
+			return facePredictor;
+		}
+		FacePredictor predictor = copy("template-modes-" + mode + ".bin");
+		predictor.setTemplateMode(mode);
+		return predictor;
+	}
+
+	// number of probes identified correctly
+	private int evaluate(FacePredictor predictor) {
+		int correct = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < probes.length; i++) {
+			if (expected[i].equals(predictor.identify(probes[i]).first)) {
+				correct++;
+			}
+		}
+		long perProbe = (System.nanoTime() - start) / probes.length / 1000;
+		boolean authenticated = predictor.authenticate(probes[probes.length - 1]);
+		System.out.println("TemplateMode " + predictor.templateMode() + ": " + correct + "/" + probes.length
+				+ " identified, owner authenticated: " + authenticated + ", " + perProbe + " us per probe");
+		return correct;
+	}
+
+	// With the calibrated threshold of the mode, the owner is accepted and nobody else is: the
+	// b_XX_05 pictures are of people in the gallery, but not the pictures in it.
+	private void assertOnlyOwnerAccepted(TemplateMode mode) throws IOException {
+		FacePredictor predictor = inMode(mode);
+		assertTrue(mode + ": owner rejected, threshold " + predictor.verificationThreshold(),
+				predictor.authenticate(probes[probes.length - 1]));
+		for (int i = 0; i < probes.length - 1; i++) {
+			assertFalse(mode + ": b_" + expected[i] + "_05 accepted, threshold " + predictor.verificationThreshold(),
+					predictor.authenticate(probes[i]));
+		}
+	}
+
+	public void testHistogramRejectsImpostors() throws IOException {
+		assertOnlyOwnerAccepted(TemplateMode.HISTOGRAM);
+	}
+
+	public void testProjectedRejectsImpostors() throws IOException {
+		assertOnlyOwnerAccepted(TemplateMode.PROJECTED);
+	}
+
+	public void testBioHashRejectsImpostors() throws IOException {
+		assertOnlyOwnerAccepted(TemplateMode.BIOHASH);
+	}
+
+	public void testProjectedAccuracy() throws IOException {
+		int histogram = evaluate(facePredictor);
+		int projected = evaluate(inMode(TemplateMode.PROJECTED));
+		// 256 numbers instead of 16k bins may cost a face, but not more
+		assertTrue(projected >= histogram - 1);
+	}
+
+	public void testBioHashAccuracy() throws IOException {
+		int histogram = evaluate(facePredictor);
+		int bioHash = evaluate(inMode(TemplateMode.BIOHASH));
+		assertTrue(bioHash >= histogram - 1);
+
+		// a new token still works, it just gives different codes
+		FacePredictor reissued = copy("template-modes-reissued.bin");
+		reissued.setBioHashSeed(FacePredictor.DEFAULT_BIOHASH_SEED + 1);
+		reissued.setTemplateMode(TemplateMode.BIOHASH);
+		assertTrue(evaluate(reissued) >= histogram - 1);
+	}
+
+	// Once projected, the histograms are gone from memory, the model file and the journal
+	public void testProjectedKeepsOnlyProjections() throws IOException {
+		FacePredictor projected = inMode(TemplateMode.PROJECTED);
+		String filename = "template-modes-" + TemplateMode.PROJECTED + ".bin";
+		File file = new File(getContext().getExternalFilesDir(null), filename);
+		assertEquals(0, projected.algorithm.size());
+		assertTrue(TemplateFile.isTemplateFile(file));
+		int templates = facePredictor.algorithm.size();
+		// 1 KB a template instead of 64
+		assertTrue(file.length() + " bytes", file.length() < templates * 2048L);
+
+		// enrolling writes a projection to the journal, and the reopened model replays it
+		assertEquals(1, projected.addIdentity(99, new IplImage[] { probes[0] }));
+		File journal = new File(file.getAbsolutePath() + ".journal");
+		assertTrue(journal.length() + " bytes", journal.length() < 2048);
+		FacePredictor reopened = new FacePredictor(getContext(), filename);
+		assertEquals(TemplateMode.PROJECTED, reopened.templateMode());
+		assertEquals("99", reopened.identify(probes[0]).first);
+		assertEquals(projected.verificationThreshold(), reopened.verificationThreshold());
+		assertEquals(1, reopened.removeIdentity(99));
+		assertFalse("99".equals(reopened.identify(probes[0]).first));
+
+		try {
+			reopened.setTemplateMode(TemplateMode.HISTOGRAM);
+			fail("got the histograms back");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	// Only the codes and the token are saved, and the token comes back with them
+	public void testBioHashKeepsOnlyCodes() throws IOException {
+		String filename = "template-modes-token.bin";
+		FacePredictor bioHash = copy(filename);
+		bioHash.setBioHashSeed(FacePredictor.DEFAULT_BIOHASH_SEED + 1);
+		bioHash.setTemplateMode(TemplateMode.BIOHASH);
+		File file = new File(getContext().getExternalFilesDir(null), filename);
+		assertEquals(0, bioHash.algorithm.size());
+		assertTrue(TemplateFile.isTemplateFile(file));
+		int templates = facePredictor.algorithm.size();
+		// 32 bytes a code, plus 1 KB for the token, the center and the header
+		assertTrue(file.length() + " bytes", file.length() < templates * 64L + 2048);
+
+		assertEquals(1, bioHash.addIdentity(99, new IplImage[] { probes[0] }));
+		File journal = new File(file.getAbsolutePath() + ".journal");
+		assertTrue(journal.length() + " bytes", journal.length() < 128);
+		FacePredictor reopened = new FacePredictor(getContext(), filename);
+		assertEquals(TemplateMode.BIOHASH, reopened.templateMode());
+		assertEquals(FacePredictor.DEFAULT_BIOHASH_SEED + 1, reopened.bioHashSeed());
+		assertEquals(bioHash.verificationThreshold(), reopened.verificationThreshold());
+		for (IplImage probe : probes) {
+			assertEquals(bioHash.identify(probe).first, reopened.identify(probe).first);
+		}
+		assertEquals("99", reopened.identify(probes[0]).first);
+
+		// the codes can't be remade with another token, only enrolled again
+		try {
+			reopened.setBioHashSeed(FacePredictor.DEFAULT_BIOHASH_SEED);
+			fail("changed the token of codes that are already made");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package com.googlecode.javacv.facepreview;
+
+// The "other people" every enrolled face is compared against: people 2-9 of the training data,
+// three pictures each. Their templates don't depend on the user, so they are computed at build
+// time (tools.BuildBackgroundGallery in FacePreview_Eval) and FacePredictor loads them from RESOURCE.
+public final class BackgroundGallery {
+    public static final String RESOURCE = "/com/googlecode/javacv/facepreview/data/background_gallery.bin";
+    public static final int FIRST_PERSON = 2;
+    public static final int LAST_PERSON = 9;
+
+    private BackgroundGallery() {}
+
+    // The images used for one person (their label is the person number).
+    // TODO: use a couple images per person. We have the four images per person available. I'm just not using them.
+    public static String[] imageResources(int person) {
+        return new String[] {
+                String.format("/com/googlecode/javacv/facepreview/data/a_%02d_05.jpg", person),
+                String.format("/com/googlecode/javacv/facepreview/data/a_%02d_15.jpg", person),
+                String.format("/com/googlecode/javacv/facepreview/data/b_%02d_15.jpg", person)
+        };
+    }
+}
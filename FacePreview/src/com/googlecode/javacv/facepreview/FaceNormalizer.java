@@ -0,0 +1,246 @@
+package com.googlecode.javacv.facepreview;
+
+import static com.googlecode.javacv.cpp.opencv_core.IPL_DEPTH_8U;
+import static com.googlecode.javacv.cpp.opencv_core.cvClearMemStorage;
+import static com.googlecode.javacv.cpp.opencv_core.cvCreateImage;
+import static com.googlecode.javacv.cpp.opencv_core.cvGetSeqElem;
+import static com.googlecode.javacv.cpp.opencv_core.cvGetSize;
+import static com.googlecode.javacv.cpp.opencv_core.cvLoad;
+import static com.googlecode.javacv.cpp.opencv_core.cvResetImageROI;
+import static com.googlecode.javacv.cpp.opencv_core.cvSetImageROI;
+import static com.googlecode.javacv.cpp.opencv_imgproc.CV_BGR2GRAY;
+import static com.googlecode.javacv.cpp.opencv_imgproc.CV_INTER_LINEAR;
+import static com.googlecode.javacv.cpp.opencv_imgproc.cvCvtColor;
+import static com.googlecode.javacv.cpp.opencv_imgproc.cvEqualizeHist;
+import static com.googlecode.javacv.cpp.opencv_imgproc.cvResize;
+import static com.googlecode.javacv.cpp.opencv_objdetect.CV_HAAR_FIND_BIGGEST_OBJECT;
+import static com.googlecode.javacv.cpp.opencv_objdetect.cvHaarDetectObjects;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.googlecode.javacpp.Loader;
+import com.googlecode.javacv.cpp.opencv_core.CvMemStorage;
+import com.googlecode.javacv.cpp.opencv_core.CvRect;
+import com.googlecode.javacv.cpp.opencv_core.CvSeq;
+import com.googlecode.javacv.cpp.opencv_core.CvSize;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.googlecode.javacv.cpp.opencv_objdetect;
+import com.googlecode.javacv.cpp.opencv_objdetect.CvHaarClassifierCascade;
+
+// Finds the face in an image and turns it into the small, equalized gray image the recognizer works on.
+// Training and prediction both go through here, on the phone and in FacePreview_Eval,
+// so this class must not use any Android classes.
+public class FaceNormalizer {
+    public static final String CLASSIFIER_RESOURCE = "/com/googlecode/javacv/facepreview/data/haarcascade_frontalface_alt.xml";
+
+    private static final CvSize SMALL_IMAGE_SIZE = new CvSize(400,400);
+
+    private final String classifierFile;
+    // Detection contexts nobody is using right now. cvHaarDetectObjects keeps pointers to the image
+    // it is working on in the cascade, so threads can't share a cascade, only take turns with one.
+    // There are as many contexts as there ever were threads detecting at once.
+    private final Queue<DetectionContext> idleContexts = new ConcurrentLinkedQueue<DetectionContext>();
+    private final AtomicInteger contexts = new AtomicInteger();
+
+    private static final class DetectionContext {
+        final CvHaarClassifierCascade classifier;
+        final CvMemStorage storage = CvMemStorage.create();
+
+        DetectionContext(CvHaarClassifierCascade classifier) {
+            this.classifier = classifier;
+        }
+    }
+
+    // Extracts the classifier from our Java resources into cacheDir
+    public FaceNormalizer(File cacheDir) throws IOException {
+        this(extractClassifier(cacheDir));
+    }
+
+    // classifierFile has to stay where it is, more threads means loading it again
+    public FaceNormalizer(String classifierFile) throws IOException {
+        // Preload the opencv_objdetect module to work around a known bug.
+        Loader.load(opencv_objdetect.class);
+        this.classifierFile = classifierFile;
+        idleContexts.add(newContext());
+    }
+
+    private DetectionContext newContext() throws IOException {
+        CvHaarClassifierCascade classifier = new CvHaarClassifierCascade(cvLoad(classifierFile));
+        if (classifier.isNull()) {
+            throw new IOException("Could not load the classifier file.");
+        }
+        contexts.incrementAndGet();
+        return new DetectionContext(classifier);
+    }
+
+    private DetectionContext acquire() {
+        DetectionContext context = idleContexts.poll();
+        if (context == null) {
+            try {
+                context = newContext();
+            } catch (IOException e) {
+                // it loaded fine in the constructor
+                throw new IllegalStateException(e.toString());
+            }
+        }
+        return context;
+    }
+
+    private void release(DetectionContext context) {
+        idleContexts.add(context);
+    }
+
+    // How many cascades have been loaded, i.e. the most threads that have detected at the same time
+    public int detectionContexts() {
+        return contexts.get();
+    }
+
+    private static String extractClassifier(File cacheDir) throws IOException {
+        File classifierFile = Loader.extractResource(FaceNormalizer.class, CLASSIFIER_RESOURCE,
+                cacheDir, "classifier", ".xml");
+        if (classifierFile == null || classifierFile.length() <= 0) {
+            throw new IOException("Could not extract the classifier file from Java resource.");
+        }
+        return classifierFile.getAbsolutePath();
+    }
+
+    /**
+     * This does facial detection and NOT facial recognition. Any number of threads can detect at once.
+     */
+    public CvRect detectFace(IplImage image) {
+        DetectionContext context = acquire();
+        try {
+            return detectFace(image, context);
+        } finally {
+            release(context);
+        }
+    }
+
+    private static CvRect detectFace(IplImage image, DetectionContext context) {
+        cvClearMemStorage(context.storage);
+
+        final CvSeq cvSeq = cvHaarDetectObjects(image, context.classifier, context.storage, 1.1, 3, CV_HAAR_FIND_BIGGEST_OBJECT);
+        assert !cvSeq.isNull();
+
+        // the rectangle lives in the storage, which the next thread to get this context clears
+        CvRect found = new CvRect(cvGetSeqElem(cvSeq, 0));
+        if (found.isNull()) {
+            return found;
+        }
+        return new CvRect(found.x(), found.y(), found.width(), found.height());
+    }
+
+    /**
+     * Like detectFace(image), but looks near `near` first (see FaceTracker), e.g. where a cheaper
+     * detection on a smaller copy of the frame found the face. Searches the whole image if it isn't
+     * there. near must be in the coordinates of image. Returns a new rectangle, or a null one.
+     * This sets image's ROI for a moment, so other threads mustn't use the same image meanwhile.
+     */
+    public CvRect detectFace(IplImage image, CvRect near) {
+        DetectionContext context = acquire();
+        try {
+            CvRect result = new CvRect();
+            if (FaceTracker.detect(image, context.classifier, context.storage, near, result)) {
+                return result;
+            }
+            return detectFace(image, context);
+        } finally {
+            release(context);
+        }
+    }
+
+    /**
+     * A color image (as returned by cvLoadImage) in, the normalized face out. Null if there is no face.
+     */
+    public IplImage normalizeColorImage(IplImage image) {
+        IplImage grayImage = IplImage.create(image.width(), image.height(), IPL_DEPTH_8U, 1);
+        cvCvtColor(image, grayImage, CV_BGR2GRAY);
+
+        CvRect faceRectangle = detectFace(grayImage);
+        if (faceRectangle.isNull()) {
+            return null;
+        }
+        return toTiny(grayImage, faceRectangle);
+    }
+
+    /**
+     * Images should be grayscaled and scaled-down for faster calculations
+     */
+    public IplImage toTinyGray(IplImage image, CvRect r /* (x,y) is the top corner */) {
+        IplImage gray = cvCreateImage(cvGetSize(image), IPL_DEPTH_8U, 1);
+        cvCvtColor(image, gray, CV_BGR2GRAY);
+        return toTiny(gray, r);
+    }
+
+    public IplImage toTiny(IplImage gray, CvRect r /* (x,y) is the top corner */) {
+        IplImage roi = cvCreateImage(SMALL_IMAGE_SIZE, IPL_DEPTH_8U, 1);
+
+        int width = Math.max(r.width(), r.height());
+        int x = r.x() + (r.width()-width)/2;
+        int y = r.y() + (r.height()-width)/2;
+
+        CvRect r1 = new CvRect(x, y, width, width);// consider adding +10 on all sides
+        cvSetImageROI(gray, r1);//set portion that will be processed on
+        cvResize(gray, roi, CV_INTER_LINEAR);
+        // gray may be a camera frame that gets reused, the next detection has to see all of it
+        cvResetImageROI(gray);
+        cvEqualizeHist(roi, roi);
+        return roi;
+    }
+
+    /**
+     * Copies the window FaceTracker would search for the face straight out of a camera frame, so
+     * the whole frame doesn't have to be converted or searched again. luma is the Y plane, i.e. the
+     * first width*height bytes of an NV21 preview frame. face was found in a copy of the frame
+     * shrunk by scale; the window is face * scale with FaceTracker.SEARCH_MARGIN of its size on
+     * every side, clipped to the frame. A detection in the shrunk frame, scaled up, is several pixels
+     * off the box a full resolution detection gives, and LBPH histograms change as much from that as
+     * from another picture of the person. So the face is found again in the region at full
+     * resolution (detectFace(crop, inRegion(face, scale, region))) and cut on that box with
+     * toTiny(crop, box), like the training images are. region is set to where the crop is in the
+     * frame. crop is reused if it has the right size. Returns null if the window is outside the frame.
+     */
+    public static IplImage cropRegion(byte[] luma, int width, int height, CvRect face, int scale, IplImage crop, CvRect region) {
+        int margin = (int) (FaceTracker.SEARCH_MARGIN * Math.max(face.width(), face.height()) * scale);
+        int x = face.x() * scale - margin;
+        int y = face.y() * scale - margin;
+        return copy(luma, width, height, x, y, x + face.width() * scale + 2 * margin, y + face.height() * scale + 2 * margin, crop, region);
+    }
+
+    /**
+     * face, found in a copy of the frame shrunk by scale, in the coordinates of a region that
+     * cropRegion() cut out of the frame.
+     */
+    public static CvRect inRegion(CvRect face, int scale, CvRect region) {
+        return new CvRect(face.x() * scale - region.x(), face.y() * scale - region.y(), face.width() * scale, face.height() * scale);
+    }
+
+    // [x0, x1) x [y0, y1) of luma, clipped to the frame. region is set to what was copied.
+    private static IplImage copy(byte[] luma, int width, int height, int x0, int y0, int x1, int y1, IplImage crop, CvRect region) {
+        x0 = Math.max(x0, 0);
+        y0 = Math.max(y0, 0);
+        x1 = Math.min(x1, width);
+        y1 = Math.min(y1, height);
+        if (x1 <= x0 || y1 <= y0) {
+            return null;
+        }
+        int cropWidth = x1 - x0, cropHeight = y1 - y0;
+        if (crop == null || crop.width() != cropWidth || crop.height() != cropHeight) {
+            crop = IplImage.create(cropWidth, cropHeight, IPL_DEPTH_8U, 1);
+        }
+        ByteBuffer out = crop.getByteBuffer();
+        int stride = crop.widthStep();
+        for (int row = 0; row < cropHeight; row++) {
+            out.position(row * stride);
+            out.put(luma, (y0 + row) * width + x0, cropWidth);
+        }
+        out.rewind();
+        region.x(x0).y(y0).width(cropWidth).height(cropHeight);
+        return crop;
+    }
+}
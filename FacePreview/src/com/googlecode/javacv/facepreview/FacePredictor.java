@@ -1,29 +1,22 @@
 package com.googlecode.javacv.facepreview;
 
-import static com.googlecode.javacv.cpp.opencv_core.CV_32SC1;
 import static com.googlecode.javacv.cpp.opencv_core.IPL_DEPTH_8U;
-import static com.googlecode.javacv.cpp.opencv_core.cvClearMemStorage;
-import static com.googlecode.javacv.cpp.opencv_core.cvCreateImage;
-import static com.googlecode.javacv.cpp.opencv_core.cvCreateMat;
 import static com.googlecode.javacv.cpp.opencv_core.cvGet2D;
-import static com.googlecode.javacv.cpp.opencv_core.cvGetSeqElem;
-import static com.googlecode.javacv.cpp.opencv_core.cvGetSize;
-import static com.googlecode.javacv.cpp.opencv_core.cvLoad;
-import static com.googlecode.javacv.cpp.opencv_core.cvSetImageROI;
 import static com.googlecode.javacv.cpp.opencv_highgui.cvLoadImage;
 import static com.googlecode.javacv.cpp.opencv_highgui.cvSaveImage;
 import static com.googlecode.javacv.cpp.opencv_imgproc.CV_BGR2GRAY;
-import static com.googlecode.javacv.cpp.opencv_imgproc.CV_INTER_LINEAR;
 import static com.googlecode.javacv.cpp.opencv_imgproc.cvCvtColor;
-import static com.googlecode.javacv.cpp.opencv_imgproc.cvEqualizeHist;
-import static com.googlecode.javacv.cpp.opencv_imgproc.cvResize;
-import static com.googlecode.javacv.cpp.opencv_objdetect.CV_HAAR_FIND_BIGGEST_OBJECT;
-import static com.googlecode.javacv.cpp.opencv_objdetect.cvHaarDetectObjects;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import android.content.Context;
@@ -33,118 +26,461 @@ import android.provider.MediaStore;
 import android.util.Pair;
 
 import com.googlecode.javacpp.Loader;
-import com.googlecode.javacv.cpp.opencv_contrib.FaceRecognizer;
-import com.googlecode.javacv.cpp.opencv_core.CvMat;
-import com.googlecode.javacv.cpp.opencv_core.CvMemStorage;
 import com.googlecode.javacv.cpp.opencv_core.CvRect;
-import com.googlecode.javacv.cpp.opencv_core.CvSeq;
-import com.googlecode.javacv.cpp.opencv_core.CvSize;
 import com.googlecode.javacv.cpp.opencv_core.IplImage;
-import com.googlecode.javacv.cpp.opencv_core.MatVector;
-import com.googlecode.javacv.cpp.opencv_objdetect;
-import com.googlecode.javacv.cpp.opencv_objdetect.CvHaarClassifierCascade;
+import com.googlecode.javacv.facepreview.compute.Parallel;
+import com.googlecode.javacv.facepreview.compute.PipelineMetrics;
+import com.googlecode.javacv.facepreview.compute.PipelineMetrics.Stage;
+import com.googlecode.javacv.facepreview.recognition.BioHash;
+import com.googlecode.javacv.facepreview.recognition.BioHashIndex;
+import com.googlecode.javacv.facepreview.recognition.GalleryFile;
+import com.googlecode.javacv.facepreview.recognition.GalleryJournal;
+import com.googlecode.javacv.facepreview.recognition.LbphRecognizer;
+import com.googlecode.javacv.facepreview.recognition.LshIndex;
+import com.googlecode.javacv.facepreview.recognition.PackedIndex;
+import com.googlecode.javacv.facepreview.recognition.Prediction;
+import com.googlecode.javacv.facepreview.recognition.ProjectedIndex;
+import com.googlecode.javacv.facepreview.recognition.RandomProjection;
+import com.googlecode.javacv.facepreview.recognition.TemplateFile;
+import com.googlecode.javacv.facepreview.recognition.TemplateIndex;
 
 // Purpose: trains and uses a FaceRecognizer class to perform authorization
-// Currently, this learns several people's faces. The authorize()
-// function returns true if their face is more similar to the authorized
-// face than anyone else's face. We could simplify this: only compare the user's
-// face with the authorized person's face and return true iff difference <= threshold.
+// This learns several people's faces. identify() finds the closest of all of them (1:N).
+// authenticate() only compares the user's face with the authorized person's faces and
+// returns true iff the difference is under the verification threshold (1:1), so it doesn't
+// get slower as more people are added to the gallery.
 public class FacePredictor {
       
     // see description of different algorithms here: http://docs.opencv.org/trunk/modules/contrib/doc/facerec/facerec_api.html
     private static final Double THRESHHOLD = Double.MAX_VALUE/2; // higher means a loser threshold.
-    private static final FaceRecognizer ALGO_FACTORY =
-        com.googlecode.javacv.cpp.opencv_contrib.createLBPHFaceRecognizer(1, 8, 8, 8, THRESHHOLD);
     private static final Map<Integer, String> names = new HashMap<Integer, String>();
-    public final FaceRecognizer algorithm;
+    // label of the person the phone belongs to
+    public static final int AUTHORIZED_LABEL = 11;
+    // Turns faces into histograms, and keeps the templates in HISTOGRAM mode (see TemplateMode)
+    public final LbphRecognizer algorithm;
+    private final FaceNormalizer normalizer;
+    // where save() last wrote the model, or where it was loaded from; null before that
+    private File modelFile;
+    // changes since the model file was last written, see addIdentity()/removeIdentity()
+    private GalleryJournal journal;
+    // What verifyTiny() compares against, see verificationThreshold(). Always a number, so probes
+    // read it without the lock; recalibrate() updates it whenever the gallery or the index changes.
+    private volatile double verificationThreshold;
+    // set with setVerificationThreshold(), NaN means calibrate from the gallery
+    private double thresholdOverride = Double.NaN;
+
+    // How faces are compared, and what is kept of them. A gallery starts out with the full
+    // histograms (algorithm); setTemplateMode() builds another index from them. The other modes
+    // keep and save nothing but that index (a recognition.TemplateFile), so they can't go back.
+    public enum TemplateMode {
+        HISTOGRAM, // LBPH histograms and chi-square, same results as opencv
+        PROJECTED, // random projections of the histograms, see recognition.ProjectedIndex
+        BIOHASH    // 256 bit codes and Hamming distance, see recognition.BioHash
+    }
+    public static final int PROJECTED_DIMENSION = 256;
+    // saved models have their own, so changing this only affects new ones
+    public static final long PROJECTION_SEED = 0x4C425048L;
+    public static final int BIOHASH_BITS = 256;
+    public static final long DEFAULT_BIOHASH_SEED = 0x42494F48L;
+    // the user's token, see setBioHashSeed(). Saved with the codes.
+    private long bioHashSeed = DEFAULT_BIOHASH_SEED;
+    private TemplateMode templateMode = TemplateMode.HISTOGRAM;
+
+    // How identify() searches the templates
+    public enum SearchMode {
+        SCAN,  // compare with every template
+        HASHED // approximate, recognition.LshIndex. HISTOGRAM mode only, the others are cheap enough.
+    }
+    private SearchMode searchMode = SearchMode.SCAN;
+    // see setHashParameters()
+    public static final int DEFAULT_HASH_TABLES = 8;
+    public static final int DEFAULT_HASH_BITS = 12;
+    public static final int DEFAULT_HASH_PROBES = 1;
+    private int hashTables = DEFAULT_HASH_TABLES;
+    private int hashBits = DEFAULT_HASH_BITS;
+    private int hashProbes = DEFAULT_HASH_PROBES;
+    private volatile LshIndex lsh;
+    private volatile TemplateIndex matcher;
+    private final ThreadLocal<float[]> probe = new ThreadLocal<float[]>() {
+        @Override
+        protected float[] initialValue() {
+            return new float[algorithm.dimension()];
+        }
+    };
+
+    // see identify(byte[], ...)
+    private final ThreadLocal<IplImage> faceCrop = new ThreadLocal<IplImage>();
+    private volatile PipelineMetrics metrics;
 
     private Context context; // store for debugging    
 
-    // Load from file
-    public FacePredictor(Context applicationContext, String filename) throws Exception {
-  	    File file = new File(applicationContext.getFilesDir() + "/" + filename);
+    // Load from file (in the external files dir, where save() puts it).
+    // A GalleryFile is mapped and read in place, which doesn't depend on its size: save() checked
+    // the payload before the file replaced the old one, here only the header and length are.
+    // A TemplateFile (saved in PROJECTED and BIOHASH mode) is small and read completely, and so
+    // are files ending in .xml, the old opencv format.
+    // Throws FileNotFoundException if there is no such file, and IOException if it is damaged.
+    public FacePredictor(Context applicationContext, String filename) throws IOException {
+  	    File file = new File(applicationContext.getExternalFilesDir(null), filename);
   	    if (!file.exists()) {
-  	    	throw new Exception();
+  	    	throw new FileNotFoundException(file.getAbsolutePath());
   	    }
   	    
   	    this.context = applicationContext;
-  	    loadClassifier();
-  	  	algorithm = ALGO_FACTORY;
-  	    algorithm.load(context.getExternalFilesDir(null).getAbsolutePath() + "/" + filename);
+  	    normalizer = new FaceNormalizer(context.getCacheDir());
+  	    if (filename.endsWith(".xml")) {
+  	    	algorithm = LbphRecognizer.load(file.getAbsolutePath(), THRESHHOLD);
+  	    	matcher = algorithm;
+  	    } else if (TemplateFile.isTemplateFile(file)) {
+  	    	algorithm = newRecognizer();
+  	    	PackedIndex index = TemplateFile.read(file, algorithm, THRESHHOLD);
+  	    	if (index instanceof BioHashIndex) {
+  	    		templateMode = TemplateMode.BIOHASH;
+  	    		bioHashSeed = ((BioHashIndex) index).hash().seed();
+  	    	} else {
+  	    		templateMode = TemplateMode.PROJECTED;
+  	    	}
+  	    	matcher = index;
+  	    } else {
+  	    	algorithm = GalleryFile.open(file, THRESHHOLD);
+  	    	matcher = algorithm;
+  	    }
+  	    modelFile = file;
+  	    journal = journalFor(file);
+  	    if (packed() == null) {
+  	    	journal.replay(algorithm);
+  	    } else {
+  	    	journal.replay(packed());
+  	    }
+  	    recalibrate();
     }
     
-    // This is a slow function. It is slow, because it has to load a lot of images.
-    // This doesn't need to be a problem. 
+    // Only the three enrolled faces are computed here. The other people's templates come
+    // precomputed from BackgroundGallery.RESOURCE (built by FacePreview_Eval, see README.md).
     public FacePredictor(Context context, IplImage [] authorizedImages) throws IOException {
       
       this.context = context;
-      loadClassifier();
-      
-      final int numberOfImages = (8+1)*3; // TODO: calculate this more smartly.. maybe don't need to calculate
-      final MatVector images = new MatVector(numberOfImages);
-      final CvMat labels = cvCreateMat(1, numberOfImages, CV_32SC1);
+      this.normalizer = new FaceNormalizer(context.getCacheDir());
+      this.algorithm = newRecognizer();
+      this.matcher = algorithm;
      
-      int imgCount = 0;      
-      addNameAndFace(authorizedImages[0], imgCount++, 11, images, labels);
-      addNameAndFace(authorizedImages[1], imgCount++, 11, images, labels);
-      addNameAndFace(authorizedImages[2], imgCount++, 11, images, labels);
+      addNameAndFace(authorizedImages[0], AUTHORIZED_LABEL);
+      addNameAndFace(authorizedImages[1], AUTHORIZED_LABEL);
+      addNameAndFace(authorizedImages[2], AUTHORIZED_LABEL);
       
-      // TODO: process these images ahead of time (otherwise startup will take several minutes)
-      for (int personCount = 2; personCount < 10; personCount++) { // training people 2-10
-      	// TODO: use a couple images per person. We have the four images per person available. I'm just not using them.
-          String fileName = String.format("/com/googlecode/javacv/facepreview/data/a_%02d_05.jpg", personCount);
-          addNameAndFace(fileName, imgCount, personCount, images, labels);
-          imgCount++;
-          
-          fileName = String.format("/com/googlecode/javacv/facepreview/data/a_%02d_15.jpg", personCount);
-          addNameAndFace(fileName, imgCount, personCount, images, labels);
-          imgCount++;
-          
-          fileName = String.format("/com/googlecode/javacv/facepreview/data/b_%02d_15.jpg", personCount);
-          addNameAndFace(fileName, imgCount, personCount, images, labels);
-          imgCount++;
-          
+      if (!loadBackgroundGallery()) {
+          // Slow path: the artifact wasn't built, so decode and detect every image (takes minutes on a phone)
+          for (int personCount = BackgroundGallery.FIRST_PERSON; personCount <= BackgroundGallery.LAST_PERSON; personCount++) {
+              for (String fileName : BackgroundGallery.imageResources(personCount)) {
+                  addNameAndFace(fileName, personCount);
+              }
+          }
       }
-      
-      assert (numberOfImages == labels.size());
-      
-      this.algorithm = ALGO_FACTORY;
-      algorithm.train(images, labels);
+      recalibrate();
    }
+
+  // Same parameters we used to hand to createLBPHFaceRecognizer(1, 8, 8, 8, THRESHHOLD), but
+  // matching now runs in Java (see recognition.LbphRecognizer), so there is no JNI on the hot path.
+  private static LbphRecognizer newRecognizer() {
+      return new LbphRecognizer(LbphRecognizer.DEFAULT_RADIUS, LbphRecognizer.DEFAULT_NEIGHBORS,
+              LbphRecognizer.DEFAULT_GRID_X, LbphRecognizer.DEFAULT_GRID_Y, THRESHHOLD);
+  }
+
+  private boolean loadBackgroundGallery() {
+      InputStream in = FacePredictor.class.getResourceAsStream(BackgroundGallery.RESOURCE);
+      if (in == null) {
+          return false;
+      }
+      try {
+          GalleryFile.read(in, algorithm);
+          return true;
+      } catch (IOException e) {
+          // e.g. built with other LBPH parameters. Recompute instead.
+          System.err.println(e.toString());
+          return false;
+      } finally {
+          try {
+              in.close();
+          } catch (IOException e) {}
+      }
+  }
     
-  private void addNameAndFace(String fileName, int imgCount, int personCount, MatVector images, CvMat labels) throws IOException {
+  private void addNameAndFace(String fileName, int personCount) throws IOException {
       File imageFile = Loader.extractResource(getClass(), fileName,
               context.getCacheDir(), "image", ".jpg");
       IplImage image = cvLoadImage(imageFile.getAbsolutePath()); // according to traceView, this is 75% of the time
-      addNameAndFace(image, imgCount, personCount, images, labels);
+      addNameAndFace(image, personCount);
   }
   
-  private void addNameAndFace(IplImage image, int imgCount, int personCount, MatVector images, CvMat labels) throws IOException {
-      IplImage grayImage = IplImage.create(image.width(), image.height(), IPL_DEPTH_8U, 1);
-      cvCvtColor(image, grayImage, CV_BGR2GRAY);
- 
-      CvRect faceRectangle = detectFace(grayImage);  
-      images.put(imgCount, toTinyGray(image, faceRectangle));
-      labels.put(imgCount, personCount);
-      String name = new Integer(personCount).toString();
+  private void addNameAndFace(IplImage image, int personCount) throws IOException {
+      IplImage tiny = normalizer.normalizeColorImage(image);
+      if (tiny == null) {
+          throw new IOException("No face found in training image for " + personCount);
+      }
+      algorithm.update(tiny.getByteBuffer(), tiny.width(), tiny.height(), tiny.widthStep(), personCount);
   }
   
-  private void loadClassifier() throws IOException {
-	// Load the classifier file from Java resources.
-	    File classifierFile = Loader.extractResource(getClass(),
-	        "/com/googlecode/javacv/facepreview/data/haarcascade_frontalface_alt.xml",
-	        context.getCacheDir(), "classifier", ".xml");
-	    if (classifierFile == null || classifierFile.length() <= 0) {
-	        throw new IOException("Could not extract the classifier file from Java resource.");
-	    }
-	    // Preload the opencv_objdetect module to work around a known bug.
-	    Loader.load(opencv_objdetect.class);
-	    classifier = new CvHaarClassifierCascade(cvLoad(classifierFile.getAbsolutePath()));
+  // In the modes that only keep packed templates, the journal has those too
+  private GalleryJournal journalFor(File modelFile) {
+      PackedIndex packed = packed();
+      int dimension = packed == null ? algorithm.dimension() : packed.templateBytes() / 4;
+      return new GalleryJournal(new File(modelFile.getAbsolutePath() + ".journal"), dimension);
   }
-  
+
+  // The templates if that's all the mode keeps, null if algorithm has the histograms
+  private PackedIndex packed() {
+      return matcher instanceof PackedIndex ? (PackedIndex) matcher : null;
+  }
+
+  /**
+   * Enrolls (more pictures of) a person. Only the new faces are normalized and only their templates
+   * are written, to the journal next to the model file; the rest of the gallery isn't touched.
+   * Returns the number of faces that were added (images without a face are skipped).
+   * Detection and the histograms are done before taking the lock, so authentication carries on
+   * meanwhile; it only waits for the templates to be added.
+   */
+  public int addIdentity(int label, IplImage [] faces) throws IOException {
+      List<float[]> histograms = new ArrayList<float[]>(faces.length);
+      for (IplImage face : faces) {
+          IplImage tiny = normalizer.normalizeColorImage(face);
+          if (tiny != null) {
+              float[] histogram = new float[algorithm.dimension()];
+              algorithm.histogram(tiny.getByteBuffer(), tiny.width(), tiny.height(), tiny.widthStep(), histogram, 0);
+              histograms.add(histogram);
+          }
+      }
+      synchronized (this) {
+          if (journal == null) {
+              throw new IOException("Save the predictor before enrolling people");
+          }
+          PackedIndex packed = packed();
+          ByteBuffer template = packed == null ? null : ByteBuffer.allocate(packed.templateBytes());
+          for (float[] histogram : histograms) {
+              if (packed != null) {
+                  // the histogram itself is never written
+                  template.clear();
+                  packed.pack(histogram, 0, template);
+                  template.flip();
+                  journal.appendAdd(label, template);
+                  packed.addPacked(template, label);
+                  continue;
+              }
+              journal.appendAdd(label, histogram, 0);
+              algorithm.add(histogram, 0, label);
+          }
+          recalibrate();
+      }
+      return histograms.size();
+  }
+
+  // Returns the number of templates removed. Like addIdentity(), the journal is written first:
+  // if that fails the person is still enrolled, in memory and on the next start.
+  public synchronized int removeIdentity(int label) throws IOException {
+      if (journal == null) {
+          throw new IOException("Save the predictor before removing people");
+      }
+      PackedIndex packed = packed();
+      if ((packed == null ? algorithm.count(label) : packed.count(label)) == 0) {
+          return 0;
+      }
+      journal.appendRemove(label);
+      int removed = packed == null ? algorithm.remove(label) : packed.remove(label);
+      recalibrate();
+      return removed;
+  }
+
+  // True once replaying the journal costs more than rewriting the model would save
+  public synchronized boolean shouldCompact() throws IOException {
+      return journal != null && journal.records() > Math.max(16, matcher.size() / 4);
+  }
+
+  public synchronized TemplateMode templateMode() {
+      return templateMode;
+  }
+
+  /**
+   * Switches how faces are matched. Building the index projects every stored template once;
+   * after that identify() and verify() only use the index. The verification threshold goes back
+   * to being calibrated, since distances in different modes aren't comparable.
+   * Both other modes drop the histograms: once the predictor has been saved, the model file is
+   * rewritten with the projections or codes right away, and there is no going back to another
+   * mode (IllegalStateException); enroll from the images again for that. If writing the file
+   * throws, nothing changed.
+   */
+  public synchronized void setTemplateMode(TemplateMode mode) throws IOException {
+      if (mode == templateMode) {
+          return;
+      }
+      if (packed() != null) {
+          throw new IllegalStateException("Only the " + templateMode + " templates are left, can't switch to " + mode);
+      }
+      PackedIndex index = newIndex(mode);
+      float[] histogram = new float[algorithm.dimension()];
+      for (int i = 0; i < algorithm.size(); i++) {
+          if (!algorithm.isRemoved(i)) {
+              algorithm.template(i, histogram, 0);
+              index.add(histogram, 0, algorithm.label(i));
+          }
+      }
+      if (modelFile != null) {
+          TemplateFile.write(index, algorithm, modelFile);
+      }
+      // the histograms are gone from here on, in memory and on disk
+      matcher = index;
+      templateMode = mode;
+      lsh = null;
+      algorithm.clear();
+      if (modelFile != null) {
+          journal = journalFor(modelFile);
+          journal.reset();
+      }
+      recalibrate();
+  }
+
+  public synchronized long bioHashSeed() {
+      return bioHashSeed;
+  }
+
+  /**
+   * The user's token the BioHash codes are made with when switching to BIOHASH; it is saved with
+   * them. Codes made with another token (say, from a stolen copy) are unrelated to these. Once
+   * the codes are made only they are left, so revoking them means enrolling from the images
+   * again with a new token; in BIOHASH mode this throws IllegalStateException.
+   */
+  public synchronized void setBioHashSeed(long seed) {
+      if (templateMode == TemplateMode.BIOHASH) {
+          throw new IllegalStateException("The codes are made, enroll again to use another token");
+      }
+      bioHashSeed = seed;
+  }
+
+  public synchronized SearchMode searchMode() {
+      return searchMode;
+  }
+
+  public synchronized void setSearchMode(SearchMode mode) {
+      searchMode = mode;
+      if (mode == SearchMode.HASHED && lsh == null) {
+          lsh = newLshIndex();
+      } else if (mode != SearchMode.HASHED) {
+          lsh = null;
+      }
+  }
+
+  /**
+   * Tunes SearchMode.HASHED: more tables and probes (0 or 1) find the closest face more often,
+   * more bits make the buckets, and so the number of templates compared, smaller.
+   * Test_LshIndex reports recall and speed for a few settings.
+   */
+  public synchronized void setHashParameters(int tables, int bits, int probes) {
+      hashTables = tables;
+      hashBits = bits;
+      hashProbes = probes;
+      if (lsh != null) {
+          lsh = newLshIndex();
+      }
+  }
+
+  private LshIndex newLshIndex() {
+      // the tables are filled on the first search, and follow enrollments by themselves
+      return new LshIndex(algorithm, PROJECTED_DIMENSION, hashTables, hashBits, hashProbes, PROJECTION_SEED);
+  }
+
+  private PackedIndex newIndex(TemplateMode mode) {
+      switch (mode) {
+      case PROJECTED:
+          return new ProjectedIndex(new RandomProjection(algorithm.dimension(), PROJECTED_DIMENSION, PROJECTION_SEED), THRESHHOLD);
+      case BIOHASH:
+          RandomProjection projection = new RandomProjection(algorithm.dimension(), PROJECTED_DIMENSION, PROJECTION_SEED);
+          // centered on the faces we know, most of which are the background gallery
+          BioHash hash = new BioHash(projection, BIOHASH_BITS, bioHashSeed, BioHash.mean(projection, algorithm));
+          return new BioHashIndex(hash, THRESHHOLD);
+      default:
+          throw new IllegalArgumentException(mode + " keeps the histograms");
+      }
+  }
+
   public boolean authenticate(IplImage image) {
-	  String name = identify(image).first;
-	  return name != null && name.equals("11");
+	  return verify(image, AUTHORIZED_LABEL);
+  }
+
+  // faceHint: roughly where the face is in image (may be null), saves searching all of it
+  public boolean authenticate(IplImage image, CvRect faceHint) {
+	  return verify(image, AUTHORIZED_LABEL, faceHint);
+  }
+
+  public boolean verify(IplImage image, int claimedLabel) {
+	  return verify(image, claimedLabel, null);
+  }
+
+  /**
+   * 1:1 verification: is this the person with the given label? Only that person's templates are
+   * compared against, using verificationThreshold().
+   */
+  public boolean verify(IplImage image, int claimedLabel, CvRect faceHint) {
+	  long start = System.nanoTime();
+	  IplImage tiny = normalizeProbe(image, faceHint);
+	  return verifyTiny(tiny, claimedLabel, record(Stage.NORMALIZE, start));
+  }
+
+  // Where to record how long normalizing and matching take, null for nowhere
+  public void setMetrics(PipelineMetrics metrics) {
+	  this.metrics = metrics;
+  }
+
+  private long record(Stage stage, long start) {
+	  PipelineMetrics m = metrics;
+	  return m == null ? System.nanoTime() : m.record(stage, start);
+  }
+
+  // Overrides the calibrated threshold. Lower is stricter; NaN goes back to calibrating.
+  public synchronized void setVerificationThreshold(double threshold) {
+	  thresholdOverride = threshold;
+	  recalibrate();
+  }
+
+  /**
+   * Unless set explicitly, this is the distance from the authorized person's templates to the
+   * closest template of anybody else. A probe is accepted if it's closer than every other
+   * enrolled face would be, which is what the old identify()-based check amounted to.
+   */
+  public double verificationThreshold() {
+	  return verificationThreshold;
+  }
+
+  // Computed by whoever changes the gallery or the index, with the lock held, never on a probe
+  private void recalibrate() {
+	  verificationThreshold = Double.isNaN(thresholdOverride) ? calibrateThreshold(AUTHORIZED_LABEL) : thresholdOverride;
+  }
+
+  private double calibrateThreshold(int label) {
+	  double closestImpostor = THRESHHOLD;
+	  Prediction prediction = new Prediction();
+	  PackedIndex packed = packed();
+	  if (packed != null) {
+		  ByteBuffer template = ByteBuffer.allocate(packed.templateBytes());
+		  for (int i = 0; i < packed.size(); i++) {
+			  if (packed.label(i) == label) {
+				  continue;
+			  }
+			  template.clear();
+			  packed.packed(i, template);
+			  template.flip();
+			  packed.verifyPacked(template, label, THRESHHOLD, prediction);
+			  closestImpostor = Math.min(closestImpostor, prediction.distance);
+		  }
+		  return closestImpostor;
+	  }
+	  float[] histogram = new float[algorithm.dimension()];
+	  for (int i = 0; i < algorithm.size(); i++) {
+		  if (algorithm.isRemoved(i) || algorithm.label(i) == label) {
+			  continue;
+		  }
+		  algorithm.template(i, histogram, 0);
+		  matcher.verify(histogram, 0, label, THRESHHOLD, prediction);
+		  closestImpostor = Math.min(closestImpostor, prediction.distance);
+	  }
+	  return closestImpostor;
   }
   
  /*
@@ -162,9 +498,121 @@ public class FacePredictor {
   
   */
   
+  // One image's result from identifyAll()
+  public static final class Identification {
+      // what identify() returns: null if there's no face in the image
+      public final String name;
+      public final double confidence;
+      // non-null if identify() threw on this image, name is null then
+      public final RuntimeException error;
+
+      Identification(Pair<String, Double> result) {
+          name = result.first;
+          confidence = result.second;
+          error = null;
+      }
+
+      Identification(RuntimeException error) {
+          name = null;
+          confidence = 0;
+          this.error = error;
+      }
+
+      public boolean failed() {
+          return error != null;
+      }
+  }
+
+  /**
+   * identify() for many images, spread over all cores (each thread detects with its own cascade,
+   * see FaceNormalizer). Results are in the order of images. An image that makes identify() throw
+   * (null, wrong depth, ...) only fails its own result, the others are still identified.
+   */
+  public List<Identification> identifyAll(final List<IplImage> images) {
+    final Identification[] results = new Identification[images.size()];
+    Parallel.For(0, images.size(), new Parallel.Range() {
+        public void run(int start, int end) {
+            for (int i = start; i < end; i++) {
+                try {
+                    results[i] = new Identification(identify(images.get(i)));
+                } catch (RuntimeException e) {
+                    results[i] = new Identification(e);
+                }
+            }
+        }
+    });
+    return Arrays.asList(results);
+  }
+
   // Input needs to be B
   public Pair<String, Double> identify(IplImage image) {
-    // Convert to grayscale, if not already done
+    return identify(image, null);
+  }
+
+  /**
+   * identify() for a camera frame whose face has already been found: face is where detection
+   * found it in a copy of the frame shrunk by scale, luma the frame's Y plane. Only the region
+   * around the face is copied (see FaceNormalizer.cropRegion()) and searched again at full
+   * resolution, so the probe is cut on the same kind of box as the templates.
+   */
+  public Pair<String, Double> identify(byte[] luma, int width, int height, CvRect face, int scale) {
+    CvRect region = new CvRect();
+    IplImage crop = FaceNormalizer.cropRegion(luma, width, height, face, scale, faceCrop.get(), region);
+    if (crop == null) {
+    	return identifyTiny(null, System.nanoTime());
+    }
+    faceCrop.set(crop);
+    return identify(crop, FaceNormalizer.inRegion(face, scale, region));
+  }
+
+  // faceHint: roughly where the face is in image (may be null), e.g. in a region from FaceNormalizer.cropRegion()
+  public Pair<String, Double> identify(IplImage image, CvRect faceHint) {
+    long start = System.nanoTime();
+    IplImage tiny = normalizeProbe(image, faceHint);
+    return identifyTiny(tiny, record(Stage.NORMALIZE, start));
+  }
+
+  // tiny is a normalized face, or null if there was none. start is when matching began, for the metrics.
+  private boolean verifyTiny(IplImage tiny, int claimedLabel, long start) {
+	  if (tiny == null) {
+		  return false;
+	  }
+	  final Prediction prediction = new Prediction();
+	  boolean accepted = matcher.verify(histogram(tiny), 0, claimedLabel, verificationThreshold(), prediction);
+	  record(Stage.PREDICT, start);
+	  return accepted;
+  }
+
+  private Pair<String, Double> identifyTiny(IplImage tiny, long start) {
+    if (tiny == null) {
+    	return new Pair<String, Double>(null, (double) 0); 
+    }
+    float[] histogram = histogram(tiny);
+    final Prediction prediction = new Prediction();
+    LshIndex hashed = lsh;
+    if (hashed != null && matcher == algorithm) {
+    	hashed.predict(histogram, 0, prediction);
+    } else {
+    	matcher.predict(histogram, 0, prediction);
+    }
+    record(Stage.PREDICT, start);
+    //String name = names.get(prediction.label);
+    String name = new Integer(prediction.label).toString();
+    Double confidence_ = 100*(THRESHHOLD - prediction.distance)/THRESHHOLD;
+
+    // we return the identity with the highest confidence rating 
+    return new Pair<String, Double>(name, confidence_); 
+  }
+
+  // LBPH histogram of a normalized face, in a per-thread buffer
+  private float[] histogram(IplImage tiny) {
+    float[] histogram = probe.get();
+    algorithm.histogram(tiny.getByteBuffer(), tiny.width(), tiny.height(), tiny.widthStep(), histogram, 0);
+    return histogram;
+  }
+
+  // Grayscale (if not already done), find the face and scale it down. Null if there is no face.
+  private IplImage normalizeProbe(IplImage image, CvRect faceHint) {
 	IplImage grayImage;
     if (image.nChannels() == 1) {
     	grayImage = image;
@@ -173,70 +621,30 @@ public class FacePredictor {
     	cvCvtColor(image, grayImage, CV_BGR2GRAY);
     }
     
-    CvRect faceRectangle = detectFace(grayImage);
+    CvRect faceRectangle = faceHint == null ? normalizer.detectFace(grayImage) : normalizer.detectFace(grayImage, faceHint);
     if (faceRectangle.isNull()) {
-    	return new Pair<String, Double>(null, (double) 0); 
+    	return null;
     }
-	  
-    final IplImage iplImage = toTiny(grayImage, faceRectangle);
-    final int[] prediction = new int[1];
-    final double[] confidence = new double[1];
-    algorithm.predict(iplImage, prediction, confidence);
-    //String name = names.get(prediction[0]);
-    String name = new Integer(prediction[0]).toString();
-    Double confidence_ = 100*(THRESHHOLD - confidence[0])/THRESHHOLD;
-
-    // we return the identity with the highest confidence rating 
-    for (int i = 0; i < confidence.length; i++) {
-    	assert(confidence_ >= confidence[i]);
-    }
-    return new Pair<String, Double>(name, confidence_); 
+    return normalizer.toTiny(grayImage, faceRectangle);
   }
 
-  private static final CvMemStorage storage = CvMemStorage.create();
-  private static CvHaarClassifierCascade classifier ;
-
   static int debugPictureCount = 0;
-  /**
-   * This does facial detection and NOT facial recognition
-   */
-  private synchronized CvRect detectFace(IplImage image) {
-	cvClearMemStorage(storage);
-
-    final CvSeq cvSeq = cvHaarDetectObjects(image, classifier, storage, 1.1, 3, CV_HAAR_FIND_BIGGEST_OBJECT);
-    assert !cvSeq.isNull();
-
-    return new CvRect(cvGetSeqElem(cvSeq, 0));
-  }
-
-  private static final CvSize SMALL_IMAGE_SIZE = new CvSize(400,400);
-  
-  /**
-   * Images should be grayscaled and scaled-down for faster calculations
-   */
-  private IplImage toTinyGray(IplImage image, CvRect r /* (x,y) is the top corner */) {
-      IplImage gray = cvCreateImage(cvGetSize(image), IPL_DEPTH_8U, 1);
-      cvCvtColor(image, gray, CV_BGR2GRAY);		
-      return toTiny(gray, r);
-  }
-  
-  private IplImage toTiny(IplImage gray, CvRect r /* (x,y) is the top corner */) {
-      IplImage roi = cvCreateImage(SMALL_IMAGE_SIZE, IPL_DEPTH_8U, 1);
-
-      int width = Math.max(r.width(), r.height());
-      int x = r.x() + (r.width()-width)/2;
-      int y = r.y() + (r.height()-width)/2;
-      
-      CvRect r1 = new CvRect(x, y, width, width);// consider adding +10 on all sides
-      cvSetImageROI(gray, r1);//set portion that will be processed on
-      cvResize(gray, roi, CV_INTER_LINEAR);
-      cvEqualizeHist(roi, roi);
-      	//debugPrintIplImage(roi, context);
-      return roi;  
-  }
 
-	public void save(Context applicationContext, String filename) {		
-		algorithm.save(context.getExternalFilesDir(null).getAbsolutePath() + "/" + filename);
+	// Saves a GalleryFile that the constructor above can map, or in the other modes a TemplateFile.
+	// Everything in the journal is in the new file, so the journal starts over. If this throws,
+	// neither the file nor the journal changed, and enrollments still go to the journal of the
+	// model that was loaded.
+	public synchronized void save(Context applicationContext, String filename) throws IOException {		
+		File file = new File(context.getExternalFilesDir(null), filename);
+		PackedIndex packed = packed();
+		if (packed == null) {
+			GalleryFile.write(algorithm, file);
+		} else {
+			TemplateFile.write(packed, algorithm, file);
+		}
+		modelFile = file;
+		journal = journalFor(file);
+		journal.reset();
 	}
 	
 
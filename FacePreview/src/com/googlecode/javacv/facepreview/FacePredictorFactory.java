@@ -3,6 +3,7 @@ package com.googlecode.javacv.facepreview;
 import static com.googlecode.javacv.cpp.opencv_highgui.cvLoadImage;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 
 import android.app.Service;
@@ -16,19 +17,46 @@ import com.googlecode.javacv.cpp.opencv_core.IplImage;
 
 public class FacePredictorFactory {
 	
+	// Binary model (a GalleryFile), mapped instead of parsed on every start
+	public static final String MODEL_FILE = "recognizer.bin";
+	// What older versions saved. Imported once, then replaced by MODEL_FILE.
+	public static final String LEGACY_MODEL_FILE = "recognizer.xml";
+	
 	// Singletons in android can only be used if you don't care about your app working in the background
 	private static FacePredictor facePredictor;
 	
-	public static FacePredictor createFacePredictor(Context context) {
+	public static boolean hasModel(Context context) {
+		File dir = context.getExternalFilesDir(null);
+		return new File(dir, MODEL_FILE).exists() || new File(dir, LEGACY_MODEL_FILE).exists();
+	}
+	
+	public static synchronized FacePredictor createFacePredictor(Context context) {
 		if (facePredictor != null) {
 			return facePredictor;
 		}
 		
+		// Only train a new model if there is none. A model that doesn't load is left where it is:
+		// retraining would overwrite it and reset its journal, and lose everybody enrolled since.
+		try {
+			facePredictor = new FacePredictor(context, MODEL_FILE);
+			return facePredictor;
+		} catch (FileNotFoundException e) {
+			// not saved yet
+		} catch (IOException e) {
+			System.err.println("Could not load " + MODEL_FILE + ": " + e);
+			return null;
+		}
+		
 		try {
-			// try loading the the predictor from file
-			facePredictor = new FacePredictor(context, "recognizer.xml");
+			facePredictor = new FacePredictor(context, LEGACY_MODEL_FILE);
+			migrateLegacyModel(context);
 			return facePredictor;
-		} catch (Exception e) {}
+		} catch (FileNotFoundException e) {
+			// nothing to migrate either
+		} catch (IOException e) {
+			System.err.println("Could not load " + LEGACY_MODEL_FILE + ": " + e);
+			return null;
+		}
 		
 		IplImage [] authorizedImages = {
 				cvLoadImage(context.getApplicationContext().getExternalFilesDir(null).getAbsolutePath() + "/face_image_1.jpg"),
@@ -37,12 +65,62 @@ public class FacePredictorFactory {
 		};
 		try {
 			facePredictor = new FacePredictor(context, authorizedImages);
-			facePredictor.save(context, "recognizer.xml");
+			facePredictor.save(context, MODEL_FILE);
 			// TODO: delete the images used to construct the recognizer
 			return facePredictor;
 		} catch (IOException e) {
 			return null;
 		}		
 	}
+	
+	// Adds a person to the saved model without retraining; only the new templates are written.
+	public static synchronized int enroll(Context context, int label, IplImage [] faces) throws IOException {
+		FacePredictor predictor = createFacePredictor(context);
+		if (predictor == null) {
+			throw new IOException("No face predictor");
+		}
+		int added = predictor.addIdentity(label, faces);
+		compactIfNeeded(context, predictor);
+		return added;
+	}
+	
+	public static synchronized int unenroll(Context context, int label) throws IOException {
+		FacePredictor predictor = createFacePredictor(context);
+		if (predictor == null) {
+			throw new IOException("No face predictor");
+		}
+		int removed = predictor.removeIdentity(label);
+		compactIfNeeded(context, predictor);
+		return removed;
+	}
+	
+	// Folds the journal into a new model file once it gets long
+	private static void compactIfNeeded(Context context, FacePredictor predictor) {
+		try {
+			if (predictor.shouldCompact()) {
+				predictor.save(context, MODEL_FILE);
+			}
+		} catch (IOException e) {
+			// the journal still has everything
+			System.err.println(e.toString());
+		}
+	}
+	
+	// Writes the XML model we just loaded as MODEL_FILE and only deletes the XML once that worked.
+	// save() checks the new file before it switches the journal over, so if it fails the XML and
+	// its journal are still the model, and enrollments keep going to the journal that gets replayed.
+	private static void migrateLegacyModel(Context context) {
+		File dir = context.getExternalFilesDir(null);
+		try {
+			facePredictor.save(context, MODEL_FILE);
+		} catch (IOException e) {
+			// keep using the XML file, we'll try again next start
+			System.err.println(e.toString());
+			return;
+		}
+		// everything in the old journal is in MODEL_FILE now
+		new File(dir, LEGACY_MODEL_FILE).delete();
+		new File(dir, LEGACY_MODEL_FILE + ".journal").delete();
+	}
 	    
 }
\ No newline at end of file
@@ -0,0 +1,129 @@
+package com.googlecode.javacv.facepreview;
+
+import static com.googlecode.javacv.cpp.opencv_core.cvClearMemStorage;
+import static com.googlecode.javacv.cpp.opencv_core.cvGetSeqElem;
+import static com.googlecode.javacv.cpp.opencv_core.cvResetImageROI;
+import static com.googlecode.javacv.cpp.opencv_core.cvSetImageROI;
+import static com.googlecode.javacv.cpp.opencv_objdetect.CV_HAAR_FIND_BIGGEST_OBJECT;
+import static com.googlecode.javacv.cpp.opencv_objdetect.cvHaarDetectObjects;
+
+import com.googlecode.javacv.cpp.opencv_core.CvMemStorage;
+import com.googlecode.javacv.cpp.opencv_core.CvRect;
+import com.googlecode.javacv.cpp.opencv_core.CvSeq;
+import com.googlecode.javacv.cpp.opencv_core.CvSize;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.googlecode.javacv.cpp.opencv_objdetect.CvHaarClassifierCascade;
+
+// Finds the face in a stream of frames. Once it has found one, the next frames are only searched
+// in a window around where the face was, and only for faces of about the same size, which is a
+// small fraction of the work of searching the whole frame at every scale.
+// The whole frame is searched again every redetectInterval frames (someone else may have stepped
+// in, closer to the camera), and whenever the face isn't where we expected it.
+// Like FaceNormalizer, no Android classes here. Not thread safe, use one per stream of frames.
+public class FaceTracker {
+    public static final int DEFAULT_REDETECT_INTERVAL = 15;
+    // the search window is the last face grown by this much of its size on every side
+    public static final double SEARCH_MARGIN = 0.5;
+    // and the face may have grown or shrunk by this factor
+    public static final double SIZE_TOLERANCE = 1.3;
+    // smallest window the cascade can look at (haarcascade_frontalface_alt is trained on 20x20)
+    private static final int CASCADE_SIZE = 20;
+
+    private final CvHaarClassifierCascade classifier;
+    private final CvMemStorage storage = CvMemStorage.create();
+    private final int redetectInterval;
+
+    private final CvRect face = new CvRect();
+    private boolean tracking = false;
+    private int framesSinceDetection = 0;
+
+    private long fullDetections = 0;
+    private long trackedDetections = 0;
+    private long losses = 0;
+
+    public FaceTracker(CvHaarClassifierCascade classifier) {
+        this(classifier, DEFAULT_REDETECT_INTERVAL);
+    }
+
+    public FaceTracker(CvHaarClassifierCascade classifier, int redetectInterval) {
+        this.classifier = classifier;
+        this.redetectInterval = Math.max(1, redetectInterval);
+    }
+
+    /**
+     * The face in the next frame, or null. The rectangle belongs to the tracker and changes with
+     * the next call; copy it to keep it.
+     */
+    public CvRect track(IplImage image) {
+        if (tracking && framesSinceDetection < redetectInterval) {
+            framesSinceDetection++;
+            if (detect(image, classifier, storage, face, face)) {
+                trackedDetections++;
+                return face;
+            }
+            losses++;
+        }
+        framesSinceDetection = 0;
+        fullDetections++;
+        tracking = detect(image, classifier, storage, null, face);
+        return tracking ? face : null;
+    }
+
+    // Forget the face, the next frame is searched in full
+    public void reset() {
+        tracking = false;
+    }
+
+    public long fullDetections() { return fullDetections; }
+    public long trackedDetections() { return trackedDetections; }
+    // times the face wasn't near where it was before, each one costs a full detection as well
+    public long losses() { return losses; }
+
+    /**
+     * Looks for the biggest face in image, or only near `near` if that isn't null (see
+     * SEARCH_MARGIN and SIZE_TOLERANCE). Writes it to result (which may be near) and returns true
+     * if there is one. near is in the coordinates of image, so scale it first if it was found in
+     * an image of another size.
+     */
+    public static boolean detect(IplImage image, CvHaarClassifierCascade classifier, CvMemStorage storage, CvRect near, CvRect result) {
+        cvClearMemStorage(storage);
+        if (near == null) {
+            CvSeq faces = cvHaarDetectObjects(image, classifier, storage, 1.1, 3, CV_HAAR_FIND_BIGGEST_OBJECT);
+            return copyFirst(faces, 0, 0, result);
+        }
+
+        int size = Math.max(near.width(), near.height());
+        int margin = (int) (SEARCH_MARGIN * size);
+        int x0 = Math.max(0, near.x() - margin);
+        int y0 = Math.max(0, near.y() - margin);
+        int x1 = Math.min(image.width(), near.x() + near.width() + margin);
+        int y1 = Math.min(image.height(), near.y() + near.height() + margin);
+        int minSize = Math.max(CASCADE_SIZE, (int) (size / SIZE_TOLERANCE));
+        int maxSize = (int) Math.ceil(size * SIZE_TOLERANCE);
+        if (x1 - x0 < minSize || y1 - y0 < minSize) {
+            // the face would have to be mostly off the picture
+            return false;
+        }
+
+        CvRect window = new CvRect(x0, y0, x1 - x0, y1 - y0);
+        CvSize min = new CvSize().width(minSize).height(minSize);
+        CvSize max = new CvSize().width(maxSize).height(maxSize);
+        cvSetImageROI(image, window);
+        try {
+            CvSeq faces = cvHaarDetectObjects(image, classifier, storage, 1.1, 3, CV_HAAR_FIND_BIGGEST_OBJECT, min, max);
+            // found in the window, we want image coordinates
+            return copyFirst(faces, x0, y0, result);
+        } finally {
+            cvResetImageROI(image);
+        }
+    }
+
+    private static boolean copyFirst(CvSeq faces, int dx, int dy, CvRect result) {
+        if (faces == null || faces.isNull() || faces.total() == 0) {
+            return false;
+        }
+        CvRect r = new CvRect(cvGetSeqElem(faces, 0));
+        result.x(r.x() + dx).y(r.y() + dy).width(r.width()).height(r.height());
+        return true;
+    }
+}
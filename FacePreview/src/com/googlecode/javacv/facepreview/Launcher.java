@@ -1,7 +1,5 @@
 package com.googlecode.javacv.facepreview;
 
-import java.io.File;
-
 import android.app.Activity;
 import android.content.Intent;
 import android.os.Bundle;
@@ -16,8 +14,7 @@ public class Launcher extends Activity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        File recognizerFile = new File(this.getExternalFilesDir(null).getAbsolutePath() + "/recognizer.xml");
-	    if (recognizerFile.exists()) {
+	    if (FacePredictorFactory.hasModel(this)) {
 	    	Intent intent = new Intent(this,LockScreen.class);
 	    	startActivity(intent);
 	    	finish();
@@ -1,127 +1,116 @@
 package com.googlecode.javacv.facepreview.compute;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Set;
-import java.util.TreeSet;
-
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.Rect;
-import android.util.Log;
 
 import com.googlecode.javacv.cpp.opencv_core.CvRect;
 
+// No Android classes in here, so it can be benchmarked on a desktop (see FacePreview_Bench).
+// FaceViewWithAnalysis draws the chart.
 public class BackgroundConsistencyAnalysis {
+	public static final int DEFAULT_LENGTH = 40;
 
-	// last 100 frames: number of pixels in face that were considered in the foreground
-	private LinkedList<Integer> motionTrendFace = new LinkedList<Integer>(); 
-	// last 100 frames: number of pixels outside the face that were considered in the foreground
-	private LinkedList<Integer> motionTrendNotFace = new LinkedList<Integer>();
+	// The windows hold the last length - 1 frames, and pass() needs them full
+	private final int length;
+	// last frames: number of pixels in face that were considered in the foreground
+	private final SlidingWindow motionTrendFace;
+	// last frames: number of pixels outside the face that were considered in the foreground
+	private final SlidingWindow motionTrendNotFace;
+	
+	private final SlidingWindow motion_metric_ratio_chart;
+	private final IntegralImage foreground = new IntegralImage();
 	
-	private LinkedList<Double> motion_metric_ratio_chart = new LinkedList<Double>();
+	public BackgroundConsistencyAnalysis() {
+		this(DEFAULT_LENGTH);
+	}
 	
-	// need to write this ourselves, since there is a bug in Bitmap.getPixel()
-	private byte getPixel(ByteBuffer forgroundMap, int height, int x, int y) {
-		return forgroundMap.get(y*height + x);
+	public BackgroundConsistencyAnalysis(int length) {
+		if (length < 2) {
+			throw new IllegalArgumentException("length must be at least 2");
+		}
+		this.length = length;
+		motionTrendFace = new SlidingWindow(length - 1);
+		motionTrendNotFace = new SlidingWindow(length - 1);
+		motion_metric_ratio_chart = new SlidingWindow(length - 1);
 	}
-	private int length = 40;
 	
+	public int length() {
+		return length;
+	}
+	
+	// The foreground map of the last frame with a face, for counting other regions (rings around the
+	// face, quadrants...) without going over the pixels again. Only valid on the thread that calls
+	// processNewFrame, until its next call.
+	public IntegralImage foreground() {
+		return foreground;
+	}
+	
+	// rows of forgroundMap are mapWidth bytes apart
 	public void processNewFrame(ByteBuffer forgroundMap, int mapHeight, int mapWidth, CvRect faceRectangle) {
+		processNewFrame(forgroundMap, mapHeight, mapWidth, mapWidth, faceRectangle);
+	}
+	
+	// for maps with padded rows, like an IplImage (mapStride = widthStep())
+	public void processNewFrame(ByteBuffer forgroundMap, int mapHeight, int mapWidth, int mapStride, CvRect faceRectangle) {
 		
 		if (faceRectangle.isNull()) {
 			// TODO: consider this case as well
 			return;
 		}
+		processNewFrame(forgroundMap, mapHeight, mapWidth, mapStride,
+				faceRectangle.x(), faceRectangle.y(), faceRectangle.width(), faceRectangle.height());
+	}
 	
-		int faceRectangleCount = 0;
-		for (int j = faceRectangle.y(); j < faceRectangle.y() + faceRectangle.height(); j++) {
-			for (int i = faceRectangle.x(); i < faceRectangle.x() + faceRectangle.width(); i++) {
-				if (getPixel(forgroundMap, mapHeight, i, j) != 0) {
-					faceRectangleCount++;
-				}
-			}
-		}
-		
-		int nonFaceRectangleCount = -faceRectangleCount;
-		for (int j = 0; j < mapHeight; j++) {
-			for (int i = 0; i < mapWidth; i++) {
-				if (getPixel(forgroundMap, mapHeight, i, j) != 0) {
-					nonFaceRectangleCount++;
-				}
-			}
-		}
+	// the face as plain numbers, no opencv needed
+	public void processNewFrame(ByteBuffer forgroundMap, int mapHeight, int mapWidth, int mapStride, int faceX, int faceY, int faceWidth, int faceHeight) {
+	
+		// one pass over the map, then every region is four lookups.
+		// (This used to step through rows by mapHeight instead of the row length.)
+		foreground.compute(forgroundMap, mapWidth, mapHeight, mapStride);
+		int faceRectangleCount = foreground.count(faceX, faceY, faceWidth, faceHeight);
+		int nonFaceRectangleCount = foreground.total() - faceRectangleCount;
 		
 		if (nonFaceRectangleCount + faceRectangleCount == 0) {
 			// return, since we don't want to divide by zero
 			return;
 		}
 		
+		// the windows drop their oldest frame by themselves
 		motionTrendFace.add(faceRectangleCount);
 		motionTrendNotFace.add(nonFaceRectangleCount);
-		if (motionTrendFace.size() >= length) {
-			motionTrendFace.removeFirst();
-			motionTrendNotFace.removeFirst();
-		}
 		
 		// Calculate CMD by summing the last n of these values
 		double motion_metric_i = (nonFaceRectangleCount - faceRectangleCount)*(nonFaceRectangleCount - faceRectangleCount)/(nonFaceRectangleCount + faceRectangleCount);
 		motion_metric_ratio_chart.add(motion_metric_i);
-		if (motion_metric_ratio_chart.size() >= length) {
-			motion_metric_ratio_chart.removeFirst();
-		}
 		
 	}
 	
-	// Draws a chart of how CDM changes over time
-	public void drawChartCMD(Canvas c, Paint p) {
-		if (!pass()) {
-			p.setColor(Color.RED);
-		} else {
-			p.setColor(Color.GREEN);
-		}
-		Iterator<Double> it1 = motion_metric_ratio_chart.iterator();
-		for (int i = 0; i < length; i++) {
-			if (!it1.hasNext())
-				break;
-			double value = it1.next()/500.0;//divide by arbitrarily large value
-			value = Math.min(500, value);
-			Rect r = new Rect(i*3, 600-(int)(value*100), i*3+3, 600);
-			c.drawRect(r, p);
-		}
-		c.drawText("Face motion: " + totalMotionTrendFace() + " / " + faceMotionMin, 0, 630, p);
-		c.drawText("CMD ratio: " + CMD() + " / " + maxCMD, 0, 660, p);
+	// arbitrarily chosen for now.
+	public final static int faceMotionMin = 500;
+	public final static double maxCMD = 4000;
+	
+	// running sums, nothing to add up here
+	public int totalMotionTrendFace() {
+		return (int) motionTrendFace.sum();
 	}
 	
-	// arbitrarily chosen for now.
-	private final static int faceMotionMin = 500;
-	private final static double maxCMD = 4000;
+	public double CMD() {
+		return motion_metric_ratio_chart.sum();
+	}
 	
-	private int totalMotionTrendFace() {
-		int totalMotionTrendFace  = 0;
-		for (Integer value : motionTrendFace) {
-			totalMotionTrendFace += value;
-		}
-		return totalMotionTrendFace;
+	// How CMD changed over the last frames, oldest first, for drawing
+	public int chartSize() {
+		return motion_metric_ratio_chart.size();
 	}
 	
-	private double CMD() {
-		double CMD = 0;
-		for (Double value : motion_metric_ratio_chart) {
-			CMD += value;
-		}
-		return CMD;
+	public double chartValue(int i) {
+		return motion_metric_ratio_chart.get(i);
 	}
 	
 	// A image of a face is likely a spoof, if either of the following is true:
 	// 	-The face has no motion
 	//  -The forground motion outside of the face is highly correlated with the face's forground motion (ie, a picture frame moves with the picture).
 	public boolean pass() {
-		if (motionTrendFace.size() < length - 1) 
+		if (!motionTrendFace.isFull()) 
 			return false;
 		
 		// sum motion_metric_ratio_chart and motionTrendFace
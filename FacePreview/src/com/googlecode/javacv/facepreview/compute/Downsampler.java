@@ -0,0 +1,113 @@
+package com.googlecode.javacv.facepreview.compute;
+
+import java.nio.ByteBuffer;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+// Shrinks the luma plane of a camera frame (the first width*height bytes of NV21) by an integer
+// factor. Each output row is built in a scratch array and written to the image with one bulk put,
+// and rows are spread over cores with Parallel.For when there is enough work to be worth it.
+public final class Downsampler {
+
+	public enum Mode {
+		// every f-th pixel of every f-th row, what the views always did. Cheap, but aliases.
+		POINT,
+		// the average of each f x f block
+		BOX
+	}
+
+	// source pixels a thread should get at least, below that waking up helpers costs more than it saves
+	private static final int GRAIN_PIXELS = 1 << 15;
+
+	private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	private Downsampler() {
+	}
+
+	public static void downsample(byte[] data, int width, int height, int f, Mode mode, IplImage image) {
+		downsample(data, width, height, f, mode, image.getByteBuffer(), image.width(), image.height(), image.widthStep());
+	}
+
+	/**
+	 * Writes the image shrunk by f into out (outWidth x outHeight, rows outStride bytes apart,
+	 * starting at index 0). outWidth and outHeight can't be more than width/f and height/f.
+	 */
+	public static void downsample(final byte[] data, final int width, int height, final int f, final Mode mode,
+			final ByteBuffer out, final int outWidth, int outHeight, final int outStride) {
+		if (f < 1 || outWidth > width / f || outHeight > height / f) {
+			throw new IllegalArgumentException("output of " + outWidth + "x" + outHeight + " doesn't fit " + width + "x" + height + " / " + f);
+		}
+		int rowPixels = mode == Mode.BOX ? f * f * outWidth : outWidth;
+		int grain = Math.max(1, GRAIN_PIXELS / Math.max(1, rowPixels));
+		Parallel.For(0, outHeight, grain, null, new Parallel.Range() {
+			public void run(int start, int end) {
+				Scratch s = scratch.get();
+				s.ensure(outWidth, f);
+				// our own position, other threads write other rows of out at the same time
+				ByteBuffer rows = out.duplicate();
+				for (int y = start; y < end; y++) {
+					if (mode == Mode.BOX) {
+						boxRow(data, width, f, y, outWidth, s);
+					} else {
+						pointRow(data, width, f, y, outWidth, s.row);
+					}
+					rows.position(y * outStride);
+					rows.put(s.row, 0, outWidth);
+				}
+			}
+		});
+	}
+
+	private static void pointRow(byte[] data, int width, int f, int y, int outWidth, byte[] row) {
+		int in = y * f * width;
+		for (int x = 0; x < outWidth; x++, in += f) {
+			row[x] = data[in];
+		}
+	}
+
+	private static void boxRow(byte[] data, int width, int f, int y, int outWidth, Scratch s) {
+		// add up the f source rows column by column first (a straight run over memory), then the
+		// f columns of each block
+		int[] columns = s.columns;
+		int used = outWidth * f;
+		int in = y * f * width;
+		for (int x = 0; x < used; x++) {
+			columns[x] = data[in + x] & 0xFF;
+		}
+		for (int dy = 1; dy < f; dy++) {
+			in += width;
+			for (int x = 0; x < used; x++) {
+				columns[x] += data[in + x] & 0xFF;
+			}
+		}
+		int area = f * f;
+		int half = area / 2;
+		byte[] row = s.row;
+		for (int x = 0, c = 0; x < outWidth; x++) {
+			int sum = 0;
+			for (int dx = 0; dx < f; dx++, c++) {
+				sum += columns[c];
+			}
+			row[x] = (byte) ((sum + half) / area);
+		}
+	}
+
+	private static final class Scratch {
+		byte[] row = new byte[0];
+		int[] columns = new int[0];
+
+		void ensure(int outWidth, int f) {
+			if (row.length < outWidth) {
+				row = new byte[outWidth];
+			}
+			if (columns.length < outWidth * f) {
+				columns = new int[outWidth * f];
+			}
+		}
+	}
+}
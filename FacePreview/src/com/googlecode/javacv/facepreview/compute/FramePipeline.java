@@ -0,0 +1,168 @@
+package com.googlecode.javacv.facepreview.compute;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A chain of stages, each running on its own thread, with a hand-off slot for one frame in front
+// of every stage. A new frame replaces one that is still waiting in a slot (latest frame wins), so
+// a slow stage never builds up a backlog, it just sees fewer frames. The pipeline keeps up with
+// its slowest stage instead of the sum of all of them.
+// Only one thread owns a frame at a time, so stages don't need locks for the frame itself.
+// Frames are meant to be reused: every frame that leaves the pipeline (finished, dropped, or
+// rejected by a stage) is handed to the Recycler.
+public class FramePipeline<T> {
+
+	public static interface Stage<T> {
+		// Returns false to stop the frame here, the later stages won't see it
+		public boolean process(T frame);
+	}
+
+	public static interface Recycler<T> {
+		// Called from any of the pipeline's threads
+		public void recycle(T frame);
+	}
+
+	private final String name;
+	private final Recycler<T> recycler;
+	private final List<Stage<T>> stages = new ArrayList<Stage<T>>();
+	private final List<Slot<T>> slots = new ArrayList<Slot<T>>();
+	private final List<Thread> workers = new ArrayList<Thread>();
+
+	private final AtomicLong submitted = new AtomicLong();
+	// replaced in a slot by a newer frame
+	private final AtomicLong dropped = new AtomicLong();
+	// made it through the last stage
+	private final AtomicLong completed = new AtomicLong();
+
+	public FramePipeline(String name, Recycler<T> recycler) {
+		this.name = name;
+		this.recycler = recycler;
+	}
+
+	// Stages run in the order they were added. Add them all before start().
+	public synchronized void addStage(Stage<T> stage) {
+		if (!workers.isEmpty()) {
+			throw new IllegalStateException("pipeline already started");
+		}
+		stages.add(stage);
+		slots.add(new Slot<T>());
+	}
+
+	public synchronized void start() {
+		if (!workers.isEmpty()) {
+			return;
+		}
+		for (int i = 0; i < stages.size(); i++) {
+			Slot<T> next = i + 1 < slots.size() ? slots.get(i + 1) : null;
+			Thread worker = new Thread(new Worker(stages.get(i), slots.get(i), next), name + "-stage" + i);
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+	}
+
+	// Hands a frame to the first stage, never blocks. The caller gives up the frame.
+	public void submit(T frame) {
+		submitted.incrementAndGet();
+		handOff(slots.get(0), frame);
+	}
+
+	// Stops accepting frames. Stages finish the frame they are on, everything else gets recycled.
+	public synchronized void shutdown() {
+		for (Slot<T> slot : slots) {
+			T waiting = slot.close();
+			if (waiting != null) {
+				recycler.recycle(waiting);
+			}
+		}
+	}
+
+	public long submitted() { return submitted.get(); }
+	public long dropped() { return dropped.get(); }
+	public long completed() { return completed.get(); }
+
+	private void handOff(Slot<T> slot, T frame) {
+		T replaced = slot.offer(frame);
+		if (replaced != null) {
+			dropped.incrementAndGet();
+			recycler.recycle(replaced);
+		}
+	}
+
+	private final class Worker implements Runnable {
+		final Stage<T> stage;
+		final Slot<T> input;
+		final Slot<T> output;
+
+		Worker(Stage<T> stage, Slot<T> input, Slot<T> output) {
+			this.stage = stage;
+			this.input = input;
+			this.output = output;
+		}
+
+		public void run() {
+			while (true) {
+				T frame = input.take();
+				if (frame == null) {
+					return;
+				}
+				boolean keep;
+				try {
+					keep = stage.process(frame);
+				} catch (RuntimeException e) {
+					// one bad frame shouldn't stop the camera
+					System.err.println(e.toString());
+					keep = false;
+				}
+				if (!keep) {
+					recycler.recycle(frame);
+				} else if (output == null) {
+					completed.incrementAndGet();
+					recycler.recycle(frame);
+				} else {
+					handOff(output, frame);
+				}
+			}
+		}
+	}
+
+	// Holds at most one frame
+	private static final class Slot<T> {
+		private T frame;
+		private boolean closed = false;
+
+		// Returns the frame that was waiting and got replaced, or this one if the slot is closed
+		synchronized T offer(T newFrame) {
+			if (closed) {
+				return newFrame;
+			}
+			T old = frame;
+			frame = newFrame;
+			notifyAll();
+			return old;
+		}
+
+		// Waits for a frame, null once the slot is closed
+		synchronized T take() {
+			while (frame == null && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// only shutdown() ends a worker
+				}
+			}
+			T taken = frame;
+			frame = null;
+			return taken;
+		}
+
+		synchronized T close() {
+			closed = true;
+			notifyAll();
+			T waiting = frame;
+			frame = null;
+			return waiting;
+		}
+	}
+}
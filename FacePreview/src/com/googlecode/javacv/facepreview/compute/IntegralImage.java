@@ -0,0 +1,87 @@
+package com.googlecode.javacv.facepreview.compute;
+
+import java.nio.ByteBuffer;
+
+// Summed-area table of a binary mask (any non-zero byte counts as 1), e.g. the foreground map from
+// background subtraction. After one pass over the mask, the number of set pixels in any rectangle
+// is four lookups.
+// The table is reused between frames as long as the size stays the same.
+public class IntegralImage {
+	private int width = 0;
+	private int height = 0;
+	// (width + 1) * (height + 1), sums[(y+1)*(width+1) + x+1] counts the pixels in [0,x] x [0,y]
+	private int[] sums = new int[0];
+
+	/**
+	 * Builds the table from a mask of width x height bytes whose rows are stride bytes apart,
+	 * starting at index 0 of mask.
+	 */
+	public void compute(ByteBuffer mask, int width, int height, int stride) {
+		this.width = width;
+		this.height = height;
+		int tableWidth = width + 1;
+		int size = tableWidth * (height + 1);
+		if (sums.length < size) {
+			sums = new int[size];
+		}
+		// first row and column stay 0
+		for (int x = 0; x < tableWidth; x++) {
+			sums[x] = 0;
+		}
+		for (int y = 0; y < height; y++) {
+			int in = y * stride;
+			int above = y * tableWidth;
+			int out = above + tableWidth;
+			sums[out] = 0;
+			int rowSum = 0;
+			for (int x = 0; x < width; x++) {
+				if (mask.get(in + x) != 0) {
+					rowSum++;
+				}
+				sums[out + x + 1] = sums[above + x + 1] + rowSum;
+			}
+		}
+	}
+
+	public int width() {
+		return width;
+	}
+
+	public int height() {
+		return height;
+	}
+
+	// set pixels in the whole mask
+	public int total() {
+		return sums[height * (width + 1) + width];
+	}
+
+	// Set pixels in the rectangle, clipped to the mask (0 if nothing is left of it)
+	public int count(int x, int y, int w, int h) {
+		int x0 = Math.max(0, x);
+		int y0 = Math.max(0, y);
+		int x1 = Math.min(width, x + w);
+		int y1 = Math.min(height, y + h);
+		if (x0 >= x1 || y0 >= y1) {
+			return 0;
+		}
+		int tableWidth = width + 1;
+		return sums[y1 * tableWidth + x1] - sums[y0 * tableWidth + x1] - sums[y1 * tableWidth + x0] + sums[y0 * tableWidth + x0];
+	}
+
+	// Set pixels in a band margin pixels wide around the rectangle, but not in it
+	public int ring(int x, int y, int w, int h, int margin) {
+		return count(x - margin, y - margin, w + 2 * margin, h + 2 * margin) - count(x, y, w, h);
+	}
+
+	// Set pixels in one quarter of the rectangle: 0 top left, 1 top right, 2 bottom left, 3 bottom right
+	public int quadrant(int x, int y, int w, int h, int quadrant) {
+		int left = w / 2;
+		int top = h / 2;
+		int qx = (quadrant & 1) == 0 ? x : x + left;
+		int qy = (quadrant & 2) == 0 ? y : y + top;
+		int qw = (quadrant & 1) == 0 ? left : w - left;
+		int qh = (quadrant & 2) == 0 ? top : h - top;
+		return count(qx, qy, qw, qh);
+	}
+}
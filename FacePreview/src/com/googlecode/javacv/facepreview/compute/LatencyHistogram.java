@@ -0,0 +1,134 @@
+package com.googlecode.javacv.facepreview.compute;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counts how long something took, in microseconds, in buckets that get wider as the times get
+// longer: every power of two is split into SUB_BUCKETS, so a percentile is off by at most 1/16th.
+// record() is an atomic increment and can be called from any number of threads without locking;
+// it never allocates, so it can sit on the per-frame path. snapshot() copies the counts for reading.
+public final class LatencyHistogram {
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	// a bit over a minute, longer times go in the last bucket
+	private static final int MAX_MAGNITUDE = 26;
+	private static final int BUCKETS = (MAX_MAGNITUDE - SUB_BITS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong totalMicros = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		counts.incrementAndGet(bucket(micros));
+		totalMicros.addAndGet(micros);
+		long max;
+		while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+			// someone else raised it meanwhile, look again
+		}
+	}
+
+	// Records the time since start (from System.nanoTime()) and returns now, for timing stages one after the other
+	public long recordSince(long start) {
+		long now = System.nanoTime();
+		record(now - start);
+		return now;
+	}
+
+	// Not atomic with respect to record(): a snapshot taken while others record may be off by the
+	// few values that were being recorded at that moment.
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+			count += copy[i];
+		}
+		return new Snapshot(copy, count, totalMicros.get(), maxMicros.get());
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		totalMicros.set(0);
+		maxMicros.set(0);
+	}
+
+	static int bucket(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+		if (magnitude > MAX_MAGNITUDE) {
+			return BUCKETS - 1;
+		}
+		int sub = (int) (micros >>> (magnitude - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return ((magnitude - SUB_BITS + 1) << SUB_BITS) | sub;
+	}
+
+	// smallest value that goes in bucket
+	static long lowest(int bucket) {
+		int range = bucket >>> SUB_BITS;
+		int sub = bucket & (SUB_BUCKETS - 1);
+		if (range == 0) {
+			return sub;
+		}
+		int magnitude = range + SUB_BITS - 1;
+		return (1L << magnitude) | ((long) sub << (magnitude - SUB_BITS));
+	}
+
+	static long width(int bucket) {
+		int range = bucket >>> SUB_BITS;
+		return range == 0 ? 1 : 1L << (range - 1);
+	}
+
+	public static final class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long totalMicros;
+		private final long maxMicros;
+
+		private Snapshot(long[] counts, long count, long totalMicros, long maxMicros) {
+			this.counts = counts;
+			this.count = count;
+			this.totalMicros = totalMicros;
+			this.maxMicros = maxMicros;
+		}
+
+		public long count() {
+			return count;
+		}
+
+		public double meanMillis() {
+			return count == 0 ? 0 : totalMicros / 1000.0 / count;
+		}
+
+		public double maxMillis() {
+			return maxMicros / 1000.0;
+		}
+
+		// p between 0 and 1; the middle of the bucket the value is in, 0 if nothing was recorded
+		public double percentileMillis(double p) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(p * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					double micros = lowest(i) + (width(i) - 1) / 2.0;
+					return Math.min(micros, maxMicros) / 1000.0;
+				}
+			}
+			return maxMillis();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("n=%d mean=%.2fms p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms", count, meanMillis(),
+					percentileMillis(0.50), percentileMillis(0.95), percentileMillis(0.99), maxMillis());
+		}
+	}
+}
@@ -1,47 +1,189 @@
 package com.googlecode.javacv.facepreview.compute;
 
-import java.util.Collection;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
-// from http://stackoverflow.com/questions/4010185/parallel-for-for-java
+// Parallel for over index ranges.
+// The calling thread works too, and every thread keeps claiming chunks of the range until nothing
+// is left, so a thread that gets a cheap chunk just claims the next one. Chunks start large and
+// shrink as the range runs out (remaining / (2 * threads), but at least grain), which keeps the
+// number of claims small and still balances the end of the loop.
+// ForkJoinPool would do the same by work stealing, but it needs Android 5 and we support 3.0.
 public class Parallel {
     private static final int NUM_CORES = Runtime.getRuntime().availableProcessors();
+    // the caller is the last worker
+    private static final int HELPERS = NUM_CORES - 1;
 
-    private static final ExecutorService forPool = Executors.newFixedThreadPool(NUM_CORES * 2, new NamedThreadFactory("Parallel.For"));
+    private static final Executor forPool = Executors.newFixedThreadPool(Math.max(1, HELPERS), new NamedThreadFactory("Parallel.For"));
 
-    public static <T> void For(final Iterable<T> elements, final Operation<T> operation) {
-        try {
-            // invokeAll blocks for us until all submitted tasks in the call complete
-            forPool.invokeAll(createCallables(elements, operation));
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    // Loop body over [start, end). Gets called with many small ranges, from several threads at once.
+    public static interface Range {
+        public void run(int start, int end);
+    }
+
+    // Lets another thread stop a running For(). Chunks already started still finish.
+    public static class Cancellation {
+        private volatile boolean cancelled = false;
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
         }
     }
 
-    public static <T> Collection<Callable<Void>> createCallables(final Iterable<T> elements, final Operation<T> operation) {
-        List<Callable<Void>> callables = new LinkedList<Callable<Void>>();
-        for (final T elem : elements) {
-            callables.add(new Callable<Void>() {
-                @Override
-                public Void call() {
-                    operation.perform(elem);
-                    return null;
-                }
-            });
+    public static void For(int start, int end, Range body) {
+        For(start, end, 1, null, body);
+    }
+
+    /**
+     * Runs body over [start, end) and returns when all of it has run. grain is the smallest chunk
+     * worth handing to a thread (e.g. one image row, or a few templates).
+     * If body throws, no new chunks are started and the exception is rethrown here once the running
+     * ones have finished. If cancellation is cancelled first, this throws CancellationException.
+     */
+    public static void For(int start, int end, int grain, Cancellation cancellation, Range body) {
+        if (start >= end) {
+            return;
+        }
+        Loop loop = new Loop(start, end, Math.max(1, grain), cancellation, body);
+        int chunks = (end - start + loop.grain - 1) / loop.grain;
+        int helpers = Math.min(HELPERS, chunks - 1);
+        for (int i = 0; i < helpers; i++) {
+            forPool.execute(loop);
         }
+        loop.work();
+        loop.awaitHelpers();
+
+        Throwable failure = loop.failure;
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (cancellation != null && cancellation.isCancelled() && !loop.completed()) {
+            throw new CancellationException();
+        }
+    }
 
-        return callables;
+    // The old element-wise version, kept for callers that have a collection
+    public static <T> void For(final Iterable<T> elements, final Operation<T> operation) {
+        final List<T> list = new ArrayList<T>();
+        for (T element : elements) {
+            list.add(element);
+        }
+        For(0, list.size(), new Range() {
+            public void run(int start, int end) {
+                for (int i = start; i < end; i++) {
+                    operation.perform(list.get(i));
+                }
+            }
+        });
     }
 
     public static interface Operation<T> {
         public void perform(T pParameter);
     }
+
+    private static final class Loop implements Runnable {
+        final int end;
+        final int grain;
+        final int threads;
+        final Cancellation cancellation;
+        final Range body;
+        // start of the unclaimed part of the range
+        final AtomicInteger next;
+        // helpers that are inside work()
+        final AtomicInteger running = new AtomicInteger();
+        // index count of finished chunks
+        final AtomicInteger done = new AtomicInteger();
+        final int total;
+        volatile Throwable failure;
+
+        Loop(int start, int end, int grain, Cancellation cancellation, Range body) {
+            this.next = new AtomicInteger(start);
+            this.end = end;
+            this.total = end - start;
+            this.grain = grain;
+            this.threads = HELPERS + 1;
+            this.cancellation = cancellation;
+            this.body = body;
+        }
+
+        // helper threads
+        public void run() {
+            running.incrementAndGet();
+            try {
+                work();
+            } finally {
+                if (running.decrementAndGet() == 0) {
+                    synchronized (this) {
+                        notifyAll();
+                    }
+                }
+            }
+        }
+
+        void work() {
+            while (true) {
+                if (cancellation != null && cancellation.isCancelled()) {
+                    stop();
+                    return;
+                }
+                int start = next.get();
+                if (start >= end) {
+                    return;
+                }
+                int size = Math.max(grain, (end - start) / (2 * threads));
+                int stop = (int) Math.min((long) start + size, end);
+                if (!next.compareAndSet(start, stop)) {
+                    continue;
+                }
+                try {
+                    body.run(start, stop);
+                    done.addAndGet(stop - start);
+                } catch (Throwable t) {
+                    if (failure == null) {
+                        failure = t;
+                    }
+                    stop();
+                    return;
+                }
+            }
+        }
+
+        // nobody claims anything after this
+        void stop() {
+            next.set(end);
+        }
+
+        boolean completed() {
+            return done.get() == total;
+        }
+
+        // Helpers that haven't started yet will find nothing to do, so only the running ones count
+        synchronized void awaitHelpers() {
+            boolean interrupted = false;
+            while (running.get() > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // the helpers are using our data, we can't leave before they do
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 }
 
 // http://grepcode.com/file_/repo1.maven.org/maven2/org.apache.james/james-server-util/3.0-beta4/org/apache/james/util/concurrent/NamedThreadFactory.java/?v=source
@@ -70,12 +212,14 @@ class NamedThreadFactory implements ThreadFactory {
         Thread t = new Thread(r);
         t.setName(name + "-" + count.incrementAndGet());
         t.setPriority(priority);
+        // don't keep the process alive just for idle workers
+        t.setDaemon(true);
         return t;
     }
 
     /**
      * Return the name
-     * 
+     *
      * @return name
      */
     public String getName() {
@@ -87,4 +231,4 @@ class NamedThreadFactory implements ThreadFactory {
         return "NamedTreadFactory: " + getName();
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,81 @@
+package com.googlecode.javacv.facepreview.compute;
+
+// How long every stage of getting from a camera frame to a recognized face takes, see
+// LatencyHistogram, and how many frames a second make it through. One of these is shared by
+// FaceViewWithAnalysis and its FacePredictor; recording is lock-free from any thread.
+public final class PipelineMetrics {
+
+	public enum Stage {
+		SUBSAMPLE,   // camera thread: shrinking the preview frame (and cutting out the face)
+		BACKGROUND,  // background subtraction
+		DETECT,      // face detection / tracking
+		CONSISTENCY, // BackgroundConsistencyAnalysis
+		NORMALIZE,   // the face to 400x400 equalized; includes finding it when identify() has to
+		PREDICT      // LBPH histogram and matching
+	}
+
+	private final LatencyHistogram[] stages = new LatencyHistogram[Stage.values().length];
+
+	// frames per second, smoothed; only frame() writes these
+	private static final double SMOOTHING = 0.1;
+	private long lastFrame;
+	private volatile double frameInterval = Double.NaN;
+
+	public PipelineMetrics() {
+		for (int i = 0; i < stages.length; i++) {
+			stages[i] = new LatencyHistogram();
+		}
+	}
+
+	public LatencyHistogram stage(Stage stage) {
+		return stages[stage.ordinal()];
+	}
+
+	// Records the time since start (System.nanoTime()) for stage, returns now
+	public long record(Stage stage, long start) {
+		return stages[stage.ordinal()].recordSince(start);
+	}
+
+	// Once per frame, from one thread only (the camera callback)
+	public void frame() {
+		long now = System.nanoTime();
+		if (lastFrame != 0) {
+			double interval = now - lastFrame;
+			double smoothed = frameInterval;
+			frameInterval = Double.isNaN(smoothed) ? interval : smoothed + SMOOTHING * (interval - smoothed);
+		}
+		lastFrame = now;
+	}
+
+	public double framesPerSecond() {
+		double interval = frameInterval;
+		return Double.isNaN(interval) ? 0 : 1e9 / interval;
+	}
+
+	public LatencyHistogram.Snapshot[] snapshot() {
+		LatencyHistogram.Snapshot[] snapshots = new LatencyHistogram.Snapshot[stages.length];
+		for (int i = 0; i < stages.length; i++) {
+			snapshots[i] = stages[i].snapshot();
+		}
+		return snapshots;
+	}
+
+	public void reset() {
+		for (LatencyHistogram stage : stages) {
+			stage.reset();
+		}
+	}
+
+	// A table of every stage, for logs and test output
+	public String export() {
+		StringBuilder out = new StringBuilder(String.format("%.1f fps%n", framesPerSecond()));
+		out.append(String.format("%-12s %8s %8s %8s %8s %8s %8s%n", "stage", "n", "mean ms", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+		LatencyHistogram.Snapshot[] snapshots = snapshot();
+		for (Stage stage : Stage.values()) {
+			LatencyHistogram.Snapshot s = snapshots[stage.ordinal()];
+			out.append(String.format("%-12s %8d %8.2f %8.2f %8.2f %8.2f %8.2f%n", stage.name().toLowerCase(), s.count(), s.meanMillis(),
+					s.percentileMillis(0.50), s.percentileMillis(0.95), s.percentileMillis(0.99), s.maxMillis()));
+		}
+		return out.toString();
+	}
+}
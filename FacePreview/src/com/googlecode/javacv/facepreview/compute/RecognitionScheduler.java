@@ -0,0 +1,129 @@
+package com.googlecode.javacv.facepreview.compute;
+
+// Decides when the next frame gets recognized. A recognition may start as soon as a frame with a
+// face comes in, as long as none is in flight; after one finishes, the next waits just long enough
+// that recognition keeps to its share of one CPU (cpuBudget), going by how long recognitions have
+// been taking. There is only ever one request: claim() hands out a ticket for the frame, begin()
+// turns it into a running recognition, and a ticket that is cancelled, replaced or too old to
+// begin is stale and frees the way for the next frame.
+// All times are System.nanoTime(), passed in so the tests can make time up.
+public class RecognitionScheduler {
+	// how much of the measured latency goes into the smoothed one
+	private static final double SMOOTHING = 0.25;
+
+	private final double cpuBudget;
+	private final long minInterval;
+	private final long maxInterval;
+	private final long maxAge;
+
+	// the ticket handed out last, 0 for none waiting
+	private long pending;
+	private long pendingSince;
+	private long nextTicket = 1;
+	private boolean running;
+	private long runningSince;
+	// only means something once a recognition has finished, nanoTime() may well be negative
+	private long notBefore;
+	private double latency = Double.NaN;
+
+	private long stale;
+	private long completed;
+
+	// cpuBudget: the share of one CPU recognition may use, between 0 and 1. Gaps between recognitions
+	// stay between minInterval and maxInterval. A ticket older than maxAge is dropped in begin().
+	public RecognitionScheduler(double cpuBudget, long minInterval, long maxInterval, long maxAge) {
+		if (cpuBudget <= 0 || cpuBudget > 1) {
+			throw new IllegalArgumentException("cpuBudget " + cpuBudget);
+		}
+		this.cpuBudget = cpuBudget;
+		this.minInterval = minInterval;
+		this.maxInterval = Math.max(minInterval, maxInterval);
+		this.maxAge = maxAge;
+	}
+
+	// For a frame that could be recognized: a ticket to pass to begin() if it's time, 0 if not.
+	// A ticket that was never begun and is past maxAge is given up for the new one.
+	public synchronized long claim(long now) {
+		if (running || (completed > 0 && now - notBefore < 0)) {
+			return 0;
+		}
+		if (pending != 0) {
+			if (now - pendingSince <= maxAge) {
+				return 0;
+			}
+			stale++;
+		}
+		pending = nextTicket++;
+		pendingSince = now;
+		return pending;
+	}
+
+	// Just before recognizing the frame the ticket came with. False if the ticket is stale, then
+	// the frame should be skipped.
+	public synchronized boolean begin(long ticket, long now) {
+		if (ticket == 0 || ticket != pending) {
+			return false;
+		}
+		pending = 0;
+		if (now - pendingSince > maxAge) {
+			stale++;
+			return false;
+		}
+		running = true;
+		runningSince = now;
+		return true;
+	}
+
+	// The frame won't be recognized after all (dropped, or the face moved), the next one may try
+	// straight away. Does nothing for a ticket that is already running or stale.
+	public synchronized void cancel(long ticket) {
+		if (ticket != 0 && ticket == pending) {
+			pending = 0;
+			stale++;
+		}
+	}
+
+	// After a begin() that returned true
+	public synchronized void finish(long now) {
+		if (!running) {
+			return;
+		}
+		running = false;
+		completed++;
+		double took = now - runningSince;
+		latency = Double.isNaN(latency) ? took : latency + SMOOTHING * (took - latency);
+		notBefore = now + interval();
+	}
+
+	// Time to wait after a recognition: at cpuBudget 0.5 as long as one takes, at 0.25 three times as long.
+	public synchronized long interval() {
+		if (Double.isNaN(latency)) {
+			return minInterval;
+		}
+		long gap = (long) (latency * (1 - cpuBudget) / cpuBudget);
+		return Math.min(maxInterval, Math.max(minInterval, gap));
+	}
+
+	public synchronized double latencyMillis() {
+		return Double.isNaN(latency) ? 0 : latency / 1e6;
+	}
+
+	public synchronized boolean inFlight() {
+		return running;
+	}
+
+	// tickets that were given up without being recognized
+	public synchronized long stale() {
+		return stale;
+	}
+
+	public synchronized long completed() {
+		return completed;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("recognitions=%d stale=%d latency=%.1fms interval=%.1fms", completed, stale,
+				latencyMillis(), interval() / 1e6);
+	}
+}
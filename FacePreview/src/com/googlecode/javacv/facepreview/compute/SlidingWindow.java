@@ -0,0 +1,72 @@
+package com.googlecode.javacv.facepreview.compute;
+
+// The last `capacity` values of a series and their sum, in a ring of doubles.
+// add() and sum() are O(1) and don't allocate. The running sum is recomputed from the values
+// every time the ring wraps around, so rounding errors can't pile up over a long session.
+public class SlidingWindow {
+	private final double[] values;
+	// index of the oldest value
+	private int start = 0;
+	private int size = 0;
+	private double sum = 0;
+	private int addsSinceResum = 0;
+
+	public SlidingWindow(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be at least 1");
+		}
+		values = new double[capacity];
+	}
+
+	public void add(double value) {
+		int capacity = values.length;
+		if (size < capacity) {
+			values[(start + size) % capacity] = value;
+			size++;
+			sum += value;
+		} else {
+			sum += value - values[start];
+			values[start] = value;
+			start = (start + 1) % capacity;
+		}
+		if (++addsSinceResum == capacity) {
+			addsSinceResum = 0;
+			double exact = 0;
+			for (int i = 0; i < size; i++) {
+				exact += values[(start + i) % capacity];
+			}
+			sum = exact;
+		}
+	}
+
+	// i = 0 is the oldest value
+	public double get(int i) {
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException(i + " of " + size);
+		}
+		return values[(start + i) % values.length];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return values.length;
+	}
+
+	public boolean isFull() {
+		return size == values.length;
+	}
+
+	public double sum() {
+		return sum;
+	}
+
+	public void clear() {
+		start = 0;
+		size = 0;
+		sum = 0;
+		addsSinceResum = 0;
+	}
+}
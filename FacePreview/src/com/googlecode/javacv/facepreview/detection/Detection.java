@@ -0,0 +1,24 @@
+package com.googlecode.javacv.facepreview.detection;
+
+// A detected object in image coordinates. neighbors is how many raw detections were merged into
+// it, more means more certain.
+public final class Detection {
+	public final int x;
+	public final int y;
+	public final int width;
+	public final int height;
+	public final int neighbors;
+
+	public Detection(int x, int y, int width, int height, int neighbors) {
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+		this.neighbors = neighbors;
+	}
+
+	@Override
+	public String toString() {
+		return "(" + x + ", " + y + ", " + width + "x" + height + ", " + neighbors + " neighbors)";
+	}
+}
@@ -0,0 +1,262 @@
+package com.googlecode.javacv.facepreview.detection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+// A boosted cascade of LBP features, read from the XML that opencv_traincascade writes
+// (data/lbpcascade_frontalface.xml):
+//   <cascade> <featureType>LBP</featureType> <width>, <height>
+//     <stages> per stage: <stageThreshold>, <weakClassifiers> of
+//       <internalNodes>0 -1 featureIndex subset[8]</internalNodes> <leafValues>left right</leafValues>
+//     <features> per feature: <rect>x y width height</rect>
+// Only stumps (maxDepth 1) are supported, which is what the LBP cascades that ship with opencv use.
+// Evaluation follows opencv 2.4's CascadeClassifier, see evaluate().
+public final class LbpCascade {
+	public static final String RESOURCE = "/com/googlecode/javacv/facepreview/data/lbpcascade_frontalface.xml";
+
+	// opencv subtracts this from every stage threshold when loading
+	private static final float THRESHOLD_EPS = 1e-5f;
+	// 256 LBP codes, one bit each
+	static final int SUBSET_SIZE = 8;
+
+	final int width;
+	final int height;
+	final float[] stageThresholds;
+	// weak classifiers of stage s are [stageEnds[s-1], stageEnds[s])
+	final int[] stageEnds;
+	final int[] weakFeatures;
+	final int[] weakSubsets;
+	// left, right per weak classifier
+	final float[] leaves;
+	// x, y, width, height of the top left block of each feature's 3x3 grid
+	final int[] features;
+
+	private LbpCascade(int width, int height, float[] stageThresholds, int[] stageEnds, int[] weakFeatures,
+			int[] weakSubsets, float[] leaves, int[] features) {
+		this.width = width;
+		this.height = height;
+		this.stageThresholds = stageThresholds;
+		this.stageEnds = stageEnds;
+		this.weakFeatures = weakFeatures;
+		this.weakSubsets = weakSubsets;
+		this.leaves = leaves;
+		this.features = features;
+	}
+
+	public static LbpCascade load(InputStream xml) throws IOException {
+		Handler handler = new Handler();
+		try {
+			SAXParserFactory.newInstance().newSAXParser().parse(xml, handler);
+		} catch (SAXException e) {
+			throw new IOException("Malformed cascade: " + e.getMessage());
+		} catch (ParserConfigurationException e) {
+			throw new IOException(e.toString());
+		}
+		return handler.build();
+	}
+
+	// Loads the frontal face cascade from our Java resources
+	public static LbpCascade frontalFace() throws IOException {
+		InputStream in = LbpCascade.class.getResourceAsStream(RESOURCE);
+		if (in == null) {
+			throw new IOException("Could not find " + RESOURCE);
+		}
+		try {
+			return load(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	// size of the window the cascade was trained on
+	public int width() { return width; }
+	public int height() { return height; }
+	public int stages() { return stageThresholds.length; }
+	public int featureCount() { return features.length / 4; }
+
+	/**
+	 * Runs the cascade on the window whose top left corner is at index origin of an integral image
+	 * (see LbpDetector.integral). offsets holds, for every feature, the 16 grid corner offsets
+	 * from origin (see offsets()). Returns the number of stages passed, stages() if all.
+	 */
+	int evaluate(int[] integral, int origin, int[] offsets) {
+		int weak = 0;
+		for (int stage = 0; stage < stageThresholds.length; stage++) {
+			int end = stageEnds[stage];
+			float sum = 0;
+			for (; weak < end; weak++) {
+				int code = lbp(integral, origin, offsets, weakFeatures[weak] * 16);
+				// the subset says which codes go left
+				int bits = weakSubsets[weak * SUBSET_SIZE + (code >> 5)];
+				sum += leaves[2 * weak + ((bits & (1 << (code & 31))) != 0 ? 0 : 1)];
+			}
+			if (sum < stageThresholds[stage]) {
+				return stage;
+			}
+		}
+		return stageThresholds.length;
+	}
+
+	// Multi-block LBP: each of the 8 outer blocks of the 3x3 grid against the center block,
+	// clockwise from the top left, in opencv's bit order
+	private static int lbp(int[] sum, int origin, int[] offsets, int f) {
+		int p0 = origin + offsets[f], p1 = origin + offsets[f + 1], p2 = origin + offsets[f + 2], p3 = origin + offsets[f + 3];
+		int p4 = origin + offsets[f + 4], p5 = origin + offsets[f + 5], p6 = origin + offsets[f + 6], p7 = origin + offsets[f + 7];
+		int p8 = origin + offsets[f + 8], p9 = origin + offsets[f + 9], p10 = origin + offsets[f + 10], p11 = origin + offsets[f + 11];
+		int p12 = origin + offsets[f + 12], p13 = origin + offsets[f + 13], p14 = origin + offsets[f + 14], p15 = origin + offsets[f + 15];
+		int center = sum[p5] - sum[p6] - sum[p9] + sum[p10];
+		return (sum[p0] - sum[p1] - sum[p4] + sum[p5] >= center ? 128 : 0)
+				| (sum[p1] - sum[p2] - sum[p5] + sum[p6] >= center ? 64 : 0)
+				| (sum[p2] - sum[p3] - sum[p6] + sum[p7] >= center ? 32 : 0)
+				| (sum[p6] - sum[p7] - sum[p10] + sum[p11] >= center ? 16 : 0)
+				| (sum[p10] - sum[p11] - sum[p14] + sum[p15] >= center ? 8 : 0)
+				| (sum[p9] - sum[p10] - sum[p13] + sum[p14] >= center ? 4 : 0)
+				| (sum[p8] - sum[p9] - sum[p12] + sum[p13] >= center ? 2 : 0)
+				| (sum[p4] - sum[p5] - sum[p8] + sum[p9] >= center ? 1 : 0);
+	}
+
+	/**
+	 * The corners of every feature's 4x4 grid of points as offsets into an integral image whose
+	 * rows are integralWidth ints apart.
+	 */
+	int[] offsets(int integralWidth) {
+		int count = featureCount();
+		int[] offsets = new int[count * 16];
+		for (int f = 0; f < count; f++) {
+			int x = features[4 * f], y = features[4 * f + 1], w = features[4 * f + 2], h = features[4 * f + 3];
+			for (int i = 0; i < 16; i++) {
+				offsets[16 * f + i] = (y + (i / 4) * h) * integralWidth + x + (i % 4) * w;
+			}
+		}
+		return offsets;
+	}
+
+	private static final class Handler extends DefaultHandler {
+		private final StringBuilder text = new StringBuilder();
+		private final List<String> path = new ArrayList<String>();
+
+		private String featureType;
+		private int width = -1;
+		private int height = -1;
+		private final List<Float> stageThresholds = new ArrayList<Float>();
+		private final List<Integer> stageEnds = new ArrayList<Integer>();
+		private final List<int[]> nodes = new ArrayList<int[]>();
+		private final List<float[]> leaves = new ArrayList<float[]>();
+		private final List<int[]> features = new ArrayList<int[]>();
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			path.add(qName);
+			text.setLength(0);
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			text.append(ch, start, length);
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			String parent = path.size() >= 2 ? path.get(path.size() - 2) : "";
+			if (parent.equals("cascade")) {
+				if (qName.equals("featureType")) {
+					featureType = text.toString().trim();
+				} else if (qName.equals("width")) {
+					width = ints(1)[0];
+				} else if (qName.equals("height")) {
+					height = ints(1)[0];
+				}
+			} else if (qName.equals("stageThreshold")) {
+				stageThresholds.add(Float.parseFloat(text.toString().trim()) - THRESHOLD_EPS);
+			} else if (qName.equals("internalNodes")) {
+				int[] node = ints(3 + SUBSET_SIZE);
+				if (node[0] != 0 || node[1] != -1) {
+					throw new SAXException("Only stumps are supported (maxDepth 1)");
+				}
+				nodes.add(node);
+			} else if (qName.equals("leafValues")) {
+				String[] tokens = tokens();
+				if (tokens.length != 2) {
+					throw new SAXException("Only stumps are supported (maxDepth 1)");
+				}
+				leaves.add(new float[] { Float.parseFloat(tokens[0]), Float.parseFloat(tokens[1]) });
+			} else if (qName.equals("weakClassifiers")) {
+				stageEnds.add(nodes.size());
+			} else if (qName.equals("rect")) {
+				features.add(ints(4));
+			}
+			path.remove(path.size() - 1);
+			text.setLength(0);
+		}
+
+		private String[] tokens() {
+			String trimmed = text.toString().trim();
+			return trimmed.length() == 0 ? new String[0] : trimmed.split("\\s+");
+		}
+
+		private int[] ints(int count) throws SAXException {
+			String[] tokens = tokens();
+			if (tokens.length != count) {
+				throw new SAXException("Expected " + count + " numbers, got " + tokens.length);
+			}
+			int[] values = new int[count];
+			try {
+				for (int i = 0; i < count; i++) {
+					values[i] = Integer.parseInt(tokens[i]);
+				}
+			} catch (NumberFormatException e) {
+				throw new SAXException(e);
+			}
+			return values;
+		}
+
+		LbpCascade build() throws IOException {
+			if (!"LBP".equals(featureType)) {
+				throw new IOException("Not an LBP cascade: " + featureType);
+			}
+			if (width <= 0 || height <= 0 || stageThresholds.isEmpty() || stageThresholds.size() != stageEnds.size()
+					|| nodes.size() != leaves.size()) {
+				throw new IOException("Incomplete cascade");
+			}
+			int weakCount = nodes.size();
+			int[] weakFeatures = new int[weakCount];
+			int[] weakSubsets = new int[weakCount * SUBSET_SIZE];
+			float[] leafValues = new float[weakCount * 2];
+			for (int i = 0; i < weakCount; i++) {
+				int[] node = nodes.get(i);
+				weakFeatures[i] = node[2];
+				if (node[2] < 0 || node[2] >= features.size()) {
+					throw new IOException("Feature " + node[2] + " doesn't exist");
+				}
+				System.arraycopy(node, 3, weakSubsets, i * SUBSET_SIZE, SUBSET_SIZE);
+				leafValues[2 * i] = leaves.get(i)[0];
+				leafValues[2 * i + 1] = leaves.get(i)[1];
+			}
+			float[] thresholds = new float[stageThresholds.size()];
+			int[] ends = new int[stageEnds.size()];
+			for (int i = 0; i < thresholds.length; i++) {
+				thresholds[i] = stageThresholds.get(i);
+				ends[i] = stageEnds.get(i);
+			}
+			int[] rects = new int[features.size() * 4];
+			for (int i = 0; i < features.size(); i++) {
+				int[] r = features.get(i);
+				// the whole 3x3 grid has to fit in the window
+				if (r[0] < 0 || r[1] < 0 || r[0] + 3 * r[2] > width || r[1] + 3 * r[3] > height) {
+					throw new IOException("Feature " + i + " is outside the window");
+				}
+				System.arraycopy(r, 0, rects, 4 * i, 4);
+			}
+			return new LbpCascade(width, height, thresholds, ends, weakFeatures, weakSubsets, leafValues, rects);
+		}
+	}
+}
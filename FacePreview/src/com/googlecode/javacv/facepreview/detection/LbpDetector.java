@@ -0,0 +1,349 @@
+package com.googlecode.javacv.facepreview.detection;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.googlecode.javacv.facepreview.compute.Parallel;
+
+// Multi-scale sliding window detection with an LbpCascade, in plain Java, so it runs (and can be
+// profiled and tested) on any JVM. Does what opencv 2.4's CascadeClassifier::detectMultiScale does:
+// the image is shrunk by scaleFactor again and again, at every scale the trained window slides
+// over it (in steps of 2 pixels while the image is at least half size, 1 after that), and the
+// hits are grouped like groupRectangles() does. Scales are independent and run in parallel.
+// Most windows are rejected by the first stage or two, which only looks at a handful of features.
+public class LbpDetector {
+	public static final double DEFAULT_SCALE_FACTOR = 1.1;
+	public static final int DEFAULT_MIN_NEIGHBORS = 3;
+	// how close two hits have to be to count as the same object, relative to their size
+	private static final double GROUP_EPS = 0.2;
+	// opencv's fixed point resize: 11 bits per coefficient
+	private static final int RESIZE_BITS = 11;
+	private static final int RESIZE_ONE = 1 << RESIZE_BITS;
+
+	private final LbpCascade cascade;
+	private final double scaleFactor;
+	private final int minNeighbors;
+
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	public LbpDetector(LbpCascade cascade) {
+		this(cascade, DEFAULT_SCALE_FACTOR, DEFAULT_MIN_NEIGHBORS);
+	}
+
+	public LbpDetector(LbpCascade cascade, double scaleFactor, int minNeighbors) {
+		if (scaleFactor <= 1) {
+			throw new IllegalArgumentException("scaleFactor must be more than 1");
+		}
+		this.cascade = cascade;
+		this.scaleFactor = scaleFactor;
+		this.minNeighbors = minNeighbors;
+	}
+
+	public List<Detection> detect(ByteBuffer image, int width, int height, int stride, int minSize, int maxSize) {
+		byte[] pixels = new byte[width * height];
+		for (int y = 0; y < height; y++) {
+			ByteBuffer row = image.duplicate();
+			row.position(y * stride);
+			row.get(pixels, y * width, width);
+		}
+		return detect(pixels, 0, width, height, width, minSize, maxSize);
+	}
+
+	/**
+	 * Objects in the 8 bit gray image, biggest first. Only objects whose size is between minSize
+	 * and maxSize (in pixels, 0 for no limit) are looked for, which also saves the time of the
+	 * scales outside that range.
+	 */
+	public List<Detection> detect(final byte[] image, final int offset, final int width, final int height, final int stride,
+			int minSize, int maxSize) {
+		// the scales to look at, from the full image down
+		final List<double[]> scales = new ArrayList<double[]>();
+		for (double factor = 1; ; factor *= scaleFactor) {
+			int windowWidth = (int) Math.round(cascade.width * factor);
+			int windowHeight = (int) Math.round(cascade.height * factor);
+			int scaledWidth = (int) Math.round(width / factor);
+			int scaledHeight = (int) Math.round(height / factor);
+			if (scaledWidth < cascade.width || scaledHeight < cascade.height) {
+				break;
+			}
+			if (maxSize > 0 && (windowWidth > maxSize || windowHeight > maxSize)) {
+				break;
+			}
+			if (windowWidth < minSize || windowHeight < minSize) {
+				continue;
+			}
+			scales.add(new double[] { factor, scaledWidth, scaledHeight, windowWidth, windowHeight });
+		}
+
+		// hits[scale] = x, y, width, height, ...
+		final int[][] hits = new int[scales.size()][];
+		Parallel.For(0, scales.size(), new Parallel.Range() {
+			public void run(int start, int end) {
+				for (int i = start; i < end; i++) {
+					hits[i] = detectAtScale(image, offset, width, height, stride, scales.get(i));
+				}
+			}
+		});
+
+		List<int[]> candidates = new ArrayList<int[]>();
+		for (int[] scaleHits : hits) {
+			for (int i = 0; i < scaleHits.length; i += 4) {
+				candidates.add(new int[] { scaleHits[i], scaleHits[i + 1], scaleHits[i + 2], scaleHits[i + 3] });
+			}
+		}
+		List<Detection> detections = group(candidates, minNeighbors, GROUP_EPS);
+		Collections.sort(detections, new Comparator<Detection>() {
+			public int compare(Detection a, Detection b) {
+				int areaA = a.width * a.height, areaB = b.width * b.height;
+				if (areaA != areaB) {
+					return areaA > areaB ? -1 : 1;
+				}
+				return a.y != b.y ? a.y - b.y : a.x - b.x;
+			}
+		});
+		return detections;
+	}
+
+	private int[] detectAtScale(byte[] image, int offset, int width, int height, int stride, double[] scale) {
+		double factor = scale[0];
+		int scaledWidth = (int) scale[1];
+		int scaledHeight = (int) scale[2];
+		int windowWidth = (int) scale[3];
+		int windowHeight = (int) scale[4];
+
+		Scratch s = scratch.get();
+		s.ensure(scaledWidth, scaledHeight);
+		resize(image, offset, width, height, stride, s.scaled, scaledWidth, scaledHeight, s);
+		integral(s.scaled, scaledWidth, scaledHeight, s.integral);
+		int integralWidth = scaledWidth + 1;
+		int[] offsets = cascade.offsets(integralWidth);
+
+		int[] found = new int[64];
+		int count = 0;
+		int stages = cascade.stages();
+		int step = factor > 2 ? 1 : 2;
+		for (int y = 0; y + cascade.height <= scaledHeight; y += step) {
+			for (int x = 0; x + cascade.width <= scaledWidth; x += step) {
+				int passed = cascade.evaluate(s.integral, y * integralWidth + x, offsets);
+				if (passed == stages) {
+					if (count + 4 > found.length) {
+						int[] grown = new int[found.length * 2];
+						System.arraycopy(found, 0, grown, 0, count);
+						found = grown;
+					}
+					found[count++] = (int) Math.round(x * factor);
+					found[count++] = (int) Math.round(y * factor);
+					found[count++] = windowWidth;
+					found[count++] = windowHeight;
+				} else if (passed == 0) {
+					// nowhere near anything, skip the next window as well
+					x += step;
+				}
+			}
+		}
+		int[] result = new int[count];
+		System.arraycopy(found, 0, result, 0, count);
+		return result;
+	}
+
+	// Bilinear resize the way opencv does it for 8 bit images (pixel centers aligned, fixed point),
+	// so we look at the same pixels as CascadeClassifier would
+	private static void resize(byte[] src, int offset, int width, int height, int stride, byte[] dst, int dstWidth, int dstHeight, Scratch s) {
+		if (dstWidth == width && dstHeight == height) {
+			for (int y = 0; y < height; y++) {
+				System.arraycopy(src, offset + y * stride, dst, y * width, width);
+			}
+			return;
+		}
+		double scaleX = (double) width / dstWidth;
+		double scaleY = (double) height / dstHeight;
+		int[] xOffsets = s.xOffsets;
+		int[] xAlpha = s.xAlpha;
+		for (int x = 0; x < dstWidth; x++) {
+			double fx = (x + 0.5) * scaleX - 0.5;
+			int sx = (int) Math.floor(fx);
+			fx -= sx;
+			if (sx < 0) {
+				sx = 0;
+				fx = 0;
+			}
+			if (sx >= width - 1) {
+				sx = width - 1;
+				fx = 0;
+			}
+			xOffsets[x] = sx;
+			xAlpha[x] = (int) Math.round(fx * RESIZE_ONE);
+		}
+		int[] row0 = s.row0;
+		int[] row1 = s.row1;
+		for (int y = 0; y < dstHeight; y++) {
+			double fy = (y + 0.5) * scaleY - 0.5;
+			int sy = (int) Math.floor(fy);
+			fy -= sy;
+			if (sy < 0) {
+				sy = 0;
+				fy = 0;
+			}
+			if (sy >= height - 1) {
+				sy = height - 1;
+				fy = 0;
+			}
+			int beta = (int) Math.round(fy * RESIZE_ONE);
+			horizontal(src, offset + sy * stride, width, xOffsets, xAlpha, dstWidth, row0);
+			horizontal(src, offset + Math.min(sy + 1, height - 1) * stride, width, xOffsets, xAlpha, dstWidth, row1);
+			int out = y * dstWidth;
+			for (int x = 0; x < dstWidth; x++) {
+				int value = row0[x] * (RESIZE_ONE - beta) + row1[x] * beta;
+				dst[out + x] = (byte) ((value + (1 << (2 * RESIZE_BITS - 1))) >> (2 * RESIZE_BITS));
+			}
+		}
+	}
+
+	private static void horizontal(byte[] src, int line, int width, int[] xOffsets, int[] xAlpha, int dstWidth, int[] row) {
+		for (int x = 0; x < dstWidth; x++) {
+			int sx = xOffsets[x];
+			int a = xAlpha[x];
+			int left = src[line + sx] & 0xFF;
+			int right = sx + 1 < width ? src[line + sx + 1] & 0xFF : left;
+			row[x] = left * (RESIZE_ONE - a) + right * a;
+		}
+	}
+
+	// integral[(y+1)*(width+1) + x+1] = sum of image[0..y][0..x]
+	static void integral(byte[] image, int width, int height, int[] integral) {
+		int integralWidth = width + 1;
+		for (int x = 0; x < integralWidth; x++) {
+			integral[x] = 0;
+		}
+		for (int y = 0; y < height; y++) {
+			int above = y * integralWidth;
+			int out = above + integralWidth;
+			integral[out] = 0;
+			int rowSum = 0;
+			int in = y * width;
+			for (int x = 0; x < width; x++) {
+				rowSum += image[in + x] & 0xFF;
+				integral[out + x + 1] = integral[above + x + 1] + rowSum;
+			}
+		}
+	}
+
+	// opencv's groupRectangles: cluster hits that are within eps of each other, average each
+	// cluster, drop clusters with minNeighbors hits or fewer, and drop clusters inside a bigger,
+	// more certain one
+	static List<Detection> group(List<int[]> rects, int minNeighbors, double eps) {
+		int n = rects.size();
+		int[] parent = new int[n];
+		for (int i = 0; i < n; i++) {
+			parent[i] = i;
+		}
+		for (int i = 0; i < n; i++) {
+			for (int j = i + 1; j < n; j++) {
+				if (similar(rects.get(i), rects.get(j), eps)) {
+					int a = root(parent, i), b = root(parent, j);
+					if (a != b) {
+						parent[Math.max(a, b)] = Math.min(a, b);
+					}
+				}
+			}
+		}
+		int[] cluster = new int[n];
+		int clusters = 0;
+		int[] index = new int[n];
+		for (int i = 0; i < n; i++) {
+			int r = root(parent, i);
+			if (r == i) {
+				index[i] = clusters++;
+			}
+		}
+		long[][] sums = new long[clusters][4];
+		int[] weights = new int[clusters];
+		for (int i = 0; i < n; i++) {
+			cluster[i] = index[root(parent, i)];
+			int[] r = rects.get(i);
+			for (int k = 0; k < 4; k++) {
+				sums[cluster[i]][k] += r[k];
+			}
+			weights[cluster[i]]++;
+		}
+		int[][] averages = new int[clusters][4];
+		for (int c = 0; c < clusters; c++) {
+			double scale = 1.0 / weights[c];
+			for (int k = 0; k < 4; k++) {
+				averages[c][k] = (int) Math.round(sums[c][k] * scale);
+			}
+		}
+
+		List<Detection> result = new ArrayList<Detection>();
+		for (int i = 0; i < clusters; i++) {
+			int[] r1 = averages[i];
+			int n1 = weights[i];
+			if (n1 <= minNeighbors) {
+				continue;
+			}
+			boolean inside = false;
+			for (int j = 0; j < clusters && !inside; j++) {
+				int n2 = weights[j];
+				if (j == i || n2 <= minNeighbors) {
+					continue;
+				}
+				int[] r2 = averages[j];
+				int dx = (int) Math.round(r2[2] * eps);
+				int dy = (int) Math.round(r2[3] * eps);
+				inside = r1[0] >= r2[0] - dx && r1[1] >= r2[1] - dy
+						&& r1[0] + r1[2] <= r2[0] + r2[2] + dx && r1[1] + r1[3] <= r2[1] + r2[3] + dy
+						&& (n2 > Math.max(3, n1) || n1 < 3);
+			}
+			if (!inside) {
+				result.add(new Detection(r1[0], r1[1], r1[2], r1[3], n1));
+			}
+		}
+		return result;
+	}
+
+	private static boolean similar(int[] a, int[] b, double eps) {
+		double delta = eps * (Math.min(a[2], b[2]) + Math.min(a[3], b[3])) * 0.5;
+		return Math.abs(a[0] - b[0]) <= delta && Math.abs(a[1] - b[1]) <= delta
+				&& Math.abs(a[0] + a[2] - b[0] - b[2]) <= delta && Math.abs(a[1] + a[3] - b[1] - b[3]) <= delta;
+	}
+
+	private static int root(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	private static final class Scratch {
+		byte[] scaled = new byte[0];
+		int[] integral = new int[0];
+		int[] xOffsets = new int[0];
+		int[] xAlpha = new int[0];
+		int[] row0 = new int[0];
+		int[] row1 = new int[0];
+
+		void ensure(int width, int height) {
+			if (scaled.length < width * height) {
+				scaled = new byte[width * height];
+			}
+			if (integral.length < (width + 1) * (height + 1)) {
+				integral = new int[(width + 1) * (height + 1)];
+			}
+			if (xOffsets.length < width) {
+				xOffsets = new int[width];
+				xAlpha = new int[width];
+				row0 = new int[width];
+				row1 = new int[width];
+			}
+		}
+	}
+}
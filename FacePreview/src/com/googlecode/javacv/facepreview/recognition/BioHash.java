@@ -0,0 +1,150 @@
+package com.googlecode.javacv.facepreview.recognition;
+
+import java.util.Random;
+
+// BioHash of an LBPH histogram (see papers/biohash.pdf): the feature is projected onto a set of
+// orthonormal random vectors generated from a token (the seed), and every inner product becomes
+// one bit. The codes are compared with Hamming distance, i.e. a few Long.bitCount()s.
+// Issuing a new seed gives completely different codes for the same face, so a leaked template can
+// be revoked. The 16k bin histogram is first reduced with a RandomProjection (which is what the
+// orthonormal basis is built in), since a dense orthonormal basis over 16k dimensions is 16 MB.
+public final class BioHash {
+	private final RandomProjection projection;
+	private final int bits;
+	private final long seed;
+	// bits x projection.outputDimension(), orthonormal rows
+	private final float[] basis;
+	// subtracted from the projected feature before hashing, see BioHash(..., center)
+	private final float[] center;
+
+	public BioHash(RandomProjection projection, int bits, long seed) {
+		this(projection, bits, seed, null);
+	}
+
+	/**
+	 * All LBPH histograms of faces have a lot in common, so without centering most bits come out
+	 * the same for everybody. center is the mean projected feature of a set of faces (see mean()),
+	 * or null for none.
+	 */
+	public BioHash(RandomProjection projection, int bits, long seed, float[] center) {
+		int dimension = projection.outputDimension();
+		if (bits <= 0 || bits > dimension) {
+			throw new IllegalArgumentException("BioHash needs 1 to " + dimension + " bits");
+		}
+		this.projection = projection;
+		this.bits = bits;
+		this.seed = seed;
+		this.basis = new float[bits * dimension];
+		this.center = center == null ? new float[dimension] : center.clone();
+
+		// Gram-Schmidt over gaussian vectors. In double, then stored as float.
+		Random random = new Random(seed);
+		double[][] rows = new double[bits][dimension];
+		for (int i = 0; i < bits; i++) {
+			double[] row = rows[i];
+			do {
+				for (int j = 0; j < dimension; j++) {
+					row[j] = random.nextGaussian();
+				}
+				for (int k = 0; k < i; k++) {
+					double dot = 0;
+					for (int j = 0; j < dimension; j++) {
+						dot += row[j] * rows[k][j];
+					}
+					for (int j = 0; j < dimension; j++) {
+						row[j] -= dot * rows[k][j];
+					}
+				}
+			} while (!normalize(row));
+			for (int j = 0; j < dimension; j++) {
+				basis[i * dimension + j] = (float) row[j];
+			}
+		}
+	}
+
+	private static boolean normalize(double[] row) {
+		double norm = 0;
+		for (int j = 0; j < row.length; j++) {
+			norm += row[j] * row[j];
+		}
+		norm = Math.sqrt(norm);
+		if (norm < 1e-6) {
+			// (practically) linearly dependent, draw another one
+			return false;
+		}
+		for (int j = 0; j < row.length; j++) {
+			row[j] /= norm;
+		}
+		return true;
+	}
+
+	public int bits() { return bits; }
+	public long seed() { return seed; }
+	public RandomProjection projection() { return projection; }
+	public float[] center() { return center.clone(); }
+
+	/**
+	 * Mean of the projected templates of a gallery, to use as center.
+	 */
+	public static float[] mean(RandomProjection projection, LbphRecognizer gallery) {
+		int dimension = projection.outputDimension();
+		float[] histogram = new float[gallery.dimension()];
+		float[] projected = new float[dimension];
+		double[] sum = new double[dimension];
+		int count = 0;
+		for (int i = 0; i < gallery.size(); i++) {
+			if (gallery.isRemoved(i)) {
+				continue;
+			}
+			gallery.template(i, histogram, 0);
+			projection.project(histogram, 0, projected, 0);
+			for (int j = 0; j < dimension; j++) {
+				sum[j] += projected[j];
+			}
+			count++;
+		}
+		float[] mean = new float[dimension];
+		for (int j = 0; count > 0 && j < dimension; j++) {
+			mean[j] = (float) (sum[j] / count);
+		}
+		return mean;
+	}
+
+	// longs per code
+	public int words() {
+		return (bits + 63) / 64;
+	}
+
+	/**
+	 * Writes the code of the histogram to code[codeOffset ... codeOffset+words()]. projected is
+	 * scratch space of projection().outputDimension() floats.
+	 */
+	public void hash(float[] histogram, int offset, float[] projected, long[] code, int codeOffset) {
+		int dimension = projection.outputDimension();
+		projection.project(histogram, offset, projected, 0);
+		for (int j = 0; j < dimension; j++) {
+			projected[j] -= center[j];
+		}
+		for (int w = 0; w < words(); w++) {
+			code[codeOffset + w] = 0;
+		}
+		for (int i = 0; i < bits; i++) {
+			float dot = 0;
+			int row = i * dimension;
+			for (int j = 0; j < dimension; j++) {
+				dot += basis[row + j] * projected[j];
+			}
+			if (dot > 0) {
+				code[codeOffset + (i >> 6)] |= 1L << (i & 63);
+			}
+		}
+	}
+
+	public static int hamming(long[] a, int aOffset, long[] b, int bOffset, int words) {
+		int distance = 0;
+		for (int w = 0; w < words; w++) {
+			distance += Long.bitCount(a[aOffset + w] ^ b[bOffset + w]);
+		}
+		return distance;
+	}
+}
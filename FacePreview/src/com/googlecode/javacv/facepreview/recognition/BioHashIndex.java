@@ -0,0 +1,212 @@
+package com.googlecode.javacv.facepreview.recognition;
+
+import java.nio.ByteBuffer;
+
+// Keeps only the BioHash code of each template: 32 bytes for 256 bits, so even tens of
+// thousands of templates fit in memory easily. Distances are Hamming distances in bits.
+// Same copy-on-write scheme as LbphRecognizer: writers are synchronized, readers use a snapshot.
+// The codes are also what FacePredictor saves in this mode (packed as big endian longs).
+public class BioHashIndex implements PackedIndex {
+
+	private final BioHash hash;
+	private final double threshold;
+	private final int words;
+	private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	// threshold is in bits: codes at least that far apart never match
+	public BioHashIndex(BioHash hash, double threshold) {
+		this.hash = hash;
+		this.threshold = threshold;
+		this.words = hash.words();
+	}
+
+	public BioHash hash() {
+		return hash;
+	}
+
+	public int dimension() {
+		return hash.projection().inputDimension();
+	}
+
+	public int size() {
+		return snapshot.count;
+	}
+
+	// heap used per stored template
+	public int bytesPerTemplate() {
+		return 8 * words + 4;
+	}
+
+	public int templateBytes() {
+		return 8 * words;
+	}
+
+	public synchronized void add(float[] histogram, int offset, int label) {
+		Snapshot s = withRoom();
+		hash.hash(histogram, offset, scratch.get().projected, s.codes, s.count * words);
+		s.labels[s.count] = label;
+		snapshot = new Snapshot(s.codes, s.labels, s.count + 1);
+	}
+
+	public synchronized void addPacked(ByteBuffer template, int label) {
+		Snapshot s = withRoom();
+		int start = s.count * words;
+		for (int w = 0; w < words; w++) {
+			s.codes[start + w] = template.getLong();
+		}
+		s.labels[s.count] = label;
+		snapshot = new Snapshot(s.codes, s.labels, s.count + 1);
+	}
+
+	// The current codes with room for one more. Readers never look past count, so appending
+	// in place doesn't disturb them.
+	private Snapshot withRoom() {
+		Snapshot s = snapshot;
+		if (s.count < s.labels.length) {
+			return s;
+		}
+		int capacity = Math.max(8, s.labels.length * 2);
+		long[] codes = new long[capacity * words];
+		int[] labels = new int[capacity];
+		System.arraycopy(s.codes, 0, codes, 0, s.count * words);
+		System.arraycopy(s.labels, 0, labels, 0, s.count);
+		return new Snapshot(codes, labels, s.count);
+	}
+
+	public void pack(float[] histogram, int offset, ByteBuffer template) {
+		Scratch sc = scratch.get();
+		hash.hash(histogram, offset, sc.projected, sc.code, 0);
+		for (int w = 0; w < words; w++) {
+			template.putLong(sc.code[w]);
+		}
+	}
+
+	public void packed(int index, ByteBuffer template) {
+		Snapshot s = snapshot;
+		checkIndex(s, index);
+		for (int w = 0; w < words; w++) {
+			template.putLong(s.codes[index * words + w]);
+		}
+	}
+
+	public int label(int index) {
+		Snapshot s = snapshot;
+		checkIndex(s, index);
+		return s.labels[index];
+	}
+
+	public int count(int label) {
+		Snapshot s = snapshot;
+		int count = 0;
+		for (int i = 0; i < s.count; i++) {
+			if (s.labels[i] == label) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static void checkIndex(Snapshot s, int index) {
+		if (index < 0 || index >= s.count) {
+			throw new IndexOutOfBoundsException("No template " + index);
+		}
+	}
+
+	public synchronized int remove(int label) {
+		Snapshot s = snapshot;
+		long[] codes = new long[Math.max(8, s.count) * words];
+		int[] labels = new int[Math.max(8, s.count)];
+		int keep = 0;
+		for (int i = 0; i < s.count; i++) {
+			if (s.labels[i] != label) {
+				System.arraycopy(s.codes, i * words, codes, keep * words, words);
+				labels[keep++] = s.labels[i];
+			}
+		}
+		if (keep < s.count) {
+			snapshot = new Snapshot(codes, labels, keep);
+		}
+		return s.count - keep;
+	}
+
+	public synchronized void clear() {
+		snapshot = Snapshot.EMPTY;
+	}
+
+	public void predict(float[] histogram, int offset, Prediction result) {
+		result.reset();
+		Scratch sc = scratch.get();
+		hash.hash(histogram, offset, sc.projected, sc.code, 0);
+		predict(sc.code, 0, result);
+	}
+
+	// For codes computed elsewhere (with the same BioHash)
+	public void predict(long[] code, int codeOffset, Prediction result) {
+		result.reset();
+		Snapshot s = snapshot;
+		for (int i = 0; i < s.count; i++) {
+			int distance = BioHash.hamming(s.codes, i * words, code, codeOffset, words);
+			if (distance < result.distance && distance < threshold) {
+				result.distance = distance;
+				result.label = s.labels[i];
+			}
+		}
+	}
+
+	public boolean verify(float[] histogram, int offset, int label, double threshold, Prediction result) {
+		Scratch sc = scratch.get();
+		hash.hash(histogram, offset, sc.projected, sc.code, 0);
+		return verify(sc.code, label, threshold, result);
+	}
+
+	public boolean verifyPacked(ByteBuffer template, int label, double threshold, Prediction result) {
+		long[] code = scratch.get().code;
+		for (int w = 0; w < words; w++) {
+			code[w] = template.getLong();
+		}
+		return verify(code, label, threshold, result);
+	}
+
+	private boolean verify(long[] code, int label, double threshold, Prediction result) {
+		result.reset();
+		Snapshot s = snapshot;
+		double closest = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < s.count; i++) {
+			if (s.labels[i] == label) {
+				closest = Math.min(closest, BioHash.hamming(s.codes, i * words, code, 0, words));
+			}
+		}
+		result.distance = closest;
+		if (closest < threshold) {
+			result.label = label;
+			return true;
+		}
+		return false;
+	}
+
+	private final class Scratch {
+		final float[] projected = new float[hash.projection().outputDimension()];
+		final long[] code = new long[words];
+	}
+
+	private static final class Snapshot {
+		static final Snapshot EMPTY = new Snapshot(new long[0], new int[0], 0);
+
+		final long[] codes;
+		final int[] labels;
+		final int count;
+
+		Snapshot(long[] codes, int[] labels, int count) {
+			this.codes = codes;
+			this.labels = labels;
+			this.count = count;
+		}
+	}
+}
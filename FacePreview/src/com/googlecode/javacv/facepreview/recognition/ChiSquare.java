@@ -0,0 +1,88 @@
+package com.googlecode.javacv.facepreview.recognition;
+
+import java.nio.FloatBuffer;
+
+// The chi-square histogram distance LBPH matching spends its time in: compareHist(a, b, CV_COMP_CHISQR)
+// with a the stored template, i.e. the sum of (a-b)^2/a over the bins where a isn't 0.
+// The loop is split into LANES independent accumulators, so consecutive bins don't wait on each
+// other's additions and the JIT can keep them in SIMD registers. The lanes are always added up in
+// the same order, so the result is the same on every device and for every caller.
+public final class ChiSquare {
+	public static final int LANES = 4;
+	// how often the bounded versions look at the running sum: once per LBPH cell
+	static final int BLOCK = 256;
+	private static final double DBL_EPSILON = 2.220446049250313e-16;
+
+	private ChiSquare() {}
+
+	public static double distance(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		return distance(a, aOffset, b, bOffset, length, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Same as distance(), but may stop early once the sum reaches bound; the result is then some
+	 * value >= bound. Every term is positive, so a nearest neighbour search that passes its current
+	 * best as bound gets exactly the same answer, just without finishing hopeless comparisons.
+	 */
+	public static double distance(float[] a, int aOffset, float[] b, int bOffset, int length, double bound) {
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = 0;
+		while (i < length) {
+			int blockEnd = Math.min(length, i + BLOCK);
+			int laneEnd = i + ((blockEnd - i) & ~(LANES - 1));
+			for (; i < laneEnd; i += LANES) {
+				s0 += term(a[aOffset + i], b[bOffset + i]);
+				s1 += term(a[aOffset + i + 1], b[bOffset + i + 1]);
+				s2 += term(a[aOffset + i + 2], b[bOffset + i + 2]);
+				s3 += term(a[aOffset + i + 3], b[bOffset + i + 3]);
+			}
+			for (; i < blockEnd; i++) {
+				s0 += term(a[aOffset + i], b[bOffset + i]);
+			}
+			if ((s0 + s1) + (s2 + s3) >= bound) {
+				break;
+			}
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * For templates read from a mapped file. The buffer's position is used, so every thread needs
+	 * its own view (FloatBuffer.duplicate()); scratch must hold at least BLOCK floats.
+	 */
+	public static double distance(FloatBuffer a, int aOffset, float[] b, int bOffset, int length, double bound, float[] scratch) {
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		a.position(aOffset);
+		int i = 0;
+		while (i < length) {
+			int blockLength = Math.min(BLOCK, length - i);
+			// one bulk copy per block beats a get() call per bin
+			a.get(scratch, 0, blockLength);
+			int laneEnd = blockLength & ~(LANES - 1);
+			int j = 0;
+			for (; j < laneEnd; j += LANES) {
+				s0 += term(scratch[j], b[bOffset + i + j]);
+				s1 += term(scratch[j + 1], b[bOffset + i + j + 1]);
+				s2 += term(scratch[j + 2], b[bOffset + i + j + 2]);
+				s3 += term(scratch[j + 3], b[bOffset + i + j + 3]);
+			}
+			for (; j < blockLength; j++) {
+				s0 += term(scratch[j], b[bOffset + i + j]);
+			}
+			i += blockLength;
+			if ((s0 + s1) + (s2 + s3) >= bound) {
+				break;
+			}
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	private static double term(float stored, float query) {
+		double x = stored;
+		if (x > DBL_EPSILON || x < -DBL_EPSILON) {
+			double d = x - query;
+			return d * d / x;
+		}
+		return 0;
+	}
+}
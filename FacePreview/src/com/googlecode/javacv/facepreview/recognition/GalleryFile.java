@@ -0,0 +1,274 @@
+package com.googlecode.javacv.facepreview.recognition;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// Packed binary file of LBPH templates, so a gallery doesn't have to be recomputed from images
+// or parsed from XML. Used for the precomputed background gallery and for the saved model.
+// Layout (big endian):
+//   int magic "LBPG", int version, int radius, int neighbors, int gridX, int gridY,
+//   int count, int dimension, long crc32 of the payload
+//   payload: int[count] labels, float[count*dimension] histograms
+// Every field is 4 byte aligned, so open() can hand out IntBuffer/FloatBuffer views of the mapped file.
+public final class GalleryFile {
+	public static final int MAGIC = 0x4C425047;
+	public static final int VERSION = 1;
+	static final int HEADER_BYTES = 8 * 4 + 8;
+
+	private GalleryFile() {}
+
+	/**
+	 * Writes to a temporary file next to the target, checks it and renames it, so a crash or a bad
+	 * write never leaves a broken model behind (and a recognizer that still maps the old file keeps
+	 * working). If this throws, file is unchanged.
+	 */
+	public static void write(LbphRecognizer recognizer, File file) throws IOException {
+		File temporary = new File(file.getAbsolutePath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temporary);
+		try {
+			write(recognizer, out);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!verify(temporary)) {
+			temporary.delete();
+			throw new IOException(temporary + " does not match what was written");
+		}
+		if (!temporary.renameTo(file)) {
+			temporary.delete();
+			throw new IOException("Could not rename " + temporary + " to " + file);
+		}
+	}
+
+	public static void write(LbphRecognizer recognizer, String filename) throws IOException {
+		write(recognizer, new File(filename));
+	}
+
+	// Removed templates (LbphRecognizer.isRemoved) are left out
+	public static void write(LbphRecognizer recognizer, OutputStream out) throws IOException {
+		int slots = recognizer.size();
+		int count = 0;
+		for (int i = 0; i < slots; i++) {
+			if (!recognizer.isRemoved(i)) {
+				count++;
+			}
+		}
+
+		// first pass only computes the checksum, so the header can be written up front
+		CheckedOutputStream checksum = new CheckedOutputStream(new NullOutputStream(), new CRC32());
+		writePayload(recognizer, slots, checksum);
+
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		data.writeInt(recognizer.radius());
+		data.writeInt(recognizer.neighbors());
+		data.writeInt(recognizer.gridX());
+		data.writeInt(recognizer.gridY());
+		data.writeInt(count);
+		data.writeInt(recognizer.dimension());
+		data.writeLong(checksum.getChecksum().getValue());
+		data.flush();
+		writePayload(recognizer, slots, out);
+	}
+
+	private static void writePayload(LbphRecognizer recognizer, int slots, OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+		for (int i = 0; i < slots; i++) {
+			if (!recognizer.isRemoved(i)) {
+				data.writeInt(recognizer.label(i));
+			}
+		}
+		float[] histogram = new float[recognizer.dimension()];
+		for (int i = 0; i < slots; i++) {
+			if (recognizer.isRemoved(i)) {
+				continue;
+			}
+			recognizer.template(i, histogram, 0);
+			for (int j = 0; j < histogram.length; j++) {
+				data.writeFloat(histogram[j]);
+			}
+		}
+		data.flush();
+	}
+
+	/**
+	 * Appends every template in the stream to the recognizer. Nothing is added unless the whole
+	 * file is valid. Returns the number of templates read.
+	 * For a stream of unknown length: the arrays grow as templates actually arrive, so a damaged
+	 * count in the header runs into the end of the stream instead of allocating what it claims.
+	 */
+	public static int read(InputStream in, LbphRecognizer into) throws IOException {
+		return read(in, -1, into);
+	}
+
+	/**
+	 * Same, for a stream of length bytes (e.g. a file). The header has to add up to exactly that
+	 * before anything is allocated.
+	 */
+	public static int read(InputStream in, long length, LbphRecognizer into) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+		byte[] headerBytes = new byte[HEADER_BYTES];
+		data.readFully(headerBytes);
+		Header header = Header.parse(ByteBuffer.wrap(headerBytes));
+		if (header.radius != into.radius() || header.neighbors != into.neighbors() || header.gridX != into.gridX()
+				|| header.gridY != into.gridY() || header.dimension != into.dimension()) {
+			throw new IOException("Gallery was built with different LBPH parameters");
+		}
+		int count = header.count;
+		int dimension = header.dimension;
+		if ((long) count * dimension > Integer.MAX_VALUE - 8) {
+			throw new IOException("Corrupt gallery header: " + count + " templates");
+		}
+		long expectedLength = HEADER_BYTES + 4L * count + 4L * count * dimension;
+		if (length >= 0 && length != expectedLength) {
+			throw new IOException("Gallery is " + length + " bytes, expected " + expectedLength);
+		}
+		// with the length checked, the count is what is really there
+		int capacity = length >= 0 ? count : Math.min(count, 64);
+
+		CRC32 checksum = new CRC32();
+		DataInputStream payload = new DataInputStream(new CheckedInputStream(data, checksum));
+		int[] labels = new int[capacity];
+		for (int i = 0; i < count; i++) {
+			if (i == labels.length) {
+				labels = Arrays.copyOf(labels, (int) Math.min(count, 2L * labels.length));
+			}
+			labels[i] = payload.readInt();
+		}
+
+		float[] histograms = new float[capacity * dimension];
+		byte[] chunk = new byte[4 * dimension];
+		for (int i = 0; i < count; i++) {
+			if ((i + 1) * dimension > histograms.length) {
+				histograms = Arrays.copyOf(histograms, (int) Math.min(count, 2L * i) * dimension);
+			}
+			payload.readFully(chunk);
+			ByteBuffer.wrap(chunk).asFloatBuffer().get(histograms, i * dimension, dimension);
+		}
+		if (checksum.getValue() != header.checksum) {
+			throw new IOException("Gallery checksum mismatch");
+		}
+
+		into.addAll(histograms, labels, count);
+		return count;
+	}
+
+	/**
+	 * Maps the file and returns a recognizer that reads its templates in place. This only looks at
+	 * the header and the file's length, so it takes the same time for any gallery size. write()
+	 * checks the payload before the file replaces the old one; verify() checks it again, e.g. in a
+	 * test, and reads all of it.
+	 * Templates added to the returned recognizer stay in memory until the next write().
+	 */
+	public static LbphRecognizer open(File file, double threshold) throws IOException {
+		MappedByteBuffer buffer = map(file);
+		Header header = Header.parse(buffer);
+		long expectedLength = HEADER_BYTES + 4L * header.count + 4L * header.count * header.dimension;
+		if (buffer.capacity() != expectedLength) {
+			throw new IOException(file + " is " + buffer.capacity() + " bytes, expected " + expectedLength);
+		}
+		LbphRecognizer recognizer = new LbphRecognizer(header.radius, header.neighbors, header.gridX, header.gridY, threshold);
+		if (recognizer.dimension() != header.dimension) {
+			throw new IOException("Corrupt gallery header");
+		}
+
+		buffer.position(HEADER_BYTES);
+		ByteBuffer payload = buffer.slice();
+		IntBuffer labels = payload.asIntBuffer();
+		labels.limit(header.count);
+		payload.position(4 * header.count);
+		FloatBuffer histograms = payload.slice().asFloatBuffer();
+		recognizer.attach(histograms, labels, header.count);
+		return recognizer;
+	}
+
+	/**
+	 * Recomputes the payload checksum of a gallery file.
+	 */
+	public static boolean verify(File file) throws IOException {
+		MappedByteBuffer buffer = map(file);
+		Header header = Header.parse(buffer);
+		buffer.position(HEADER_BYTES);
+		CRC32 checksum = new CRC32();
+		byte[] chunk = new byte[64 * 1024];
+		while (buffer.hasRemaining()) {
+			int length = Math.min(chunk.length, buffer.remaining());
+			buffer.get(chunk, 0, length);
+			checksum.update(chunk, 0, length);
+		}
+		return checksum.getValue() == header.checksum;
+	}
+
+	private static MappedByteBuffer map(File file) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			if (channel.size() < HEADER_BYTES) {
+				throw new IOException(file + " is too short to be a gallery file");
+			}
+			// the mapping stays valid after the channel is closed
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	private static final class Header {
+		int radius;
+		int neighbors;
+		int gridX;
+		int gridY;
+		int count;
+		int dimension;
+		long checksum;
+
+		static Header parse(ByteBuffer buffer) throws IOException {
+			if (buffer.getInt(0) != MAGIC) {
+				throw new IOException("Not a gallery file");
+			}
+			int version = buffer.getInt(4);
+			if (version != VERSION) {
+				throw new IOException("Unsupported gallery version " + version);
+			}
+			Header header = new Header();
+			header.radius = buffer.getInt(8);
+			header.neighbors = buffer.getInt(12);
+			header.gridX = buffer.getInt(16);
+			header.gridY = buffer.getInt(20);
+			header.count = buffer.getInt(24);
+			header.dimension = buffer.getInt(28);
+			header.checksum = buffer.getLong(32);
+			if (header.count < 0 || header.dimension <= 0) {
+				throw new IOException("Corrupt gallery header");
+			}
+			return header;
+		}
+	}
+
+	private static final class NullOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {}
+
+		@Override
+		public void write(byte[] b, int off, int len) {}
+	}
+}
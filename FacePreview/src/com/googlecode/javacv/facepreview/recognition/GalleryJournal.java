@@ -0,0 +1,209 @@
+package com.googlecode.javacv.facepreview.recognition;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+// Append-only log of the enrollment changes made since a GalleryFile was written. Enrolling a person
+// appends one record per new template instead of rewriting the whole gallery; replay() applies the
+// records on top of the freshly opened file. The templates are LBPH histograms, or in the modes that
+// don't keep those, what a PackedIndex keeps instead (see TemplateFile).
+// Layout (big endian): int magic "LBPJ", int version, int dimension, then records of
+//   byte ADD, int label, float[dimension] histogram, long crc32    or    byte REMOVE, int label, long crc32
+// where the crc covers the record. For a PackedIndex, dimension is its templateBytes() / 4 and
+// the histogram is a packed template. A torn record at the end (crash while appending) is ignored
+// and overwritten by the next append.
+public final class GalleryJournal {
+	public static final int MAGIC = 0x4C42504A;
+	public static final int VERSION = 1;
+	private static final int HEADER_BYTES = 3 * 4;
+	private static final byte ADD = 1;
+	private static final byte REMOVE = 2;
+
+	private final File file;
+	// 4 byte words per template
+	private final int dimension;
+	private long validLength = -1; // unknown until the file has been scanned
+	private int records = 0;
+
+	public GalleryJournal(File file, int dimension) {
+		this.file = file;
+		this.dimension = dimension;
+	}
+
+	public File file() {
+		return file;
+	}
+
+	// number of valid records
+	public synchronized int records() throws IOException {
+		if (validLength < 0) {
+			replay(null, null);
+		}
+		return records;
+	}
+
+	/**
+	 * Applies every valid record to the recognizer and returns the number of records.
+	 */
+	public int replay(LbphRecognizer into) throws IOException {
+		return replay(into, null);
+	}
+
+	// Same for a journal of packed templates
+	public int replay(PackedIndex into) throws IOException {
+		if (into.templateBytes() != 4 * dimension) {
+			throw new IllegalArgumentException("Journal " + file + " holds templates of " + 4 * dimension + " bytes");
+		}
+		return replay(null, into);
+	}
+
+	// Applies the records to whichever isn't null, or just scans the file
+	private synchronized int replay(LbphRecognizer histograms, PackedIndex packed) throws IOException {
+		records = 0;
+		validLength = 0;
+		if (!file.exists()) {
+			return 0;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a gallery journal: " + file);
+			}
+			if (in.readInt() != dimension) {
+				throw new IOException("Journal " + file + " was written for another histogram size");
+			}
+			validLength = HEADER_BYTES;
+
+			float[] histogram = new float[dimension];
+			byte[] histogramBytes = new byte[4 * dimension];
+			CRC32 checksum = new CRC32();
+			while (true) {
+				byte type;
+				int label;
+				try {
+					type = in.readByte();
+					label = in.readInt();
+					checksum.reset();
+					checksum.update(type);
+					updateInt(checksum, label);
+					if (type == ADD) {
+						in.readFully(histogramBytes);
+						checksum.update(histogramBytes);
+					} else if (type != REMOVE) {
+						break;
+					}
+					if (in.readLong() != checksum.getValue()) {
+						break;
+					}
+				} catch (EOFException e) {
+					break;
+				}
+
+				if (type == REMOVE) {
+					if (histograms != null) {
+						histograms.remove(label);
+					} else if (packed != null) {
+						packed.remove(label);
+					}
+				} else if (histograms != null) {
+					ByteBuffer.wrap(histogramBytes).asFloatBuffer().get(histogram);
+					histograms.add(histogram, 0, label);
+				} else if (packed != null) {
+					packed.addPacked(ByteBuffer.wrap(histogramBytes), label);
+				}
+				validLength += recordLength(type);
+				records++;
+			}
+		} catch (EOFException e) {
+			// not even a complete header, start over
+			validLength = 0;
+		} finally {
+			in.close();
+		}
+		return records;
+	}
+
+	public void appendAdd(int label, float[] histogram, int offset) throws IOException {
+		ByteBuffer record = ByteBuffer.allocate(recordLength(ADD));
+		record.put(ADD);
+		record.putInt(label);
+		for (int i = 0; i < dimension; i++) {
+			record.putFloat(histogram[offset + i]);
+		}
+		append(record);
+	}
+
+	// template holds a packed template from its position to its limit, see PackedIndex.pack()
+	public void appendAdd(int label, ByteBuffer template) throws IOException {
+		if (template.remaining() != 4 * dimension) {
+			throw new IllegalArgumentException("Templates in " + file + " are " + 4 * dimension + " bytes");
+		}
+		ByteBuffer record = ByteBuffer.allocate(recordLength(ADD));
+		record.put(ADD);
+		record.putInt(label);
+		record.put(template.duplicate());
+		append(record);
+	}
+
+	public void appendRemove(int label) throws IOException {
+		ByteBuffer record = ByteBuffer.allocate(recordLength(REMOVE));
+		record.put(REMOVE);
+		record.putInt(label);
+		append(record);
+	}
+
+	// Forget everything, e.g. after the gallery file was rewritten with all changes in it
+	public synchronized void reset() throws IOException {
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Could not delete " + file);
+		}
+		validLength = 0;
+		records = 0;
+	}
+
+	private synchronized void append(ByteBuffer record) throws IOException {
+		if (validLength < 0) {
+			replay(null, null);
+		}
+		CRC32 checksum = new CRC32();
+		checksum.update(record.array(), 0, record.position());
+		record.putLong(checksum.getValue());
+
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			if (validLength < HEADER_BYTES) {
+				out.setLength(0);
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(dimension);
+				validLength = HEADER_BYTES;
+			}
+			out.seek(validLength);
+			out.write(record.array());
+			out.setLength(validLength + record.capacity());
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		validLength += record.capacity();
+		records++;
+	}
+
+	private int recordLength(byte type) {
+		return 1 + 4 + (type == ADD ? 4 * dimension : 0) + 8;
+	}
+
+	private static void updateInt(CRC32 checksum, int value) {
+		checksum.update(value >>> 24);
+		checksum.update(value >>> 16);
+		checksum.update(value >>> 8);
+		checksum.update(value);
+	}
+}
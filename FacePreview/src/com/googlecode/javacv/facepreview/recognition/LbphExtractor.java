@@ -0,0 +1,150 @@
+package com.googlecode.javacv.facepreview.recognition;
+
+import java.nio.ByteBuffer;
+
+// Computes LBPH feature vectors (spatial histograms of local binary patterns) in plain Java.
+// This follows opencv_contrib's LBPH implementation (elbp + spatial_histogram) step by step,
+// so the histograms are interchangeable with the ones createLBPHFaceRecognizer produces.
+//
+// Not thread safe: every scratch buffer belongs to the instance, so extract() never allocates
+// (except to grow the pixel scratch the first time a larger ByteBuffer image shows up).
+// Keep one extractor per thread, see LbphRecognizer.
+public final class LbphExtractor {
+
+	public final int radius;
+	public final int neighbors;
+	public final int gridX;
+	public final int gridY;
+	public final int bins;
+
+	// sampling pattern around the center pixel, one entry per neighbor (see elbp_ in opencv)
+	private final int[] fx, fy, cx, cy;
+	private final float[] w1, w2, w3, w4;
+
+	// pixel offsets of the sampling pattern for the current stride
+	private final int[] offsets;
+	private int offsetsStride = -1;
+
+	private final int[] counts;
+	private byte[] pixels = new byte[0];
+
+	public LbphExtractor(int radius, int neighbors, int gridX, int gridY) {
+		if (radius < 1 || neighbors < 1 || neighbors > 16 || gridX < 1 || gridY < 1) {
+			throw new IllegalArgumentException("Unsupported LBPH parameters");
+		}
+		this.radius = radius;
+		this.neighbors = neighbors;
+		this.gridX = gridX;
+		this.gridY = gridY;
+		this.bins = 1 << neighbors;
+
+		fx = new int[neighbors];
+		fy = new int[neighbors];
+		cx = new int[neighbors];
+		cy = new int[neighbors];
+		w1 = new float[neighbors];
+		w2 = new float[neighbors];
+		w3 = new float[neighbors];
+		w4 = new float[neighbors];
+		for (int n = 0; n < neighbors; n++) {
+			// same float/double mix as the C++ code, so we end up with the same weights
+			float x = (float) (radius * Math.cos(2.0 * Math.PI * n / (float) neighbors));
+			float y = (float) (-radius * Math.sin(2.0 * Math.PI * n / (float) neighbors));
+			fx[n] = (int) Math.floor(x);
+			fy[n] = (int) Math.floor(y);
+			cx[n] = (int) Math.ceil(x);
+			cy[n] = (int) Math.ceil(y);
+			float ty = y - fy[n];
+			float tx = x - fx[n];
+			w1[n] = (1 - tx) * (1 - ty);
+			w2[n] = tx * (1 - ty);
+			w3[n] = (1 - tx) * ty;
+			w4[n] = tx * ty;
+		}
+		offsets = new int[4 * neighbors];
+		counts = new int[dimension()];
+	}
+
+	public int dimension() {
+		return gridX * gridY * bins;
+	}
+
+	/**
+	 * Writes the normalized spatial histogram of an 8 bit gray image into histogram[histogramOffset...].
+	 */
+	public void extract(byte[] gray, int offset, int width, int height, int stride, float[] histogram, int histogramOffset) {
+		int lbpWidth = width - 2 * radius;
+		int lbpHeight = height - 2 * radius;
+		int cellWidth = lbpWidth / gridX;
+		int cellHeight = lbpHeight / gridY;
+		if (cellWidth <= 0 || cellHeight <= 0) {
+			throw new IllegalArgumentException("Image is too small for a " + gridX + "x" + gridY + " grid");
+		}
+		prepareOffsets(stride);
+
+		final int[] counts = this.counts;
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = 0;
+		}
+
+		final int neighbors = this.neighbors;
+		final int[] offsets = this.offsets;
+		for (int row = 0; row < cellHeight * gridY; row++) {
+			int cellRowBase = (row / cellHeight) * gridX * bins;
+			int center = offset + (row + radius) * stride + radius;
+			for (int col = 0; col < cellWidth * gridX; col++, center++) {
+				int c = gray[center] & 0xFF;
+				int code = 0;
+				for (int n = 0, o = 0; n < neighbors; n++, o += 4) {
+					float t = w1[n] * (gray[center + offsets[o]] & 0xFF)
+							+ w2[n] * (gray[center + offsets[o + 1]] & 0xFF)
+							+ w3[n] * (gray[center + offsets[o + 2]] & 0xFF)
+							+ w4[n] * (gray[center + offsets[o + 3]] & 0xFF);
+					if (t > c || Math.abs(t - c) < FLT_EPSILON) {
+						code |= 1 << n;
+					}
+				}
+				counts[cellRowBase + (col / cellWidth) * bins + code]++;
+			}
+		}
+
+		// histc(..., normed=true) divides every cell by its pixel count
+		double scale = 1.0 / (cellWidth * cellHeight);
+		for (int i = 0; i < counts.length; i++) {
+			histogram[histogramOffset + i] = (float) (counts[i] * scale);
+		}
+	}
+
+	/**
+	 * Same as above, for images living in native memory (e.g. IplImage.getByteBuffer()).
+	 * Rows are bulk copied into a scratch array first. The buffer's position is restored afterwards.
+	 */
+	public void extract(ByteBuffer gray, int width, int height, int stride, float[] histogram, int histogramOffset) {
+		int length = width * height;
+		if (pixels.length < length) {
+			pixels = new byte[length];
+		}
+		int position = gray.position();
+		for (int y = 0; y < height; y++) {
+			gray.position(y * stride);
+			gray.get(pixels, y * width, width);
+		}
+		gray.position(position);
+		extract(pixels, 0, width, height, width, histogram, histogramOffset);
+	}
+
+	private void prepareOffsets(int stride) {
+		if (stride == offsetsStride) {
+			return;
+		}
+		for (int n = 0, o = 0; n < neighbors; n++, o += 4) {
+			offsets[o] = fy[n] * stride + fx[n];
+			offsets[o + 1] = fy[n] * stride + cx[n];
+			offsets[o + 2] = cy[n] * stride + fx[n];
+			offsets[o + 3] = cy[n] * stride + cx[n];
+		}
+		offsetsStride = stride;
+	}
+
+	private static final float FLT_EPSILON = 1.1920929e-7f;
+}
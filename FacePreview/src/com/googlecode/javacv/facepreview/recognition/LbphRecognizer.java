@@ -0,0 +1,477 @@
+package com.googlecode.javacv.facepreview.recognition;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Pure Java replacement for opencv_contrib's LBPH FaceRecognizer.
+// Templates live in one packed float[] (template i starts at i*dimension()) plus an int[] of labels.
+// A recognizer opened with GalleryFile.open() additionally reads templates straight out of the
+// memory mapped file; those come first, templates added afterwards follow.
+// predict() allocates nothing: every thread gets its own extractor and query histogram.
+public class LbphRecognizer implements TemplateIndex {
+
+	// the parameters FacePredictor uses, also what background galleries are built with
+	public static final int DEFAULT_RADIUS = 1;
+	public static final int DEFAULT_NEIGHBORS = 8;
+	public static final int DEFAULT_GRID_X = 8;
+	public static final int DEFAULT_GRID_Y = 8;
+
+	private final int radius;
+	private final int neighbors;
+	private final int gridX;
+	private final int gridY;
+	private final double threshold;
+	private final int dimension;
+
+	// Templates are only ever appended in place, and growing the arrays copies them. A running
+	// predict() keeps working on the snapshot it started with, so update() never disturbs it.
+	private volatile Templates templates;
+	// bumped whenever template indices change meaning, i.e. on everything but appends
+	private volatile int layoutVersion = 0;
+
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch(new LbphExtractor(radius, neighbors, gridX, gridY));
+		}
+	};
+
+	public LbphRecognizer(int radius, int neighbors, int gridX, int gridY, double threshold) {
+		this.radius = radius;
+		this.neighbors = neighbors;
+		this.gridX = gridX;
+		this.gridY = gridY;
+		this.threshold = threshold;
+		this.dimension = gridX * gridY * (1 << neighbors);
+		this.templates = Templates.EMPTY;
+	}
+
+	public int radius() { return radius; }
+	public int neighbors() { return neighbors; }
+	public int gridX() { return gridX; }
+	public int gridY() { return gridY; }
+	public double threshold() { return threshold; }
+
+	// length of a single histogram
+	public int dimension() {
+		return dimension;
+	}
+
+	// number of stored templates, including mapped ones that were removed (see isRemoved)
+	public int size() {
+		return templates.size();
+	}
+
+	// Removed templates that live in a mapped file can't be deleted from it, so they are only
+	// flagged until the gallery is written again. GalleryFile.write() leaves them out.
+	public boolean isRemoved(int index) {
+		Templates t = templates;
+		return index < t.mappedCount && t.mappedRemoved != null && t.mappedRemoved[index];
+	}
+
+	// For indexes over this recognizer's templates (see LshIndex): while this stays the same,
+	// template i is still template i, new ones may only have been appended.
+	public int layoutVersion() {
+		return layoutVersion;
+	}
+
+	// number of templates a person has, not counting removed ones
+	public int count(int label) {
+		return templates.indicesOf(label).length;
+	}
+
+	public int label(int index) {
+		Templates t = templates;
+		if (index < 0 || index >= t.size()) {
+			throw new IndexOutOfBoundsException("No template " + index);
+		}
+		if (index < t.mappedCount) {
+			return t.mappedLabels.get(index);
+		}
+		return t.labels[index - t.mappedCount];
+	}
+
+	// Copies template i into histogram[offset...]
+	public void template(int index, float[] histogram, int offset) {
+		Templates t = templates;
+		if (index < 0 || index >= t.size()) {
+			throw new IndexOutOfBoundsException("No template " + index);
+		}
+		if (index < t.mappedCount) {
+			int start = index * dimension;
+			for (int i = 0; i < dimension; i++) {
+				histogram[offset + i] = t.mappedHistograms.get(start + i);
+			}
+		} else {
+			System.arraycopy(t.histograms, (index - t.mappedCount) * dimension, histogram, offset, dimension);
+		}
+	}
+
+	// Just the LBPH histogram of a face, e.g. to hand to another TemplateIndex
+	public void histogram(ByteBuffer gray, int width, int height, int stride, float[] histogram, int offset) {
+		scratch.get().extractor.extract(gray, width, height, stride, histogram, offset);
+	}
+
+	/**
+	 * Adds a training face. The image should already be cropped, scaled and equalized.
+	 */
+	public void update(ByteBuffer gray, int width, int height, int stride, int label) {
+		Scratch s = scratch.get();
+		s.extractor.extract(gray, width, height, stride, s.query, 0);
+		add(s.query, 0, label);
+	}
+
+	public void update(byte[] gray, int offset, int width, int height, int stride, int label) {
+		Scratch s = scratch.get();
+		s.extractor.extract(gray, offset, width, height, stride, s.query, 0);
+		add(s.query, 0, label);
+	}
+
+	// Adds an already computed histogram
+	public synchronized void add(float[] histogram, int offset, int label) {
+		Templates t = templates;
+		float[] histograms = t.histograms;
+		int[] labels = t.labels;
+		if (t.count == labels.length) {
+			int capacity = Math.max(8, labels.length * 2);
+			histograms = new float[capacity * dimension];
+			labels = new int[capacity];
+			System.arraycopy(t.histograms, 0, histograms, 0, t.count * dimension);
+			System.arraycopy(t.labels, 0, labels, 0, t.count);
+		}
+		System.arraycopy(histogram, offset, histograms, t.count * dimension, dimension);
+		labels[t.count] = label;
+		templates = t.withArrays(histograms, labels, t.count + 1);
+	}
+
+	// Adds count packed templates (histograms[i*dimension()...], labels[i]) in one go
+	public synchronized void addAll(float[] histograms, int[] labels, int count) {
+		Templates t = templates;
+		int total = t.count + count;
+		float[] grownHistograms = t.histograms;
+		int[] grownLabels = t.labels;
+		if (total > t.labels.length) {
+			int capacity = Math.max(total, t.labels.length * 2);
+			grownHistograms = new float[capacity * dimension];
+			grownLabels = new int[capacity];
+			System.arraycopy(t.histograms, 0, grownHistograms, 0, t.count * dimension);
+			System.arraycopy(t.labels, 0, grownLabels, 0, t.count);
+		}
+		System.arraycopy(histograms, 0, grownHistograms, t.count * dimension, count * dimension);
+		System.arraycopy(labels, 0, grownLabels, t.count, count);
+		templates = t.withArrays(grownHistograms, grownLabels, total);
+	}
+
+	// Puts templates from a mapped GalleryFile in front of the ones added in memory
+	synchronized void attach(FloatBuffer histograms, IntBuffer labels, int count) {
+		Templates t = templates;
+		templates = new Templates(histograms, labels, count, null, t.histograms, t.labels, t.count);
+		layoutVersion++;
+	}
+
+	/**
+	 * Removes every template of a person and returns how many there were. Only that person's
+	 * templates are touched: mapped ones get flagged, the ones in memory are dropped.
+	 */
+	public synchronized int remove(int label) {
+		Templates t = templates;
+		int removed = 0;
+
+		boolean[] mappedRemoved = t.mappedRemoved;
+		for (int i = 0; i < t.mappedCount; i++) {
+			if (t.mappedLabels.get(i) == label && (mappedRemoved == null || !mappedRemoved[i])) {
+				if (mappedRemoved == t.mappedRemoved) {
+					// copy on write, running predictions keep their snapshot
+					mappedRemoved = new boolean[t.mappedCount];
+					if (t.mappedRemoved != null) {
+						System.arraycopy(t.mappedRemoved, 0, mappedRemoved, 0, t.mappedCount);
+					}
+				}
+				mappedRemoved[i] = true;
+				removed++;
+			}
+		}
+
+		int keep = 0;
+		for (int i = 0; i < t.count; i++) {
+			if (t.labels[i] != label) {
+				keep++;
+			}
+		}
+		float[] histograms = t.histograms;
+		int[] labels = t.labels;
+		if (keep < t.count) {
+			histograms = new float[Math.max(8, keep) * dimension];
+			labels = new int[Math.max(8, keep)];
+			for (int i = 0, j = 0; i < t.count; i++) {
+				if (t.labels[i] != label) {
+					System.arraycopy(t.histograms, i * dimension, histograms, j * dimension, dimension);
+					labels[j++] = t.labels[i];
+				}
+			}
+			removed += t.count - keep;
+		}
+
+		if (removed > 0) {
+			templates = new Templates(t.mappedHistograms, t.mappedLabels, t.mappedCount, mappedRemoved, histograms, labels, keep);
+			layoutVersion++;
+		}
+		return removed;
+	}
+
+	public synchronized void clear() {
+		templates = Templates.EMPTY;
+		layoutVersion++;
+	}
+
+	public void predict(ByteBuffer gray, int width, int height, int stride, Prediction result) {
+		Scratch s = scratch.get();
+		s.extractor.extract(gray, width, height, stride, s.query, 0);
+		predict(s.query, 0, result);
+	}
+
+	public void predict(byte[] gray, int offset, int width, int height, int stride, Prediction result) {
+		Scratch s = scratch.get();
+		s.extractor.extract(gray, offset, width, height, stride, s.query, 0);
+		predict(s.query, 0, result);
+	}
+
+	// Nearest neighbour over all templates, same rule as LBPH::predict: closest wins, as long as it's under the threshold.
+	// Comparisons are abandoned as soon as they can't win any more (see ChiSquare), which doesn't change the answer.
+	public void predict(float[] query, int queryOffset, Prediction result) {
+		result.reset();
+		Templates t = templates;
+		Scratch s = scratch.get();
+		FloatBuffer mapped = s.view(t.mappedHistograms);
+		for (int i = 0; i < t.mappedCount; i++) {
+			if (t.mappedRemoved != null && t.mappedRemoved[i]) {
+				continue;
+			}
+			double bound = Math.min(result.distance, threshold);
+			double distance = ChiSquare.distance(mapped, i * dimension, query, queryOffset, dimension, bound, s.block);
+			if (distance < result.distance && distance < threshold) {
+				result.distance = distance;
+				result.label = t.mappedLabels.get(i);
+			}
+		}
+		for (int i = 0; i < t.count; i++) {
+			double bound = Math.min(result.distance, threshold);
+			double distance = ChiSquare.distance(t.histograms, i * dimension, query, queryOffset, dimension, bound);
+			if (distance < result.distance && distance < threshold) {
+				result.distance = distance;
+				result.label = t.labels[i];
+			}
+		}
+	}
+
+	/**
+	 * Chi-square distance from template i to the query, stopping early once it reaches bound
+	 * (see ChiSquare). Infinite for removed templates.
+	 */
+	public double distance(int index, float[] query, int queryOffset, double bound) {
+		Templates t = templates;
+		if (index < 0 || index >= t.size()) {
+			throw new IndexOutOfBoundsException("No template " + index);
+		}
+		if (index < t.mappedCount) {
+			if (t.mappedRemoved != null && t.mappedRemoved[index]) {
+				return Double.POSITIVE_INFINITY;
+			}
+			Scratch s = scratch.get();
+			return ChiSquare.distance(s.view(t.mappedHistograms), index * dimension, query, queryOffset, dimension, bound, s.block);
+		}
+		return ChiSquare.distance(t.histograms, (index - t.mappedCount) * dimension, query, queryOffset, dimension, bound);
+	}
+
+	/**
+	 * 1:1 verification: scores the query against the claimed person's templates only, so the cost
+	 * doesn't depend on how many other people are enrolled. result.label is the claimed label if the
+	 * closest of them is under the given threshold, UNKNOWN otherwise; result.distance is always that
+	 * closest distance (infinite if the person has no templates).
+	 */
+	public boolean verify(ByteBuffer gray, int width, int height, int stride, int label, double threshold, Prediction result) {
+		Scratch s = scratch.get();
+		s.extractor.extract(gray, width, height, stride, s.query, 0);
+		return verify(s.query, 0, label, threshold, result);
+	}
+
+	public boolean verify(byte[] gray, int offset, int width, int height, int stride, int label, double threshold, Prediction result) {
+		Scratch s = scratch.get();
+		s.extractor.extract(gray, offset, width, height, stride, s.query, 0);
+		return verify(s.query, 0, label, threshold, result);
+	}
+
+	public boolean verify(float[] query, int queryOffset, int label, double threshold, Prediction result) {
+		result.reset();
+		Templates t = templates;
+		int[] indices = t.indicesOf(label);
+		Scratch s = scratch.get();
+		FloatBuffer mapped = s.view(t.mappedHistograms);
+		double closest = Double.POSITIVE_INFINITY;
+		for (int n = 0; n < indices.length; n++) {
+			int i = indices[n];
+			double distance;
+			if (i < t.mappedCount) {
+				distance = ChiSquare.distance(mapped, i * dimension, query, queryOffset, dimension, closest, s.block);
+			} else {
+				distance = ChiSquare.distance(t.histograms, (i - t.mappedCount) * dimension, query, queryOffset, dimension, closest);
+			}
+			if (distance < closest) {
+				closest = distance;
+			}
+		}
+		result.distance = closest;
+		if (closest < threshold) {
+			result.label = label;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Saves the templates in the XML layout LBPH::save uses, so the file can still be read by opencv.
+	 */
+	public void save(String filename) throws IOException {
+		int count = 0;
+		for (int i = 0; i < size(); i++) {
+			if (!isRemoved(i)) {
+				count++;
+			}
+		}
+		float[] histograms = new float[count * dimension];
+		int[] labels = new int[count];
+		for (int i = 0, j = 0; j < count; i++) {
+			if (!isRemoved(i)) {
+				template(i, histograms, j * dimension);
+				labels[j++] = label(i);
+			}
+		}
+		LbphXml.write(filename, radius, neighbors, gridX, gridY, histograms, labels, count, dimension);
+	}
+
+	/**
+	 * Reads a recognizer written by save() or by opencv's LBPH::save. This parses every histogram
+	 * from text, so it is only meant for importing old models; see GalleryFile for the fast format.
+	 */
+	public static LbphRecognizer load(String filename, double threshold) throws IOException {
+		LbphXml xml = LbphXml.read(filename);
+		LbphRecognizer recognizer = new LbphRecognizer(xml.radius, xml.neighbors, xml.gridX, xml.gridY, threshold);
+		if (xml.dimension != recognizer.dimension) {
+			throw new IOException("Histograms in " + filename + " have " + xml.dimension + " bins, expected " + recognizer.dimension);
+		}
+		recognizer.templates = Templates.EMPTY.withArrays(xml.histograms, xml.labels, xml.labels.length);
+		return recognizer;
+	}
+
+	private static final int[] NO_INDICES = new int[0];
+
+	private static final class Templates {
+		static final Templates EMPTY = new Templates(null, null, 0, null, new float[0], new int[0], 0);
+
+		// read only, straight from a mapped file
+		final FloatBuffer mappedHistograms;
+		final IntBuffer mappedLabels;
+		final int mappedCount;
+		// null until one of the mapped templates is removed
+		final boolean[] mappedRemoved;
+
+		// added in memory
+		final float[] histograms;
+		final int[] labels;
+		final int count;
+
+		Templates(FloatBuffer mappedHistograms, IntBuffer mappedLabels, int mappedCount, boolean[] mappedRemoved,
+				float[] histograms, int[] labels, int count) {
+			this.mappedHistograms = mappedHistograms;
+			this.mappedLabels = mappedLabels;
+			this.mappedCount = mappedCount;
+			this.mappedRemoved = mappedRemoved;
+			this.histograms = histograms;
+			this.labels = labels;
+			this.count = count;
+		}
+
+		// label -> template indices (removed ones left out), built on first use. Snapshots never
+		// change, so a racing second build just produces the same map.
+		private volatile Map<Integer, int[]> index;
+
+		int[] indicesOf(int label) {
+			Map<Integer, int[]> map = index;
+			if (map == null) {
+				map = buildIndex();
+				index = map;
+			}
+			int[] indices = map.get(label);
+			return indices != null ? indices : NO_INDICES;
+		}
+
+		private Map<Integer, int[]> buildIndex() {
+			Map<Integer, List<Integer>> lists = new HashMap<Integer, List<Integer>>();
+			for (int i = 0; i < size(); i++) {
+				if (removed(i)) {
+					continue;
+				}
+				List<Integer> list = lists.get(labelAt(i));
+				if (list == null) {
+					list = new ArrayList<Integer>();
+					lists.put(labelAt(i), list);
+				}
+				list.add(i);
+			}
+			Map<Integer, int[]> map = new HashMap<Integer, int[]>();
+			for (Map.Entry<Integer, List<Integer>> entry : lists.entrySet()) {
+				int[] indices = new int[entry.getValue().size()];
+				for (int n = 0; n < indices.length; n++) {
+					indices[n] = entry.getValue().get(n);
+				}
+				map.put(entry.getKey(), indices);
+			}
+			return map;
+		}
+
+		private boolean removed(int i) {
+			return i < mappedCount && mappedRemoved != null && mappedRemoved[i];
+		}
+
+		private int labelAt(int i) {
+			return i < mappedCount ? mappedLabels.get(i) : labels[i - mappedCount];
+		}
+
+		Templates withArrays(float[] histograms, int[] labels, int count) {
+			return new Templates(mappedHistograms, mappedLabels, mappedCount, mappedRemoved, histograms, labels, count);
+		}
+
+		int size() {
+			return mappedCount + count;
+		}
+	}
+
+	private final class Scratch {
+		final LbphExtractor extractor;
+		final float[] query;
+
+		final float[] block = new float[ChiSquare.BLOCK];
+		// this thread's view of the mapped histograms, ChiSquare moves its position
+		private FloatBuffer mappedSource;
+		private FloatBuffer mappedView;
+
+		Scratch(LbphExtractor extractor) {
+			this.extractor = extractor;
+			this.query = new float[dimension];
+		}
+
+		FloatBuffer view(FloatBuffer mapped) {
+			if (mapped != mappedSource) {
+				mappedSource = mapped;
+				mappedView = mapped == null ? null : mapped.duplicate();
+			}
+			return mappedView;
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package com.googlecode.javacv.facepreview.recognition;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+// Reads and writes the opencv FileStorage XML that LBPH::save/load use:
+//   <opencv_storage>
+//     <radius>, <neighbors>, <grid_x>, <grid_y>
+//     <histograms> one <_ type_id="opencv-matrix"> (1 x dimension, dt f) per template </histograms>
+//     <labels type_id="opencv-matrix"> (count x 1, dt i) </labels>
+//   </opencv_storage>
+// Uses SAX, which is available both on Android and on a desktop JVM.
+final class LbphXml {
+
+	int radius;
+	int neighbors;
+	int gridX;
+	int gridY;
+	int dimension = -1;
+	float[] histograms;
+	int[] labels;
+
+	private LbphXml() {}
+
+	static void write(String filename, int radius, int neighbors, int gridX, int gridY,
+			float[] histograms, int[] labels, int count, int dimension) throws IOException {
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(filename)));
+		try {
+			out.println("<?xml version=\"1.0\"?>");
+			out.println("<opencv_storage>");
+			out.println("<radius>" + radius + "</radius>");
+			out.println("<neighbors>" + neighbors + "</neighbors>");
+			out.println("<grid_x>" + gridX + "</grid_x>");
+			out.println("<grid_y>" + gridY + "</grid_y>");
+			out.println("<histograms>");
+			for (int i = 0; i < count; i++) {
+				out.println("  <_ type_id=\"opencv-matrix\">");
+				out.println("    <rows>1</rows>");
+				out.println("    <cols>" + dimension + "</cols>");
+				out.println("    <dt>f</dt>");
+				out.print("    <data>");
+				for (int j = 0; j < dimension; j++) {
+					if (j % 8 == 0) {
+						out.println();
+						out.print("     ");
+					}
+					out.print(' ');
+					out.print(histograms[i * dimension + j]);
+				}
+				out.println("</data></_>");
+			}
+			out.println("</histograms>");
+			out.println("<labels type_id=\"opencv-matrix\">");
+			out.println("  <rows>" + count + "</rows>");
+			out.println("  <cols>1</cols>");
+			out.println("  <dt>i</dt>");
+			out.print("  <data>");
+			for (int i = 0; i < count; i++) {
+				out.print(' ');
+				out.print(labels[i]);
+			}
+			out.println("</data></labels>");
+			out.println("</opencv_storage>");
+		} finally {
+			out.close();
+		}
+		if (out.checkError()) {
+			throw new IOException("Could not write " + filename);
+		}
+	}
+
+	static LbphXml read(String filename) throws IOException {
+		final LbphXml result = new LbphXml();
+		final Handler handler = new Handler(result);
+		try {
+			SAXParserFactory.newInstance().newSAXParser().parse(new File(filename), handler);
+		} catch (SAXException e) {
+			throw new IOException("Malformed recognizer file " + filename + ": " + e.getMessage());
+		} catch (ParserConfigurationException e) {
+			throw new IOException(e.toString());
+		}
+		if (result.labels == null) {
+			throw new IOException("No labels in " + filename);
+		}
+		if (handler.histogramCount != result.labels.length) {
+			throw new IOException(filename + " has " + handler.histogramCount + " histograms but " + result.labels.length + " labels");
+		}
+		if (result.dimension < 0) {
+			result.dimension = result.gridX * result.gridY * (1 << result.neighbors);
+			result.histograms = new float[0];
+		}
+		return result;
+	}
+
+	private static final class Handler extends DefaultHandler {
+		private final LbphXml result;
+		private final StringBuilder text = new StringBuilder();
+		private boolean inHistograms = false;
+		private boolean inLabels = false;
+		int histogramCount = 0;
+
+		Handler(LbphXml result) {
+			this.result = result;
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			text.setLength(0);
+			if (qName.equals("histograms")) {
+				inHistograms = true;
+			} else if (qName.equals("labels")) {
+				inLabels = true;
+			}
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			text.append(ch, start, length);
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			if (qName.equals("histograms")) {
+				inHistograms = false;
+			} else if (qName.equals("labels")) {
+				inLabels = false;
+			} else if (qName.equals("data") && inHistograms) {
+				addHistogram();
+			} else if (qName.equals("data") && inLabels) {
+				String[] tokens = tokens();
+				result.labels = new int[tokens.length];
+				for (int i = 0; i < tokens.length; i++) {
+					result.labels[i] = Integer.parseInt(tokens[i]);
+				}
+			} else if (!inHistograms && !inLabels) {
+				if (qName.equals("radius")) {
+					result.radius = parseInt();
+				} else if (qName.equals("neighbors")) {
+					result.neighbors = parseInt();
+				} else if (qName.equals("grid_x")) {
+					result.gridX = parseInt();
+				} else if (qName.equals("grid_y")) {
+					result.gridY = parseInt();
+				}
+			}
+			text.setLength(0);
+		}
+
+		private void addHistogram() throws SAXException {
+			String[] tokens = tokens();
+			if (result.dimension < 0) {
+				result.dimension = tokens.length;
+				result.histograms = new float[8 * tokens.length];
+			} else if (result.dimension != tokens.length) {
+				throw new SAXException("Histograms have different lengths");
+			}
+			int offset = histogramCount * result.dimension;
+			if (offset + result.dimension > result.histograms.length) {
+				float[] grown = new float[result.histograms.length * 2];
+				System.arraycopy(result.histograms, 0, grown, 0, offset);
+				result.histograms = grown;
+			}
+			for (int i = 0; i < tokens.length; i++) {
+				result.histograms[offset + i] = Float.parseFloat(tokens[i]);
+			}
+			histogramCount++;
+		}
+
+		private String[] tokens() {
+			String trimmed = text.toString().trim();
+			return trimmed.length() == 0 ? new String[0] : trimmed.split("\\s+");
+		}
+
+		private int parseInt() throws SAXException {
+			try {
+				return Integer.parseInt(text.toString().trim());
+			} catch (NumberFormatException e) {
+				throw new SAXException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package com.googlecode.javacv.facepreview.recognition;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// Approximate nearest neighbour search over an LbphRecognizer's templates with locality sensitive
+// hashing. Each histogram is reduced with a RandomProjection and centered (like BioHash). Then each
+// of `tables` hash tables keys it by the signs of `bits` random hyperplanes (SimHash). A query only
+// looks at the templates that share a bucket with it in some table, optionally also the buckets one
+// bit away (`probes`), and re-ranks those by the real chi-square distance.
+// More tables and probes find the true neighbour more often; more bits make buckets smaller.
+// The tables follow the recognizer by themselves: appended templates are hashed on the next
+// query, anything else (removal, clear) rebuilds them.
+public class LshIndex {
+
+	private final LbphRecognizer gallery;
+	private final RandomProjection projection;
+	private final int tables;
+	private final int bits;
+	private final int probes;
+	// tables * bits hyperplanes in the projected space
+	private final float[] hyperplanes;
+	private volatile Tables current;
+
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	/**
+	 * probes is 0 (only the query's own bucket) or 1 (also every bucket one bit away).
+	 */
+	public LshIndex(LbphRecognizer gallery, int dimension, int tables, int bits, int probes, long seed) {
+		if (bits < 1 || bits > 30 || probes < 0 || probes > 1) {
+			throw new IllegalArgumentException("bits must be 1 to 30, probes 0 or 1");
+		}
+		this.gallery = gallery;
+		this.projection = new RandomProjection(gallery.dimension(), dimension, seed);
+		this.tables = tables;
+		this.bits = bits;
+		this.probes = probes;
+		this.hyperplanes = new float[tables * bits * dimension];
+		Random random = new Random(seed + 1);
+		for (int i = 0; i < hyperplanes.length; i++) {
+			hyperplanes[i] = (float) random.nextGaussian();
+		}
+	}
+
+	public int tables() { return tables; }
+	public int bits() { return bits; }
+	public int probes() { return probes; }
+
+	/**
+	 * Same contract as LbphRecognizer.predict(), except that the true nearest neighbour can be
+	 * missed. Returns the number of templates whose real distance was computed.
+	 */
+	public int predict(float[] histogram, int offset, Prediction result) {
+		result.reset();
+		Tables t = upToDate();
+		Scratch s = scratch.get();
+		s.startQuery(t.count);
+		hash(t.center, histogram, offset, s.projected, s.keys, 0);
+
+		int candidates = 0;
+		double threshold = gallery.threshold();
+		for (int table = 0; table < tables; table++) {
+			int key = s.keys[table];
+			candidates += probe(t, table, key, histogram, offset, threshold, s, result);
+			for (int bit = 0; probes > 0 && bit < bits; bit++) {
+				candidates += probe(t, table, key ^ (1 << bit), histogram, offset, threshold, s, result);
+			}
+		}
+		return candidates;
+	}
+
+	private int probe(Tables t, int table, int key, float[] histogram, int offset, double threshold, Scratch s, Prediction result) {
+		long[] entries = t.entries[table];
+		int candidates = 0;
+		// entries are sorted by key, then by template index
+		for (int i = lowerBound(entries, (long) key << 32); i < entries.length && (int) (entries[i] >>> 32) == key; i++) {
+			int item = (int) entries[i];
+			if (!s.visit(item)) {
+				continue;
+			}
+			candidates++;
+			double distance = gallery.distance(item, histogram, offset, Math.min(result.distance, threshold));
+			// ties go to the lower index, like in a scan
+			if ((distance < result.distance || (distance == result.distance && item < s.bestItem)) && distance < threshold) {
+				result.distance = distance;
+				result.label = gallery.label(item);
+				s.bestItem = item;
+			}
+		}
+		return candidates;
+	}
+
+	private static int lowerBound(long[] entries, long value) {
+		int lo = 0;
+		int hi = entries.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (entries[mid] < value) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private void hash(float[] center, float[] histogram, int offset, float[] projected, int[] keys, int keysOffset) {
+		int dimension = projection.outputDimension();
+		projection.project(histogram, offset, projected, 0);
+		for (int j = 0; j < dimension; j++) {
+			projected[j] -= center[j];
+		}
+		for (int table = 0; table < tables; table++) {
+			int key = 0;
+			for (int bit = 0; bit < bits; bit++) {
+				int row = (table * bits + bit) * dimension;
+				float dot = 0;
+				for (int j = 0; j < dimension; j++) {
+					dot += hyperplanes[row + j] * projected[j];
+				}
+				if (dot > 0) {
+					key |= 1 << bit;
+				}
+			}
+			keys[keysOffset + table] = key;
+		}
+	}
+
+	// Brings the tables up to date with the recognizer
+	private Tables upToDate() {
+		Tables t = current;
+		if (t != null && t.version == gallery.layoutVersion() && t.count == gallery.size()) {
+			return t;
+		}
+		synchronized (this) {
+			t = current;
+			int version = gallery.layoutVersion();
+			int count = gallery.size();
+			if (t != null && t.version == version && t.count == count) {
+				return t;
+			}
+			float[] center;
+			int[] keys = new int[count * tables];
+			int hashed = 0;
+			if (t != null && t.version == version && t.count < count) {
+				// only appends since the last time, keep the old keys (and center, which they depend on)
+				center = t.center;
+				System.arraycopy(t.keys, 0, keys, 0, t.count * tables);
+				hashed = t.count;
+			} else {
+				center = BioHash.mean(projection, gallery);
+			}
+			float[] histogram = new float[gallery.dimension()];
+			float[] projected = new float[projection.outputDimension()];
+			for (int i = hashed; i < count; i++) {
+				gallery.template(i, histogram, 0);
+				hash(center, histogram, 0, projected, keys, i * tables);
+			}
+
+			long[][] entries = new long[tables][];
+			for (int table = 0; table < tables; table++) {
+				long[] sorted = new long[count];
+				int live = 0;
+				for (int i = 0; i < count; i++) {
+					if (!gallery.isRemoved(i)) {
+						sorted[live++] = (long) keys[i * tables + table] << 32 | i;
+					}
+				}
+				entries[table] = Arrays.copyOf(sorted, live);
+				Arrays.sort(entries[table]);
+			}
+			t = new Tables(version, count, center, keys, entries);
+			current = t;
+			return t;
+		}
+	}
+
+	private static final class Tables {
+		final int version;
+		final int count;
+		final float[] center;
+		// keys[i*tables + table]
+		final int[] keys;
+		// per table, sorted (key << 32 | template index)
+		final long[][] entries;
+
+		Tables(int version, int count, float[] center, int[] keys, long[][] entries) {
+			this.version = version;
+			this.count = count;
+			this.center = center;
+			this.keys = keys;
+			this.entries = entries;
+		}
+	}
+
+	private final class Scratch {
+		final float[] projected = new float[projection.outputDimension()];
+		final int[] keys = new int[tables];
+		// seen[i] == query means template i was already looked at for this query
+		int[] seen = new int[0];
+		int query = 0;
+		int bestItem;
+
+		void startQuery(int count) {
+			if (seen.length < count) {
+				seen = new int[Math.max(count, seen.length * 2)];
+			}
+			query++;
+			if (query == 0) {
+				// wrapped around, old stamps could collide
+				Arrays.fill(seen, 0);
+				query = 1;
+			}
+			bestItem = Integer.MAX_VALUE;
+		}
+
+		boolean visit(int item) {
+			if (seen[item] == query) {
+				return false;
+			}
+			seen[item] = query;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package com.googlecode.javacv.facepreview.recognition;
+
+import java.nio.ByteBuffer;
+
+// A TemplateIndex whose templates can be taken out and put back in the form it keeps them in
+// (a projection, a code...), so that form is what gets saved and not the LBPH histogram it was
+// made from. See TemplateFile and GalleryJournal. Templates are numbered 0 ... size()-1 in the
+// order they were added, and removing a person renumbers the rest.
+public interface PackedIndex extends TemplateIndex {
+
+	// bytes per packed template, a multiple of 4
+	int templateBytes();
+
+	// Puts the template add() would keep for this histogram at template's position, and advances it
+	void pack(float[] histogram, int offset, ByteBuffer template);
+
+	// Adds a template from pack() or packed(), read from template's position
+	void addPacked(ByteBuffer template, int label);
+
+	// Puts template index at template's position
+	void packed(int index, ByteBuffer template);
+
+	int label(int index);
+
+	// number of templates a person has
+	int count(int label);
+
+	// verify() for a packed template
+	boolean verifyPacked(ByteBuffer template, int label, double threshold, Prediction result);
+}
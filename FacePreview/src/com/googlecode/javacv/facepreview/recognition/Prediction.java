@@ -0,0 +1,20 @@
+package com.googlecode.javacv.facepreview.recognition;
+
+// Result holder for LbphRecognizer.predict(). Callers keep one around and reuse it,
+// so predicting doesn't allocate.
+public final class Prediction {
+	public static final int UNKNOWN = -1;
+
+	public int label = UNKNOWN;
+	public double distance = Double.MAX_VALUE;
+
+	public void reset() {
+		label = UNKNOWN;
+		distance = Double.MAX_VALUE;
+	}
+
+	@Override
+	public String toString() {
+		return "Prediction(" + label + ", " + distance + ")";
+	}
+}
@@ -0,0 +1,229 @@
+package com.googlecode.javacv.facepreview.recognition;
+
+import java.nio.ByteBuffer;
+
+// Keeps only the random projection of each template (see RandomProjection) and matches with
+// squared euclidean distance in the projected space. With 256 dimensions a template takes 1 KB
+// instead of 64 KB, and a comparison is 256 multiply-adds instead of 16k chi-square terms.
+// Same copy-on-write scheme as LbphRecognizer: writers are synchronized, readers use a snapshot.
+// The projections are also what FacePredictor saves in this mode (packed as big endian floats).
+public class ProjectedIndex implements PackedIndex {
+
+	private final RandomProjection projection;
+	private final double threshold;
+	private final int dimension;
+	private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	public ProjectedIndex(RandomProjection projection, double threshold) {
+		this.projection = projection;
+		this.threshold = threshold;
+		this.dimension = projection.outputDimension();
+	}
+
+	public RandomProjection projection() {
+		return projection;
+	}
+
+	public int dimension() {
+		return projection.inputDimension();
+	}
+
+	public int size() {
+		return snapshot.count;
+	}
+
+	// heap used per stored template
+	public int bytesPerTemplate() {
+		return 4 * dimension + 4;
+	}
+
+	public int templateBytes() {
+		return 4 * dimension;
+	}
+
+	public synchronized void add(float[] histogram, int offset, int label) {
+		Snapshot s = withRoom();
+		projection.project(histogram, offset, s.templates, s.count * dimension);
+		s.labels[s.count] = label;
+		snapshot = new Snapshot(s.templates, s.labels, s.count + 1);
+	}
+
+	public synchronized void addPacked(ByteBuffer template, int label) {
+		Snapshot s = withRoom();
+		int start = s.count * dimension;
+		for (int j = 0; j < dimension; j++) {
+			s.templates[start + j] = template.getFloat();
+		}
+		s.labels[s.count] = label;
+		snapshot = new Snapshot(s.templates, s.labels, s.count + 1);
+	}
+
+	// The current templates with room for one more. Readers never look past count, so appending
+	// in place doesn't disturb them.
+	private Snapshot withRoom() {
+		Snapshot s = snapshot;
+		if (s.count < s.labels.length) {
+			return s;
+		}
+		int capacity = Math.max(8, s.labels.length * 2);
+		float[] templates = new float[capacity * dimension];
+		int[] labels = new int[capacity];
+		System.arraycopy(s.templates, 0, templates, 0, s.count * dimension);
+		System.arraycopy(s.labels, 0, labels, 0, s.count);
+		return new Snapshot(templates, labels, s.count);
+	}
+
+	public void pack(float[] histogram, int offset, ByteBuffer template) {
+		float[] q = scratch.get().query;
+		projection.project(histogram, offset, q, 0);
+		for (int j = 0; j < dimension; j++) {
+			template.putFloat(q[j]);
+		}
+	}
+
+	public void packed(int index, ByteBuffer template) {
+		Snapshot s = snapshot;
+		checkIndex(s, index);
+		for (int j = 0; j < dimension; j++) {
+			template.putFloat(s.templates[index * dimension + j]);
+		}
+	}
+
+	public int label(int index) {
+		Snapshot s = snapshot;
+		checkIndex(s, index);
+		return s.labels[index];
+	}
+
+	public int count(int label) {
+		Snapshot s = snapshot;
+		int count = 0;
+		for (int i = 0; i < s.count; i++) {
+			if (s.labels[i] == label) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static void checkIndex(Snapshot s, int index) {
+		if (index < 0 || index >= s.count) {
+			throw new IndexOutOfBoundsException("No template " + index);
+		}
+	}
+
+	public synchronized int remove(int label) {
+		Snapshot s = snapshot;
+		float[] templates = new float[Math.max(8, s.count) * dimension];
+		int[] labels = new int[Math.max(8, s.count)];
+		int keep = 0;
+		for (int i = 0; i < s.count; i++) {
+			if (s.labels[i] != label) {
+				System.arraycopy(s.templates, i * dimension, templates, keep * dimension, dimension);
+				labels[keep++] = s.labels[i];
+			}
+		}
+		if (keep < s.count) {
+			snapshot = new Snapshot(templates, labels, keep);
+		}
+		return s.count - keep;
+	}
+
+	public synchronized void clear() {
+		snapshot = Snapshot.EMPTY;
+	}
+
+	public void predict(float[] histogram, int offset, Prediction result) {
+		result.reset();
+		float[] q = scratch.get().query;
+		projection.project(histogram, offset, q, 0);
+		Snapshot s = snapshot;
+		for (int i = 0; i < s.count; i++) {
+			double distance = squaredDistance(s.templates, i * dimension, q, Math.min(result.distance, threshold));
+			if (distance < result.distance && distance < threshold) {
+				result.distance = distance;
+				result.label = s.labels[i];
+			}
+		}
+	}
+
+	public boolean verify(float[] histogram, int offset, int label, double threshold, Prediction result) {
+		float[] q = scratch.get().query;
+		projection.project(histogram, offset, q, 0);
+		return verify(q, label, threshold, result);
+	}
+
+	public boolean verifyPacked(ByteBuffer template, int label, double threshold, Prediction result) {
+		float[] q = scratch.get().query;
+		for (int j = 0; j < dimension; j++) {
+			q[j] = template.getFloat();
+		}
+		return verify(q, label, threshold, result);
+	}
+
+	private boolean verify(float[] q, int label, double threshold, Prediction result) {
+		result.reset();
+		Snapshot s = snapshot;
+		double closest = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < s.count; i++) {
+			if (s.labels[i] == label) {
+				closest = Math.min(closest, squaredDistance(s.templates, i * dimension, q, closest));
+			}
+		}
+		result.distance = closest;
+		if (closest < threshold) {
+			result.label = label;
+			return true;
+		}
+		return false;
+	}
+
+	// may stop early once bound is reached, like ChiSquare.distance
+	private double squaredDistance(float[] templates, int offset, float[] q, double bound) {
+		float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = 0;
+		for (; i + 3 < dimension; i += 4) {
+			float d0 = templates[offset + i] - q[i];
+			float d1 = templates[offset + i + 1] - q[i + 1];
+			float d2 = templates[offset + i + 2] - q[i + 2];
+			float d3 = templates[offset + i + 3] - q[i + 3];
+			s0 += d0 * d0;
+			s1 += d1 * d1;
+			s2 += d2 * d2;
+			s3 += d3 * d3;
+			if ((i & 63) == 60 && (s0 + s1) + (s2 + s3) >= bound) {
+				return (s0 + s1) + (s2 + s3);
+			}
+		}
+		for (; i < dimension; i++) {
+			float d = templates[offset + i] - q[i];
+			s0 += d * d;
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	private final class Scratch {
+		final float[] query = new float[dimension];
+	}
+
+	private static final class Snapshot {
+		static final Snapshot EMPTY = new Snapshot(new float[0], new int[0], 0);
+
+		final float[] templates;
+		final int[] labels;
+		final int count;
+
+		Snapshot(float[] templates, int[] labels, int count) {
+			this.templates = templates;
+			this.labels = labels;
+			this.count = count;
+		}
+	}
+}
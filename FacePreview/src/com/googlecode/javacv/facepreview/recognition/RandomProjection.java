@@ -0,0 +1,77 @@
+package com.googlecode.javacv.facepreview.recognition;
+
+import java.util.Random;
+
+// Seeded sparse random projection of an LBPH histogram down to a few hundred dimensions
+// (see papers/lbph and random projection.pdf).
+// Every bin is first square rooted, so euclidean distance between the results approximates the
+// Hellinger distance between histograms, which ranks faces much like chi-square does. Each bin then
+// gets added to NON_ZEROS random outputs with random signs (a sparse Johnson-Lindenstrauss matrix),
+// which keeps distances but costs only NON_ZEROS additions per non-empty bin, not outputDimension.
+// The matrix is generated from the seed with java.util.Random, so it is the same on every device.
+public final class RandomProjection {
+	public static final int NON_ZEROS = 4;
+
+	private final int inputDimension;
+	private final int outputDimension;
+	private final long seed;
+	private final float scale;
+	// targets[i*NON_ZEROS + k] = output << 1 | (1 if negative)
+	private final int[] targets;
+
+	public RandomProjection(int inputDimension, int outputDimension, long seed) {
+		if (outputDimension < NON_ZEROS) {
+			throw new IllegalArgumentException("Need at least " + NON_ZEROS + " output dimensions");
+		}
+		this.inputDimension = inputDimension;
+		this.outputDimension = outputDimension;
+		this.seed = seed;
+		this.scale = (float) (1 / Math.sqrt(NON_ZEROS));
+		this.targets = new int[inputDimension * NON_ZEROS];
+
+		Random random = new Random(seed);
+		for (int i = 0; i < inputDimension; i++) {
+			for (int k = 0; k < NON_ZEROS; k++) {
+				int output;
+				boolean taken;
+				do {
+					// distinct outputs per bin
+					output = random.nextInt(outputDimension);
+					taken = false;
+					for (int j = 0; j < k; j++) {
+						taken |= (targets[i * NON_ZEROS + j] >> 1) == output;
+					}
+				} while (taken);
+				targets[i * NON_ZEROS + k] = output << 1 | (random.nextBoolean() ? 1 : 0);
+			}
+		}
+	}
+
+	public int inputDimension() { return inputDimension; }
+	public int outputDimension() { return outputDimension; }
+	public long seed() { return seed; }
+
+	// Overwrites out[outOffset ... outOffset+outputDimension()]
+	public void project(float[] histogram, int offset, float[] out, int outOffset) {
+		for (int j = 0; j < outputDimension; j++) {
+			out[outOffset + j] = 0;
+		}
+		for (int i = 0; i < inputDimension; i++) {
+			float value = histogram[offset + i];
+			if (value <= 0) {
+				// most bins of a face are empty
+				continue;
+			}
+			value = (float) Math.sqrt(value) * scale;
+			int base = i * NON_ZEROS;
+			for (int k = 0; k < NON_ZEROS; k++) {
+				int target = targets[base + k];
+				if ((target & 1) == 0) {
+					out[outOffset + (target >> 1)] += value;
+				} else {
+					out[outOffset + (target >> 1)] -= value;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package com.googlecode.javacv.facepreview.recognition;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+// Packed binary file of the templates of a PackedIndex: what FacePredictor saves in PROJECTED and
+// BIOHASH mode instead of a GalleryFile, so no LBPH histogram is written. The file has what it
+// takes to rebuild the index: the LBPH parameters the templates were made from, the projection's
+// seed and, for BioHash codes, the user's token (seed) and the center they were made with.
+// Layout (big endian):
+//   int magic "LBPT", int version, int kind, int radius, int neighbors, int gridX, int gridY,
+//   int projected dimension, long projection seed, int count, long crc32 of the payload
+//   payload: BIOHASH only: int bits, long seed, float[projected dimension] center
+//            then int[count] labels, count packed templates (PackedIndex.packed())
+// The files are small (1 KB or 32 bytes per template), so unlike a GalleryFile they are read completely.
+public final class TemplateFile {
+	public static final int MAGIC = 0x4C425054;
+	public static final int VERSION = 1;
+	// kinds of index
+	private static final int PROJECTED = 1;
+	private static final int BIOHASH = 2;
+	public static final int HEADER_BYTES = 8 * 4 + 8 + 4 + 8;
+
+	private TemplateFile() {}
+
+	// True if file starts like a template file, as opposed to a GalleryFile
+	public static boolean isTemplateFile(File file) throws IOException {
+		if (file.length() < 4) {
+			return false;
+		}
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			return in.readInt() == MAGIC;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes index, whose templates were made from histograms of lbph, like GalleryFile.write():
+	 * to a temporary file that is read back and then renamed. If this throws, file is unchanged.
+	 */
+	public static void write(PackedIndex index, LbphRecognizer lbph, File file) throws IOException {
+		int kind;
+		RandomProjection projection;
+		BioHash hash = null;
+		if (index instanceof ProjectedIndex) {
+			kind = PROJECTED;
+			projection = ((ProjectedIndex) index).projection();
+		} else if (index instanceof BioHashIndex) {
+			kind = BIOHASH;
+			hash = ((BioHashIndex) index).hash();
+			projection = hash.projection();
+		} else {
+			throw new IllegalArgumentException("Can't save a " + index.getClass().getSimpleName());
+		}
+		int count = index.size();
+		ByteBuffer payload = ByteBuffer.allocate(parameterBytes(kind, projection.outputDimension()) + count * (4 + index.templateBytes()));
+		if (hash != null) {
+			payload.putInt(hash.bits());
+			payload.putLong(hash.seed());
+			for (float value : hash.center()) {
+				payload.putFloat(value);
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			payload.putInt(index.label(i));
+		}
+		for (int i = 0; i < count; i++) {
+			index.packed(i, payload);
+		}
+		CRC32 checksum = new CRC32();
+		checksum.update(payload.array());
+
+		File temporary = new File(file.getAbsolutePath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temporary);
+		try {
+			DataOutputStream data = new DataOutputStream(out);
+			data.writeInt(MAGIC);
+			data.writeInt(VERSION);
+			data.writeInt(kind);
+			data.writeInt(lbph.radius());
+			data.writeInt(lbph.neighbors());
+			data.writeInt(lbph.gridX());
+			data.writeInt(lbph.gridY());
+			data.writeInt(projection.outputDimension());
+			data.writeLong(projection.seed());
+			data.writeInt(count);
+			data.writeLong(checksum.getValue());
+			data.write(payload.array());
+			data.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		try {
+			read(temporary, lbph, Double.MAX_VALUE);
+		} catch (IOException e) {
+			temporary.delete();
+			throw new IOException(temporary + " does not match what was written: " + e.getMessage());
+		}
+		if (!temporary.renameTo(file)) {
+			temporary.delete();
+			throw new IOException("Could not rename " + temporary + " to " + file);
+		}
+	}
+
+	/**
+	 * Reads the index back. lbph has to have the LBPH parameters the templates were made from
+	 * (probes are still turned into histograms with it); threshold is the index's threshold.
+	 */
+	public static PackedIndex read(File file, LbphRecognizer lbph, double threshold) throws IOException {
+		long length = file.length();
+		if (length < HEADER_BYTES) {
+			throw new IOException(file + " is too short to be a template file");
+		}
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a template file: " + file);
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported template file version " + version);
+			}
+			int kind = in.readInt();
+			if (in.readInt() != lbph.radius() || in.readInt() != lbph.neighbors() || in.readInt() != lbph.gridX()
+					|| in.readInt() != lbph.gridY()) {
+				throw new IOException("Templates were made with different LBPH parameters");
+			}
+			int projectedDimension = in.readInt();
+			long projectionSeed = in.readLong();
+			int count = in.readInt();
+			long expectedChecksum = in.readLong();
+			if (kind != PROJECTED && kind != BIOHASH) {
+				throw new IOException("Unknown kind of templates " + kind);
+			}
+			if (projectedDimension < RandomProjection.NON_ZEROS || projectedDimension > lbph.dimension() || count < 0) {
+				throw new IOException("Corrupt template file header");
+			}
+			int parameterBytes = parameterBytes(kind, projectedDimension);
+			if (length < HEADER_BYTES + parameterBytes) {
+				throw new IOException(file + " is too short for its parameters");
+			}
+			byte[] parameters = new byte[parameterBytes];
+			in.readFully(parameters);
+			CRC32 checksum = new CRC32();
+			checksum.update(parameters);
+
+			RandomProjection projection = new RandomProjection(lbph.dimension(), projectedDimension, projectionSeed);
+			PackedIndex index;
+			if (kind == PROJECTED) {
+				index = new ProjectedIndex(projection, threshold);
+			} else {
+				ByteBuffer p = ByteBuffer.wrap(parameters);
+				int bits = p.getInt();
+				long seed = p.getLong();
+				float[] center = new float[projectedDimension];
+				for (int j = 0; j < projectedDimension; j++) {
+					center[j] = p.getFloat();
+				}
+				if (bits <= 0 || bits > projectedDimension) {
+					throw new IOException("Corrupt template file: " + bits + " bit codes");
+				}
+				index = new BioHashIndex(new BioHash(projection, bits, seed, center), threshold);
+			}
+			long expectedLength = HEADER_BYTES + parameterBytes + (long) count * (4 + index.templateBytes());
+			if (length != expectedLength) {
+				throw new IOException(file + " is " + length + " bytes, expected " + expectedLength);
+			}
+
+			// with the length checked, the count is what is really there
+			byte[] bytes = new byte[(int) (length - HEADER_BYTES - parameterBytes)];
+			in.readFully(bytes);
+			checksum.update(bytes);
+			if (checksum.getValue() != expectedChecksum) {
+				throw new IOException("Template file checksum mismatch");
+			}
+			ByteBuffer payload = ByteBuffer.wrap(bytes);
+			int[] labels = new int[count];
+			for (int i = 0; i < count; i++) {
+				labels[i] = payload.getInt();
+			}
+			for (int i = 0; i < count; i++) {
+				index.addPacked(payload, labels[i]);
+			}
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+
+	// bytes at the start of the payload that describe the index
+	private static int parameterBytes(int kind, int projectedDimension) {
+		return kind == BIOHASH ? 4 + 8 + 4 * projectedDimension : 0;
+	}
+}
@@ -0,0 +1,26 @@
+package com.googlecode.javacv.facepreview.recognition;
+
+// Something FacePredictor can match faces with. Everything goes in and out as LBPH histograms;
+// how an implementation stores and compares them (full histograms, projections, bit strings...)
+// is up to it, and so is the scale of the distances it reports.
+public interface TemplateIndex {
+
+	// length of the histograms that are passed in
+	int dimension();
+
+	// number of stored templates
+	int size();
+
+	void add(float[] histogram, int offset, int label);
+
+	// removes every template of a person, returns how many there were
+	int remove(int label);
+
+	void clear();
+
+	// closest template under the index's threshold, or Prediction.UNKNOWN
+	void predict(float[] histogram, int offset, Prediction result);
+
+	// compares against the templates of one person only, see LbphRecognizer.verify()
+	boolean verify(float[] histogram, int offset, int label, double threshold, Prediction result);
+}
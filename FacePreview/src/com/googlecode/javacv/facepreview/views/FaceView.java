@@ -10,7 +10,6 @@ import static com.googlecode.javacv.cpp.opencv_objdetect.cvHaarDetectObjects;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -31,6 +30,7 @@ import com.googlecode.javacv.cpp.opencv_objdetect;
 import com.googlecode.javacv.cpp.opencv_objdetect.CvHaarClassifierCascade;
 import com.googlecode.javacv.cpp.opencv_video.BackgroundSubtractorMOG2;
 import com.googlecode.javacv.facepreview.compute.BackgroundConsistencyAnalysis;
+import com.googlecode.javacv.facepreview.compute.Downsampler;
 
 // can we use startFaceDetection on camera? probably not
 public class FaceView extends View implements Camera.PreviewCallback {
@@ -70,29 +70,13 @@ public class FaceView extends View implements Camera.PreviewCallback {
         try {
             Camera.Size size = camera.getParameters().getPreviewSize();
             processImage(data, size.width, size.height);
-            camera.addCallbackBuffer(data);
+            // Preview gives the buffer back to the camera
         } catch (RuntimeException e) {
             // The camera has probably just been released, ignore.
         	System.err.println(e.toString());
         }
     }
     
-    private void createSubsampledImage(byte[] data, int width, int height, int f, IplImage subsampledImage) {
-    	// TODO: speed this up
-        int imageWidth  = subsampledImage.width();
-        int imageHeight = subsampledImage.height();
-        int dataStride = f*width;
-        int imageStride = subsampledImage.widthStep();
-        ByteBuffer imageBuffer = subsampledImage.getByteBuffer();
-        for (int y = 0; y < imageHeight; y++) {
-            int dataLine = y*dataStride;
-            int imageLine = y*imageStride;
-            for (int x = 0; x < imageWidth; x++) {
-                imageBuffer.put(imageLine + x, data[dataLine + f*x]);
-            }
-        }
-    }
-    
     // on main thread 
     protected void processImage(byte[] data, int width, int height) {
     	if (grayImage == null || grayImage.width() != width/CONSISTENCY_SUBSAMPLING_FACTOR || grayImage.height() != height/CONSISTENCY_SUBSAMPLING_FACTOR) {
@@ -103,7 +87,7 @@ public class FaceView extends View implements Camera.PreviewCallback {
         		System.err.println(e.toString());
         	}
         }
-    	createSubsampledImage(data, width, height, CONSISTENCY_SUBSAMPLING_FACTOR, grayImage);
+    	Downsampler.downsample(data, width, height, CONSISTENCY_SUBSAMPLING_FACTOR, Downsampler.Mode.POINT, grayImage);
         
    		// detect face
 		cvClearMemStorage(storage);
@@ -1,16 +1,13 @@
 package com.googlecode.javacv.facepreview.views;
 
 import static com.googlecode.javacv.cpp.opencv_core.IPL_DEPTH_8U;
-import static com.googlecode.javacv.cpp.opencv_core.cvClearMemStorage;
-import static com.googlecode.javacv.cpp.opencv_core.cvGetSeqElem;
 import static com.googlecode.javacv.cpp.opencv_core.cvLoad;
 import static com.googlecode.javacv.cpp.opencv_highgui.cvSaveImage;
-import static com.googlecode.javacv.cpp.opencv_objdetect.CV_HAAR_FIND_BIGGEST_OBJECT;
-import static com.googlecode.javacv.cpp.opencv_objdetect.cvHaarDetectObjects;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -19,53 +16,124 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.hardware.Camera;
 import android.hardware.Camera.PreviewCallback;
 import android.os.AsyncTask;
+import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.View;
 import android.widget.Toast;
 
 import com.googlecode.javacpp.Loader;
-import com.googlecode.javacv.cpp.opencv_core.CvMemStorage;
+import com.googlecode.javacpp.Pointer;
 import com.googlecode.javacv.cpp.opencv_core.CvRect;
-import com.googlecode.javacv.cpp.opencv_core.CvSeq;
 import com.googlecode.javacv.cpp.opencv_core.IplImage;
 import com.googlecode.javacv.cpp.opencv_objdetect;
 import com.googlecode.javacv.cpp.opencv_objdetect.CvHaarClassifierCascade;
 import com.googlecode.javacv.cpp.opencv_video.BackgroundSubtractorMOG2;
+import com.googlecode.javacv.facepreview.FaceNormalizer;
 import com.googlecode.javacv.facepreview.FacePredictor;
 import com.googlecode.javacv.facepreview.FacePredictorFactory;
+import com.googlecode.javacv.facepreview.FaceTracker;
 import com.googlecode.javacv.facepreview.LockScreen;
 import com.googlecode.javacv.facepreview.compute.BackgroundConsistencyAnalysis;
+import com.googlecode.javacv.facepreview.compute.Downsampler;
+import com.googlecode.javacv.facepreview.compute.FramePipeline;
+import com.googlecode.javacv.facepreview.compute.LatencyHistogram;
+import com.googlecode.javacv.facepreview.compute.PipelineMetrics;
+import com.googlecode.javacv.facepreview.compute.PipelineMetrics.Stage;
+import com.googlecode.javacv.facepreview.compute.RecognitionScheduler;
 
 // can we use startFaceDetection on camera? probably not
 public class FaceViewWithAnalysis extends View implements PreviewCallback {
+    private static final String TAG = "FaceViewWithAnalysis";
     public static final int CONSISTENCY_SUBSAMPLING_FACTOR = 8;
-    public static final int RECOGNITION_SUBSAMPLING_FACTOR = 4;
+    // Recognition starts with the first good frame and then keeps to a share of one CPU,
+    // but never more often than MIN_ or less often than MAX_RECOGNITION_INTERVAL
+    private static final long MIN_RECOGNITION_INTERVAL = 250 * 1000000L;
+    private static final long MAX_RECOGNITION_INTERVAL = 4000 * 1000000L;
+    // a face cut out longer ago than this is not worth recognizing any more
+    private static final long MAX_CROP_AGE = 500 * 1000000L;
 
-    public IplImage grayImage;
-    public IplImage largerGrayImage;
-    private IplImage foreground;
-    private Bitmap forgroundBitmap;
     public String displayedText = "Unlock with your face - This side up.";    
     
     // used for quickly identifying face location
     private CvHaarClassifierCascade classifier;
-    private CvMemStorage storage;
-    private CvSeq faces;
+    private FaceTracker tracker;
     
     // used for recognizing whos face it is
-    private FacePredictor facePredictor;
-    private long lastUnixTime = System.currentTimeMillis();//note: currentTimeMillis shouldn't be used for subsecond
+    private volatile FacePredictor facePredictor;
+    private final RecognitionScheduler scheduler = new RecognitionScheduler(
+    		Runtime.getRuntime().availableProcessors() > 1 ? 0.5 : 0.25,
+    		MIN_RECOGNITION_INTERVAL, MAX_RECOGNITION_INTERVAL, MAX_CROP_AGE);
     
-    // used for determining whether we are being shown a spoofed face (a pre-existing picture of the face)
-    private BackgroundConsistencyAnalysis consistencyAnalysis = new BackgroundConsistencyAnalysis();
+    // used for determining whether we are being shown a spoofed face (a pre-existing picture of the face).
+    // Only the analyze stage touches these; onDraw gets an AnalysisSnapshot.
+    private final BackgroundConsistencyAnalysis consistencyAnalysis = new BackgroundConsistencyAnalysis();
     private BackgroundSubtractorMOG2 backgroundSubtractor;
+    private Bitmap forgroundScratch;
+    // What onDraw shows of the last analyzed frame, replaced (never changed) by the analyze stage
+    private volatile AnalysisSnapshot analysisSnapshot;
+    // reused by drawChartCMD
+    private final Rect chartBar = new Rect();
     
     private boolean faceRecognitionSuccess = false;
     private String recognizedFace = "";
     
+    // What onDraw shows: the last detected face (x, y, width, height) and the size of the image it was found in
+    private volatile int[] faceBox;
+    private volatile int detectionWidth;
+    private volatile int detectionHeight;
+    
+    // Frames go camera thread -> detect -> analyze -> recognize, each stage on its own thread.
+    // A stage that is still busy just misses the frames in between, the camera callback never waits.
+    private final FramePipeline<Frame> pipeline;
+    private final Queue<Frame> freeFrames = new ConcurrentLinkedQueue<Frame>();
+    
+    // How long each stage takes, shared with the FacePredictor. With setShowMetrics(true) it is
+    // drawn over the preview, and logged under TAG when the view goes away.
+    private final PipelineMetrics metrics = new PipelineMetrics();
+    private volatile boolean showMetrics = false;
+    
+    // Copy of the consistency analysis after one frame, so the UI thread can draw it while the
+    // analyze stage goes on with the next. The bitmap is immutable.
+    private static final class AnalysisSnapshot {
+    	final Bitmap foreground;
+    	final double[] chart;
+    	final boolean pass;
+    	final int faceMotion;
+    	final double cmd;
+
+    	AnalysisSnapshot(Bitmap foreground, BackgroundConsistencyAnalysis analysis) {
+    		this.foreground = foreground;
+    		chart = new double[analysis.chartSize()];
+    		for (int i = 0; i < chart.length; i++) {
+    			chart[i] = analysis.chartValue(i);
+    		}
+    		pass = analysis.pass();
+    		faceMotion = analysis.totalMotionTrendFace();
+    		cmd = analysis.CMD();
+    	}
+    }
+    
+    // Everything one camera frame needs on its way through the pipeline. Reused, see freeFrames.
+    private static final class Frame {
+    	IplImage grayImage;
+    	IplImage foreground;
+    	// only filled in when recognize is set: the region around the face in full resolution (see
+    	// FaceNormalizer.cropRegion), where it is in the frame, and the scheduler's ticket for recognizing it
+    	IplImage faceCrop;
+    	final CvRect region = new CvRect();
+    	boolean recognize;
+    	long ticket;
+    	// a copy, the tracker's rectangle changes with the next detection
+    	final CvRect face = new CvRect();
+    	boolean faceFound;
+    	boolean consistent;
+    }
+    private static final CvRect NO_FACE = new CvRect((Pointer) null);
+    
     public FaceViewWithAnalysis(Context context) throws IOException {
         super(context);
  
@@ -84,13 +152,61 @@ public class FaceViewWithAnalysis extends View implements PreviewCallback {
         if (classifier.isNull()) {
             throw new IOException("Could not load the classifier file.");
         }
-        storage = CvMemStorage.create();
+        tracker = new FaceTracker(classifier);
         
         backgroundSubtractor = new BackgroundSubtractorMOG2(); 
         
+        pipeline = new FramePipeline<Frame>("FaceViewWithAnalysis", new FramePipeline.Recycler<Frame>() {
+			public void recycle(Frame frame) {
+				// frees the scheduler for the next frame if this one never got to be recognized
+				scheduler.cancel(frame.ticket);
+				frame.ticket = 0;
+				freeFrames.add(frame);
+			}
+		});
+        pipeline.addStage(new FramePipeline.Stage<Frame>() {
+			public boolean process(Frame frame) {
+				detect(frame);
+				return true;
+			}
+		});
+        pipeline.addStage(new FramePipeline.Stage<Frame>() {
+			public boolean process(Frame frame) {
+				analyze(frame);
+				// frames nobody wants to recognize are done here
+				return frame.recognize;
+			}
+		});
+        pipeline.addStage(new FramePipeline.Stage<Frame>() {
+			public boolean process(Frame frame) {
+				performRecognitionTest(frame);
+				return true;
+			}
+		});
+        pipeline.start();
+        
         loadFacePredictor();
     }
     
+    @Override
+    protected void onDetachedFromWindow() {
+    	super.onDetachedFromWindow();
+    	pipeline.shutdown();
+    	if (showMetrics) {
+    		Log.i(TAG, metrics.export());
+    		Log.i(TAG, String.valueOf(scheduler));
+    	}
+    }
+    
+    public PipelineMetrics getMetrics() {
+    	return metrics;
+    }
+    
+    public void setShowMetrics(boolean show) {
+    	showMetrics = show;
+    	postInvalidate();
+    }
+    
     private void loadFacePredictor() {
     	new AsyncTask<Void, Void, FacePredictor>() {
 			@Override
@@ -99,6 +215,9 @@ public class FaceViewWithAnalysis extends View implements PreviewCallback {
 			}
 			@Override
 			protected void onPostExecute(FacePredictor result) {
+				if (result != null) {
+					result.setMetrics(metrics);
+				}
 				facePredictor = result;
 			}
     	}.execute();
@@ -108,7 +227,7 @@ public class FaceViewWithAnalysis extends View implements PreviewCallback {
         try {
             Camera.Size size = camera.getParameters().getPreviewSize();
             processImage(data, size.width, size.height);
-            camera.addCallbackBuffer(data);
+            // Preview gives the buffer back to the camera
         } catch (RuntimeException e) {
             // The camera has probably just been released, ignore.
         	System.err.println(e.toString());
@@ -123,127 +242,182 @@ public class FaceViewWithAnalysis extends View implements PreviewCallback {
     }
     SuccessCallback mCallback = null;
     
-    private void createSubsampledImage(byte[] data, int width, int height, int f, IplImage subsampledImage) {
-    	// TODO: speed this up
-        int imageWidth  = subsampledImage.width();
-        int imageHeight = subsampledImage.height();
-        int dataStride = f*width;
-        int imageStride = subsampledImage.widthStep();
-        ByteBuffer imageBuffer = subsampledImage.getByteBuffer();
-        for (int y = 0; y < imageHeight; y++) {
-            int dataLine = y*dataStride;
-            int imageLine = y*imageStride;
-            for (int x = 0; x < imageWidth; x++) {
-                imageBuffer.put(imageLine + x, data[dataLine + f*x]);
-            }
-        }
+    // on main thread (the camera callback), only does the subsampling, the rest is up to the pipeline.
+    // data goes back to the camera when we return, so nothing after this may look at it.
+    protected void processImage(byte[] data, int width, int height) {
+    	metrics.frame();
+    	long start = System.nanoTime();
+    	Frame frame = freeFrames.poll();
+    	if (frame == null) {
+    		frame = new Frame();
+    	}
+    	frame.grayImage = createImageIfNecessary(frame.grayImage, width/CONSISTENCY_SUBSAMPLING_FACTOR, height/CONSISTENCY_SUBSAMPLING_FACTOR);
+    	Downsampler.downsample(data, width, height, CONSISTENCY_SUBSAMPLING_FACTOR, Downsampler.Mode.POINT, frame.grayImage);
+    	
+    	// Recognition wants the face in full resolution, which has to be cut out now, while data is ours.
+    	// This frame hasn't been through detection yet, so use where the face was in the last one;
+    	// the recognition stage checks it's still there.
+    	frame.recognize = false;
+    	frame.ticket = 0;
+    	int[] box = faceBox;
+    	if (box != null && recognitionWanted()) {
+    		frame.ticket = scheduler.claim(System.nanoTime());
+    	}
+    	if (frame.ticket != 0) {
+    		CvRect last = new CvRect(box[0], box[1], box[2], box[3]);
+    		IplImage crop = FaceNormalizer.cropRegion(data, width, height, last, CONSISTENCY_SUBSAMPLING_FACTOR, frame.faceCrop, frame.region);
+    		if (crop != null) {
+    			frame.faceCrop = crop;
+    			frame.recognize = true;
+    		} else {
+    			scheduler.cancel(frame.ticket);
+    		}
+    	}
+    	metrics.record(Stage.SUBSAMPLE, start);
+    	pipeline.submit(frame);
     }
     
-    // on main thread 
-    // the following could be pipelined (via ThreadPoolExecutor)
-    // TODO: this more efficienty using built in API, or parallel for http://stackoverflow.com/questions/4010185/parallel-for-for-java
-    protected void processImage(byte[] data, int width, int height) {
-    	if (grayImage == null || grayImage.width() != width/CONSISTENCY_SUBSAMPLING_FACTOR || grayImage.height() != height/CONSISTENCY_SUBSAMPLING_FACTOR) {
-        	try {
-        		grayImage = IplImage.create(width/CONSISTENCY_SUBSAMPLING_FACTOR, height/CONSISTENCY_SUBSAMPLING_FACTOR, IPL_DEPTH_8U, 1);
-        	} catch (Exception e) {
-        		// ignore exception. It is only a warning in this case
-        		System.err.println(e.toString());
-        	}
-        }
-    	createSubsampledImage(data, width, height, CONSISTENCY_SUBSAMPLING_FACTOR, grayImage);
-        
-        // TODO: see if this callback is on the UI thread... if not, then the
-        // below asynchronous thing probably shouldn't be asynchronous
-        // or maybe not.. Perhaps we want 
-        
-        if (foreground == null) {
-			foreground = IplImage.create(grayImage.width(),
-					grayImage.height(), IPL_DEPTH_8U, 1);
-		}
+    // stage 1: motion and face location
+    private void detect(Frame frame) {
+    	IplImage grayImage = frame.grayImage;
+    	frame.foreground = createImageIfNecessary(frame.foreground, grayImage.width(), grayImage.height());
         
         // this function has linear variance
         final double learningRate = 0.05;
-        backgroundSubtractor.apply(grayImage, foreground, learningRate);
+        long start = System.nanoTime();
+        backgroundSubtractor.apply(grayImage, frame.foreground, learningRate);
+        start = metrics.record(Stage.BACKGROUND, start);
 
-   		// detect face
-		cvClearMemStorage(storage);
-		faces = cvHaarDetectObjects(grayImage, classifier, storage, 1.1, 3, CV_HAAR_FIND_BIGGEST_OBJECT);
-        
-        if (forgroundBitmap == null) {
-    	    // This bitmap is only used for displaying on the canvas
-   			forgroundBitmap = Bitmap.createBitmap(grayImage.width(), grayImage.height(), Config.ALPHA_8);
+   		// detect face, mostly just near where it was in the last frame
+		CvRect r = tracker.track(grayImage);
+		metrics.record(Stage.DETECT, start);
+		frame.faceFound = r != null;
+		if (frame.faceFound) {
+			frame.face.x(r.x()).y(r.y()).width(r.width()).height(r.height());
+			faceBox = new int[] { r.x(), r.y(), r.width(), r.height() };
+		} else {
+			faceBox = null;
+		}
+		detectionWidth = grayImage.width();
+		detectionHeight = grayImage.height();
+    }
+    
+    // stage 2: is the face moving with its background
+    private void analyze(Frame frame) {
+        if (forgroundScratch == null || forgroundScratch.getWidth() != frame.foreground.width() || forgroundScratch.getHeight() != frame.foreground.height()) {
+   			forgroundScratch = Bitmap.createBitmap(frame.foreground.width(), frame.foreground.height(), Config.ALPHA_8);
         }
-   		forgroundBitmap.copyPixelsFromBuffer(foreground.getByteBuffer());
-   		consistencyAnalysis.processNewFrame(foreground.getByteBuffer(), forgroundBitmap.getHeight(), forgroundBitmap.getWidth(), new CvRect(cvGetSeqElem(faces, 0)));
+   		long start = System.nanoTime();
+   		consistencyAnalysis.processNewFrame(frame.foreground.getByteBuffer(), frame.foreground.height(), frame.foreground.width(), frame.foreground.widthStep(), frame.faceFound ? frame.face : NO_FACE);
+   		frame.consistent = consistencyAnalysis.pass();
+   		metrics.record(Stage.CONSISTENCY, start);
+   		// This bitmap is only used for displaying on the canvas
+   		forgroundScratch.copyPixelsFromBuffer(frame.foreground.getByteBuffer());
+   		analysisSnapshot = new AnalysisSnapshot(forgroundScratch.copy(Config.ALPHA_8, false), consistencyAnalysis);
    		postInvalidate();
-   		
-   		boolean everythingSuccessfulSoFar = consistencyAnalysis.pass();
-   		performRecognitionTest(data, width, height, everythingSuccessfulSoFar);
     }
     
-    private void performRecognitionTest(byte[] data, int width, int height, boolean everythingElseSuccessful) {
-    	if (mCallback == null) {
-    		return;
-    	}
-    	
-    	if (facePredictor == null) {
-    		return;
-    	}
-    	
-		// Rate limit the analysis (should probably be done in the other function)
-		if (System.currentTimeMillis() <= lastUnixTime + 4000) {
+    // How often is up to the scheduler
+    private boolean recognitionWanted() {
+    	return mCallback != null && facePredictor != null;
+    }
+    
+    // stage 3: whose face is it. Runs on its own thread, so it can take its time, results go to the UI thread.
+    // Frames that don't get this far give their ticket back in the recycler.
+    private void performRecognitionTest(Frame frame) {
+		// the face moved out of what was cut out, try again with the next frame
+		if (!recognitionWanted() || !frame.faceFound || !inRegion(frame.face, frame.region)) {
+			scheduler.cancel(frame.ticket);
 			return;
 		}
-		lastUnixTime = System.currentTimeMillis();
-    	
-		initLargerGrayImageIfNecessary(width, height);
-    	createSubsampledImage(data, width, height, RECOGNITION_SUBSAMPLING_FACTOR, largerGrayImage);
-        if (debugPictureCount == 0) {
-        	//debugPrintIplImage(grayImage, this.getContext());
-        }
+		// waited too long behind the previous recognition
+		if (!scheduler.begin(frame.ticket, System.nanoTime())) {
+			return;
+		}
+		try {
+			recognize(frame);
+		} finally {
+			scheduler.finish(System.nanoTime());
+		}
+    }
+    
+    private void recognize(Frame frame) {
+		final SuccessCallback callback = mCallback;
         
-        if (!everythingElseSuccessful) {
-        	mCallback.success(false);
+        if (!frame.consistent) {
+        	post(new Runnable() {
+				public void run() {
+					callback.success(false);
+				}
+			});
         	// We don't need to perform the authentication step if consistency analysis failed
         	// However, we do it anyway for debugging purposes. Therefore the following line
         	// is commented out.
         	//return;
         }
 		
-    	// for the sake of safety, we are going to clone this image.
-    	// On fast cpus, this isn't necessary. However, we want to be certain
-    	// not to have two asynctasks messing with the same image.
-    	final IplImage ownedImage = largerGrayImage.clone();
-    	
-		new AsyncTask<Void, Void, Boolean>() {
-			String name;
-			
-			@Override
-			protected Boolean doInBackground(Void... n) {
-				name = facePredictor.identify(ownedImage).first;
-				System.out.println("name = " + name);
-				return name != null && name.equals("11");
-				//return facePredictor.authenticate(ownedImage);
-			}
-			@Override
-			protected void onPostExecute(Boolean result) {
-				mCallback.success(result);
+		// 1:1 against the owner's templates, instead of identify() over the whole gallery.
+		// The frame is ours until we return, so no need to clone the image any more.
+		// The face is found again in the region, at full resolution but only near this frame's detection.
+		CvRect near = FaceNormalizer.inRegion(frame.face, CONSISTENCY_SUBSAMPLING_FACTOR, frame.region);
+		final boolean authenticated = facePredictor.authenticate(frame.faceCrop, near);
+		final String name = authenticated ? String.valueOf(FacePredictor.AUTHORIZED_LABEL) : null;
+		post(new Runnable() {
+			public void run() {
+				callback.success(authenticated);
 				FaceViewWithAnalysis.this.recognizedFace = name;
-				FaceViewWithAnalysis.this.faceRecognitionSuccess = result;
+				FaceViewWithAnalysis.this.faceRecognitionSuccess = authenticated;
 			}
-		}.execute();
+		});
     }
     
-	private void initLargerGrayImageIfNecessary(int width, int height) {
-    	if (largerGrayImage == null || largerGrayImage.width() != width/RECOGNITION_SUBSAMPLING_FACTOR || largerGrayImage.height() != height/RECOGNITION_SUBSAMPLING_FACTOR) {
+	// Draws a chart of how CDM changes over time
+	private void drawChartCMD(Canvas c, Paint p, AnalysisSnapshot analysis) {
+		if (!analysis.pass) {
+			p.setColor(Color.RED);
+		} else {
+			p.setColor(Color.GREEN);
+		}
+		for (int i = 0; i < analysis.chart.length; i++) {
+			double value = analysis.chart[i]/500.0;//divide by arbitrarily large value
+			value = Math.min(500, value);
+			chartBar.set(i*3, 600-(int)(value*100), i*3+3, 600);
+			c.drawRect(chartBar, p);
+		}
+		c.drawText("Face motion: " + analysis.faceMotion + " / " + BackgroundConsistencyAnalysis.faceMotionMin, 0, 630, p);
+		c.drawText("CMD ratio: " + analysis.cmd + " / " + BackgroundConsistencyAnalysis.maxCMD, 0, 660, p);
+	}
+
+	// fps and the 95th percentile of every stage, under the chart
+	private void drawMetrics(Canvas c, Paint p) {
+		p.setColor(Color.YELLOW);
+		c.drawText(String.format("%.1f fps", metrics.framesPerSecond()), 0, 700, p);
+		LatencyHistogram.Snapshot[] snapshots = metrics.snapshot();
+		for (Stage stage : Stage.values()) {
+			LatencyHistogram.Snapshot s = snapshots[stage.ordinal()];
+			c.drawText(String.format("%s p95 %.1f ms", stage.name().toLowerCase(), s.percentileMillis(0.95)), 0, 740 + 35 * stage.ordinal(), p);
+		}
+		c.drawText(String.format("recognition every %.0f ms", scheduler.interval() / 1e6), 0, 740 + 35 * Stage.values().length, p);
+	}
+
+	// face (in the shrunk frame) is all in region (in the frame), so searching the region finds it
+	private static boolean inRegion(CvRect face, CvRect region) {
+		int x = face.x() * CONSISTENCY_SUBSAMPLING_FACTOR, y = face.y() * CONSISTENCY_SUBSAMPLING_FACTOR;
+		return x >= region.x() && y >= region.y()
+				&& x + face.width() * CONSISTENCY_SUBSAMPLING_FACTOR <= region.x() + region.width()
+				&& y + face.height() * CONSISTENCY_SUBSAMPLING_FACTOR <= region.y() + region.height();
+	}
+
+	private static IplImage createImageIfNecessary(IplImage image, int width, int height) {
+    	if (image == null || image.width() != width || image.height() != height) {
         	try {
-        		largerGrayImage = IplImage.create(width/RECOGNITION_SUBSAMPLING_FACTOR, height/RECOGNITION_SUBSAMPLING_FACTOR, IPL_DEPTH_8U, 1);
+        		image = IplImage.create(width, height, IPL_DEPTH_8U, 1);
         	} catch (Exception e) {
         		// ignore exception. It is only a warning in this case
         		System.err.println(e.toString());
         	}
         }
+    	return image;
 	}
     
     // todo: delete
@@ -257,6 +431,7 @@ public class FaceViewWithAnalysis extends View implements PreviewCallback {
     @Override
     protected void onDraw(Canvas canvas) {
         Paint paint = new Paint();
+        AnalysisSnapshot analysis = analysisSnapshot;
         
         paint.setTextSize(30);
         paint.setColor(Color.RED);
@@ -265,7 +440,7 @@ public class FaceViewWithAnalysis extends View implements PreviewCallback {
         }
     	canvas.drawText("Face Recnogized", 0, 40, paint);
     	paint.setColor(Color.RED);
-        if (this.consistencyAnalysis.pass()) {
+        if (analysis != null && analysis.pass) {
         	paint.setColor(Color.GREEN);	
         }
     	canvas.drawText("Consistency Analysis", 0, 80, paint);
@@ -276,35 +451,36 @@ public class FaceViewWithAnalysis extends View implements PreviewCallback {
         float textWidth = paint.measureText(displayedText);
         canvas.drawText(displayedText, (getWidth()-textWidth)/2, 20, paint);
 
-        // show motion tracking, makes for a cool demo
-        if (forgroundBitmap != null) {
+        if (analysis != null) {
+        	// show motion tracking, makes for a cool demo
+        	Bitmap foreground = analysis.foreground;
         	paint.setColor(Color.BLACK);
             paint.setStrokeWidth(0);
-            int startX = canvas.getWidth()-forgroundBitmap.getWidth();
-            canvas.drawRect(startX, 0, startX+forgroundBitmap.getWidth(), forgroundBitmap.getHeight(), paint);
+            int startX = canvas.getWidth()-foreground.getWidth();
+            canvas.drawRect(startX, 0, startX+foreground.getWidth(), foreground.getHeight(), paint);
             paint.setColor(Color.WHITE);
-            canvas.drawBitmap(forgroundBitmap, startX, 0, paint);
-        	//canvas.drawBitmap(forgroundBitmap, new Matrix(), paint);
+            canvas.drawBitmap(foreground, startX, 0, paint);
+        	//canvas.drawBitmap(foreground, new Matrix(), paint);
+
+        	drawChartCMD(canvas, paint, analysis);
+        }
+        if (showMetrics) {
+        	drawMetrics(canvas, paint);
         }
-        
-        consistencyAnalysis.drawChartCMD(canvas, paint);
         
         paint.setStrokeWidth(2);
         paint.setColor(Color.BLUE);
         
-        if (faces != null) {
+        int[] box = faceBox;
+        if (box != null) {
             paint.setStrokeWidth(2);
             paint.setStyle(Paint.Style.STROKE);
-            float scaleX = (float)getWidth()/grayImage.width();
-            float scaleY = (float)getHeight()/grayImage.height();
-            int total = faces.total();
-            for (int i = 0; i < total; i++) {//should only be 1
-                CvRect r = new CvRect(cvGetSeqElem(faces, i));
-                int x = r.x(), y = r.y(), w = r.width(), h = r.height();
-                //Commented out code works if using back facing camera
-                //canvas.drawRect(x*scaleX, y*scaleY, (x+w)*scaleX, (y+h)*scaleY, paint);
-                canvas.drawRect(getWidth()-x*scaleX, y*scaleY, getWidth()-(x+w)*scaleX, (y+h)*scaleY, paint);
-            }
+            float scaleX = (float)getWidth()/detectionWidth;
+            float scaleY = (float)getHeight()/detectionHeight;
+            int x = box[0], y = box[1], w = box[2], h = box[3];
+            //Commented out code works if using back facing camera
+            //canvas.drawRect(x*scaleX, y*scaleY, (x+w)*scaleX, (y+h)*scaleY, paint);
+            canvas.drawRect(getWidth()-x*scaleX, y*scaleY, getWidth()-(x+w)*scaleX, (y+h)*scaleY, paint);
         }   
 
     }
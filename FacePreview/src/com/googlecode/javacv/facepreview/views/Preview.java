@@ -11,13 +11,25 @@ import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
 public class Preview extends SurfaceView implements SurfaceHolder.Callback {
+    // enough for the camera to fill one while we process another, plus one spare
+    public static final int DEFAULT_BUFFER_COUNT = 3;
+
     SurfaceHolder mHolder;
     Camera mCamera;
     Camera.PreviewCallback previewCallback;
+    private final int bufferCount;
+    private volatile PreviewBufferRing buffers;
 
     public Preview(Context context, Camera.PreviewCallback previewCallback) {
+        this(context, previewCallback, DEFAULT_BUFFER_COUNT);
+    }
+
+    // previewCallback gets the frame on the camera's callback thread and has to be done with it
+    // when it returns, the buffer goes back to the camera right after.
+    public Preview(Context context, Camera.PreviewCallback previewCallback, int bufferCount) {
         super(context);
         this.previewCallback = previewCallback;
+        this.bufferCount = bufferCount;
 
         // Install a SurfaceHolder.Callback so we get notified when the
         // underlying surface is created and destroyed.
@@ -98,13 +110,50 @@ public class Preview extends SurfaceView implements SurfaceHolder.Callback {
 
         mCamera.setParameters(parameters);
         if (previewCallback != null) {
-            mCamera.setPreviewCallbackWithBuffer(previewCallback);
+            mCamera.setPreviewCallbackWithBuffer(ringCallback);
             Camera.Size size = parameters.getPreviewSize();
-            byte[] data = new byte[size.width*size.height*
-                    ImageFormat.getBitsPerPixel(parameters.getPreviewFormat())/8];
-            mCamera.addCallbackBuffer(data);
+            int frameRate = Math.max(1, parameters.getPreviewFrameRate());
+            // buffers still queued from an earlier size are no longer ours, claim() ignores them
+            buffers = new PreviewBufferRing(bufferCount, size.width*size.height*
+                    ImageFormat.getBitsPerPixel(parameters.getPreviewFormat())/8, 1000000000L / frameRate);
+            for (byte[] data : buffers.buffers()) {
+                mCamera.addCallbackBuffer(data);
+            }
         }
         mCamera.startPreview();
     }
 
+    // Frames the camera delivered and we handed on
+    public long processedFrames() {
+        PreviewBufferRing ring = buffers;
+        return ring == null ? 0 : ring.processed();
+    }
+
+    // Frames the camera threw away, estimated from gaps between deliveries (see PreviewBufferRing)
+    public long droppedFrames() {
+        PreviewBufferRing ring = buffers;
+        return ring == null ? 0 : ring.dropped();
+    }
+
+    private final Camera.PreviewCallback ringCallback = new Camera.PreviewCallback() {
+        public void onPreviewFrame(byte[] data, Camera camera) {
+            PreviewBufferRing ring = buffers;
+            if (ring == null || !ring.claim(data, System.nanoTime())) {
+                return;
+            }
+            try {
+                previewCallback.onPreviewFrame(data, camera);
+            } finally {
+                if (ring.release(data) && ring == buffers) {
+                    try {
+                        camera.addCallbackBuffer(data);
+                    } catch (RuntimeException e) {
+                        // The camera has probably just been released, ignore.
+                        System.err.println(e.toString());
+                    }
+                }
+            }
+        }
+    };
+
 }
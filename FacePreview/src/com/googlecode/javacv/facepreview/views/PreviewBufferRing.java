@@ -0,0 +1,118 @@
+package com.googlecode.javacv.facepreview.views;
+
+// The preview buffers handed to the camera with addCallbackBuffer, and who has each one.
+// The camera only fills buffers it has been given; with a single buffer it has nothing to write
+// into while onPreviewFrame runs and throws those frames away. With several, it keeps filling the
+// others in the meantime.
+// The camera doesn't tell us about frames it threw away, so dropped() is an estimate from the gaps
+// between deliveries: one more than 1.5 frame intervals long means frames went missing, as many as
+// fit into the part of the gap beyond one interval. But frames that waited in a buffer while the
+// callback was busy also arrive late, and the ones queued behind them then come less than an
+// interval apart until the callback has caught up: those gaps take back what the late one counted.
+public class PreviewBufferRing {
+	private static final int CAMERA = 0;
+	private static final int APP = 1;
+
+	private final byte[][] buffers;
+	private final int[] owner;
+	private int withCamera = 0;
+
+	private final long frameInterval;
+	private long processed = 0;
+	// time frames went missing in: gaps between deliveries beyond one frame interval, less the
+	// bursts that followed them
+	private long missed = 0;
+	// when the last frame was delivered, if any was (nanoTime() may be negative)
+	private boolean delivered = false;
+	private long lastDelivery;
+
+	/**
+	 * frameInterval is the time between two preview frames in nanoseconds (1e9 / frame rate).
+	 */
+	public PreviewBufferRing(int count, int bufferSize, long frameInterval) {
+		if (count < 1 || frameInterval <= 0) {
+			throw new IllegalArgumentException("need at least one buffer and a frame interval");
+		}
+		this.frameInterval = frameInterval;
+		buffers = new byte[count][bufferSize];
+		owner = new int[count];
+	}
+
+	public int size() {
+		return buffers.length;
+	}
+
+	public int bufferSize() {
+		return buffers[0].length;
+	}
+
+	// Every buffer this ring owns, to go to Camera.addCallbackBuffer once. They start with the camera.
+	public synchronized byte[][] buffers() {
+		for (int i = 0; i < owner.length; i++) {
+			owner[i] = CAMERA;
+		}
+		withCamera = buffers.length;
+		return buffers.clone();
+	}
+
+	/**
+	 * The camera delivered data at time nanos (System.nanoTime()), the app owns it now.
+	 * Returns false if data isn't one of ours or isn't with the camera (e.g. a buffer from before
+	 * the preview size changed), which the caller should ignore.
+	 */
+	public synchronized boolean claim(byte[] data, long nanos) {
+		int i = indexOf(data);
+		if (i < 0 || owner[i] != CAMERA) {
+			return false;
+		}
+		owner[i] = APP;
+		withCamera--;
+		if (delivered) {
+			long gap = nanos - lastDelivery;
+			if (2 * gap > 3 * frameInterval) {
+				missed += gap - frameInterval;
+			} else if (gap < frameInterval) {
+				missed = Math.max(0, missed - (frameInterval - gap));
+			}
+		}
+		lastDelivery = nanos;
+		delivered = true;
+		return true;
+	}
+
+	/**
+	 * The app is done with data, it can go back to the camera.
+	 * Returns false if the app didn't own it, in which case it must not be given to the camera again.
+	 */
+	public synchronized boolean release(byte[] data) {
+		int i = indexOf(data);
+		if (i < 0 || owner[i] != APP) {
+			return false;
+		}
+		owner[i] = CAMERA;
+		withCamera++;
+		processed++;
+		return true;
+	}
+
+	public synchronized int withCamera() {
+		return withCamera;
+	}
+
+	public synchronized long processed() {
+		return processed;
+	}
+
+	public synchronized long dropped() {
+		return missed / frameInterval;
+	}
+
+	private int indexOf(byte[] data) {
+		for (int i = 0; i < buffers.length; i++) {
+			if (buffers[i] == data) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}